@@ -0,0 +1,76 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.transaction.Transactional;
+
+import org.alvearie.imaging.ingestion.entity.BackfillEntity;
+import org.jboss.logging.Logger;
+
+/**
+ * Runs one-off backfills of columns added to existing rows in the background,
+ * one at a time, and records each in the BACKFILL table once complete so that
+ * it is not repeated on the next start. A backfill that fails or is
+ * interrupted is run again on the next start.
+ */
+@ApplicationScoped
+public class BackfillRunner {
+    private static final Logger log = Logger.getLogger(BackfillRunner.class);
+
+    @Inject
+    BackfillRunner self;
+
+    private ExecutorService executor;
+
+    /**
+     * Runs the backfill in the background unless it completed before.
+     *
+     * @param name the name the backfill is recorded under
+     */
+    public synchronized void submit(String name, Runnable backfill) {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor();
+        }
+        executor.execute(() -> run(name, backfill));
+    }
+
+    @PreDestroy
+    synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    void run(String name, Runnable backfill) {
+        try {
+            if (self.isCompleted(name)) {
+                return;
+            }
+            backfill.run();
+            if (!Thread.currentThread().isInterrupted()) {
+                self.complete(name);
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to backfill " + name, e);
+        }
+    }
+
+    @Transactional
+    public boolean isCompleted(String name) {
+        return BackfillEntity.isCompleted(name);
+    }
+
+    @Transactional
+    public void complete(String name) {
+        BackfillEntity.complete(name);
+    }
+}
@@ -83,9 +83,14 @@ public class EventProcessorFunction {
             study.revisionTime = OffsetDateTime.now(ZoneOffset.UTC);
             study.studyDate = studyDate;
             study.studyTime = studyTime;
+            study.numberOfSeries = 0;
+            study.numberOfInstances = 0;
+            study.modalities = "";
+            study.sopClasses = "";
 
             for (DicomStudyAttributesEntity attr : studyAttributes) {
                 study.addAttribute(attr);
+                MatchingKeys.apply(study, attr);
             }
         }
 
@@ -100,9 +105,11 @@ public class EventProcessorFunction {
     public DicomSeriesEntity storeSeries(String studyId, String seriesId, Integer seriesNumber, String modality,
             List<DicomSeriesAttributesEntity> attributes, String providerName, String endpoint, String region,
             String bucket, String wadoInternalEndpoint, String wadoExternalEndpoint) {
-        DicomStudyEntity study = DicomStudyEntity.findByStudyInstanceUID(studyId, false);
+        // The study is locked so its summary is updated by one instance at a time
+        DicomStudyEntity study = DicomStudyEntity.findByStudyInstanceUID(studyId, true);
         DicomSeriesEntity series = DicomSeriesEntity.findBySeriesInstanceUID(seriesId, false);
 
+        boolean added = series == null;
         if (series == null) {
             series = new DicomSeriesEntity();
             series.seriesInstanceUID = seriesId;
@@ -115,6 +122,8 @@ public class EventProcessorFunction {
             series.provider.wadoInternalEndpoint = wadoInternalEndpoint;
             series.provider.wadoExternalEndpoint = wadoExternalEndpoint;
             series.provider.series = series;
+            series.numberOfInstances = 0;
+            series.sopClasses = "";
 
             study.addSeries(series);
         } else if (!providerName.equals(series.provider.name)) {
@@ -125,27 +134,35 @@ public class EventProcessorFunction {
         series.number = seriesNumber;
         series.modality = modality;
         for (DicomSeriesAttributesEntity attr : attributes) {
+            // The first value stored is kept, as for the attributes
+            if (!series.attributes.contains(attr)) {
+                MatchingKeys.apply(series, attr);
+            }
             series.addAttribute(attr);
         }
 
         if (!series.isPersistent()) {
             series.persist();
         }
+        study.seriesStored(series, added);
 
         return series;
     }
 
     @Transactional
-    public DicomInstanceEntity storeInstance(String seriesId, String instanceId, String sopClassId,
+    public DicomInstanceEntity storeInstance(String studyId, String seriesId, String instanceId, String sopClassId,
             String transferSyntaxUID, Integer instanceNumber, String objectName) {
+        // The study is locked so its summary is updated by one instance at a time
+        DicomStudyEntity study = DicomStudyEntity.findByStudyInstanceUID(studyId, true);
         DicomSeriesEntity series = DicomSeriesEntity.findBySeriesInstanceUID(seriesId, false);
         DicomInstanceEntity instance = DicomInstanceEntity.findBySopInstanceUID(instanceId);
 
         OffsetDateTime now = OffsetDateTime.now(ZoneOffset.UTC);
+        boolean added = instance == null;
         if (instance == null) {
             instance = new DicomInstanceEntity();
             instance.sopInstanceUID = instanceId;
-            instance.initialRevision = series.study.revision;
+            instance.initialRevision = study.revision;
             series.addInstance(instance);
         } else {
             log.info("Instance exists: " + instanceId);
@@ -163,6 +180,10 @@ public class EventProcessorFunction {
                 log.info(e.getMessage());
             }
         }
+        if (added) {
+            series.instanceAdded(instance);
+            study.instanceAdded(instance);
+        }
 
         return instance;
     }
@@ -305,8 +326,8 @@ public class EventProcessorFunction {
                     return null;
                 }
 
-                instance = storeInstance(seriesId, instanceId, sopClassId, transferSyntaxUID, instanceNumber,
-                        objectName);
+                instance = storeInstance(studyInstanceUID, seriesId, instanceId, sopClassId, transferSyntaxUID,
+                        instanceNumber, objectName);
                 log.info("Instance ID: " + instance.id);
 
                 studyManager.markLastUpdated(studyInstanceUID);
@@ -0,0 +1,156 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion;
+
+import java.util.List;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.transaction.Transactional;
+
+import org.alvearie.imaging.ingestion.entity.DicomSeriesAttributesEntity;
+import org.alvearie.imaging.ingestion.entity.DicomSeriesEntity;
+import org.alvearie.imaging.ingestion.entity.DicomStudyAttributesEntity;
+import org.alvearie.imaging.ingestion.entity.DicomStudyEntity;
+import org.dcm4che3.data.Tag;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import io.quarkus.runtime.StartupEvent;
+
+/**
+ * Copies the attributes that studies and series are matched on into indexed
+ * columns of their entities, and backfills the columns of those stored before
+ * the columns existed. The backfill runs once with the {@link BackfillRunner},
+ * a batch of rows per transaction.
+ */
+@ApplicationScoped
+public class MatchingKeys {
+    private static final Logger log = Logger.getLogger(MatchingKeys.class);
+
+    static final String BACKFILL_NAME = "matching-keys";
+
+    private static final String BACKFILL_SQL = "UPDATE %1$s SET %2$s = (SELECT MAX(a.value) FROM %3$s a"
+            + " WHERE a.%4$s = %1$s.id AND a.tag = :tag) WHERE %2$s IS NULL AND id IN (:ids)";
+
+    @ConfigProperty(name = "imaging.ingestion.matching.backfill.enabled")
+    Boolean backfillEnabled;
+
+    @ConfigProperty(name = "imaging.ingestion.matching.backfill.batchSize", defaultValue = "1000")
+    Integer batchSize;
+
+    @Inject
+    MatchingKeys self;
+
+    @Inject
+    BackfillRunner backfillRunner;
+
+    public static void apply(DicomStudyEntity study, DicomStudyAttributesEntity attr) {
+        switch (attr.tag) {
+        case Tag.PatientName:
+            study.patientName = attr.value;
+            break;
+        case Tag.PatientID:
+            study.patientID = attr.value;
+            break;
+        case Tag.AccessionNumber:
+            study.accessionNumber = attr.value;
+            break;
+        case Tag.ReferringPhysicianName:
+            study.referringPhysicianName = attr.value;
+            break;
+        default:
+            break;
+        }
+    }
+
+    public static void apply(DicomSeriesEntity series, DicomSeriesAttributesEntity attr) {
+        switch (attr.tag) {
+        case Tag.PerformedProcedureStepStartDate:
+            series.ppsStartDate = attr.value;
+            break;
+        case Tag.PerformedProcedureStepStartTime:
+            series.ppsStartTime = attr.value;
+            break;
+        default:
+            break;
+        }
+    }
+
+    void onStart(@Observes StartupEvent event) {
+        if (backfillEnabled) {
+            backfillRunner.submit(BACKFILL_NAME, this::backfill);
+        }
+    }
+
+    /**
+     * Copies the attributes of studies and series whose columns are not yet set,
+     * in batches of rows in id order.
+     */
+    void backfill() {
+        int count = 0;
+        List<Long> ids;
+        for (long after = 0; !(ids = self.nextStudies(after)).isEmpty(); after = ids.get(ids.size() - 1)) {
+            count += self.backfillStudies(ids);
+        }
+        for (long after = 0; !(ids = self.nextSeries(after)).isEmpty(); after = ids.get(ids.size() - 1)) {
+            count += self.backfillSeries(ids);
+        }
+        log.info("Backfilled matching keys: " + count);
+    }
+
+    @Transactional
+    public int backfillStudies(List<Long> ids) {
+        return backfillStudies("patient_name", Tag.PatientName, ids)
+                + backfillStudies("patient_id", Tag.PatientID, ids)
+                + backfillStudies("accession_number", Tag.AccessionNumber, ids)
+                + backfillStudies("referring_physician_name", Tag.ReferringPhysicianName, ids);
+    }
+
+    @Transactional
+    public int backfillSeries(List<Long> ids) {
+        return backfillSeries("pps_start_date", Tag.PerformedProcedureStepStartDate, ids)
+                + backfillSeries("pps_start_time", Tag.PerformedProcedureStepStartTime, ids);
+    }
+
+    /**
+     * @return the ids of the next batch of studies with a column not yet set
+     */
+    @Transactional
+    public List<Long> nextStudies(long after) {
+        return DicomStudyEntity.getEntityManager()
+                .createQuery("select e.id from DicomStudyEntity e where e.id > ?1 and (e.patientName is null"
+                        + " or e.patientID is null or e.accessionNumber is null or e.referringPhysicianName is null)"
+                        + " order by e.id", Long.class)
+                .setParameter(1, after).setMaxResults(batchSize).getResultList();
+    }
+
+    /**
+     * @return the ids of the next batch of series with a column not yet set
+     */
+    @Transactional
+    public List<Long> nextSeries(long after) {
+        return DicomSeriesEntity.getEntityManager()
+                .createQuery("select e.id from DicomSeriesEntity e where e.id > ?1 and (e.ppsStartDate is null"
+                        + " or e.ppsStartTime is null) order by e.id", Long.class)
+                .setParameter(1, after).setMaxResults(batchSize).getResultList();
+    }
+
+    private int backfillStudies(String column, int tag, List<Long> ids) {
+        return DicomStudyEntity.getEntityManager()
+                .createNativeQuery(String.format(BACKFILL_SQL, "DICOM_STUDY", column, "DICOM_STUDY_ATTRIBUTES",
+                        "study_id"))
+                .setParameter("tag", tag).setParameter("ids", ids).executeUpdate();
+    }
+
+    private int backfillSeries(String column, int tag, List<Long> ids) {
+        return DicomSeriesEntity.getEntityManager()
+                .createNativeQuery(String.format(BACKFILL_SQL, "DICOM_SERIES", column, "DICOM_SERIES_ATTRIBUTES",
+                        "series_id"))
+                .setParameter("tag", tag).setParameter("ids", ids).executeUpdate();
+    }
+}
@@ -9,14 +9,19 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
+
+import javax.ws.rs.BadRequestException;
 
 import org.alvearie.imaging.ingestion.entity.DicomInstanceEntity;
 import org.alvearie.imaging.ingestion.entity.DicomSeriesEntity;
 import org.alvearie.imaging.ingestion.entity.DicomStudyEntity;
 import org.alvearie.imaging.ingestion.model.result.DicomQueryModel;
 import org.dcm4che3.data.Tag;
+import org.hibernate.annotations.QueryHints;
 import org.jboss.logging.Logger;
 
+import io.quarkus.hibernate.orm.panache.PanacheEntity;
 import io.quarkus.hibernate.orm.panache.PanacheQuery;
 
 public class QueryHelper {
@@ -24,54 +29,128 @@ public class QueryHelper {
 
     public static final int PAGE_SIZE = 1000;
 
+    // Rows fetched from the database at a time when streaming
+    public static final int FETCH_SIZE = 100;
+
+    /**
+     * Builds a query selecting each matching entity once. Conditions on related
+     * entities are semi-joins rather than joins, so that no DISTINCT is needed,
+     * and each condition has its own parameters.
+     */
     public class QueryBuilder {
+        String entityAlias;
+        String selectString;
         String queryString;
         Map<String, Object> queryParameters = new HashMap<String, Object>();
+        int subqueries;
 
-        public QueryBuilder(Class<?> entity, String entityAlias, String... joins) {
-            queryString = String.format("SELECT DISTINCT %s FROM %s %s", entityAlias, entity.getSimpleName(),
-                    entityAlias);
-            for (int i = 0; i < joins.length; i += 2) {
-                queryString += String.format(" INNER JOIN %s.%s %s", entityAlias, joins[i], joins[i + 1]);
-            }
-            queryString += " WHERE ";
+        public QueryBuilder(Class<?> entity, String entityAlias) {
+            this.entityAlias = entityAlias;
+            selectString = String.format("SELECT %s FROM %s %s", entityAlias, entity.getSimpleName(), entityAlias);
+            queryString = selectString + " WHERE ";
         }
 
         public void addParameter(String entityName, String parameterName, Object parameterValue) {
-            queryString += String.format("%s %s = :%s", queryParameters.isEmpty() ? "" : " AND", entityName,
-                    parameterName);
+            parameterName = getUniqueName(parameterName);
+            queryString += String.format("%s %s = :%s", getConjunction(), entityName, parameterName);
             queryParameters.put(parameterName, parameterValue);
         }
 
         public void addListParameter(String entityName, String parameterName, List<Object> parameterValues) {
-            queryString += String.format("%s %s IN (:%s)", queryParameters.isEmpty() ? "" : " AND", entityName,
-                    parameterName);
+            parameterName = getUniqueName(parameterName);
+            queryString += String.format("%s %s IN (:%s)", getConjunction(), entityName, parameterName);
             queryParameters.put(parameterName, parameterValues);
         }
 
         public void addWildcardParameter(String entityName, String parameterName, Object parameterValue) {
-            queryString += String.format("%s %s LIKE :%s", queryParameters.isEmpty() ? "" : " AND", entityName,
-                    parameterName);
+            parameterName = getUniqueName(parameterName);
+            queryString += String.format("%s %s LIKE :%s", getConjunction(), entityName, parameterName);
             queryParameters.put(parameterName, parameterValue);
         }
 
         public void addRangeParameter(String entityName, String parameterName, Object gtValue, Object ltValue) {
             if (ltValue == null) {
-                queryString += String.format("%s %s >= :%s_GE", queryParameters.isEmpty() ? "" : " AND",
-                        entityName, parameterName);
-                queryParameters.put(parameterName + "_GE", gtValue);
+                String geName = getUniqueName(parameterName + "_GE");
+                queryString += String.format("%s %s >= :%s", getConjunction(), entityName, geName);
+                queryParameters.put(geName, gtValue);
             } else {
-                queryString += String.format("%s %s >= :%s_GT AND %s <= :%s_LT", queryParameters.isEmpty() ? "" : " AND",
-                        entityName, parameterName, entityName, parameterName);
-                queryParameters.put(parameterName + "_GT", gtValue);
-                queryParameters.put(parameterName + "_LT", ltValue);
+                String gtName = getUniqueName(parameterName + "_GT");
+                String ltName = getUniqueName(parameterName + "_LT");
+                queryString += String.format("%s %s >= :%s AND %s <= :%s", getConjunction(), entityName, gtName,
+                        entityName, ltName);
+                queryParameters.put(gtName, gtValue);
+                queryParameters.put(ltName, ltValue);
+            }
+        }
+
+        /**
+         * Matches entities with at least one related entity whose attribute has the
+         * value, or one of the values if a list.
+         *
+         * @param entity     the related entity
+         * @param parentName the attribute of the related entity referring to the
+         *                   entity
+         * @param parent     the entity, or the entity it refers to
+         */
+        public void addExistsParameter(Class<?> entity, String parentName, String parent, String entityName,
+                String parameterName, Object parameterValue) {
+            String alias = "x" + (++subqueries);
+            parameterName = getUniqueName(parameterName);
+            queryString += String.format("%s EXISTS (SELECT 1 FROM %s %s WHERE %s.%s = %s AND %s.%s %s)",
+                    getConjunction(), entity.getSimpleName(), alias, alias, parentName, parent, alias, entityName,
+                    parameterValue instanceof List ? "IN (:" + parameterName + ")" : "= :" + parameterName);
+            queryParameters.put(parameterName, parameterValue);
+        }
+
+        /**
+         * Matches the entities following the one with the cursor, in the order of
+         * {@link #getOrderedQueryString()}.
+         */
+        public void addCursorParameter(String cursor) {
+            long id;
+            try {
+                id = Long.parseLong(cursor);
+            } catch (NumberFormatException e) {
+                throw new BadRequestException("Invalid cursor: " + cursor);
+            }
+            String parameterName = getUniqueName("cursor");
+            queryString += String.format("%s %s.id > :%s", getConjunction(), entityAlias, parameterName);
+            queryParameters.put(parameterName, id);
+        }
+
+        private String getConjunction() {
+            return queryParameters.isEmpty() ? "" : " AND";
+        }
+
+        private String getUniqueName(String parameterName) {
+            String uniqueName = parameterName;
+            for (int i = 2; queryParameters.containsKey(uniqueName); i++) {
+                uniqueName = parameterName + i;
             }
+            return uniqueName;
         }
 
         public String getQueryString() {
             return queryString;
         }
 
+        /**
+         * @param fetches to-one associations read with each entity, such as
+         *                {@code "e.series s"}, so that they are not loaded
+         *                entity by entity
+         * @return the query ordered by the key the cursors of its results are
+         *         derived from, so that pages are read with an index range scan
+         *         rather than by skipping the previous pages
+         */
+        public String getOrderedQueryString(String... fetches) {
+            StringBuilder joins = new StringBuilder();
+            for (String fetch : fetches) {
+                joins.append(" JOIN FETCH ").append(fetch);
+            }
+            return selectString + joins + queryString.substring(selectString.length()) + " ORDER BY " + entityAlias
+                    + ".id";
+        }
+
         public Map<String, Object> getParameters() {
             return queryParameters;
         }
@@ -79,43 +158,127 @@ public class QueryHelper {
 
     @SuppressWarnings("unchecked")
     public List<DicomStudyEntity> queryStudies(DicomQueryModel model, String source) {
-        QueryBuilder queryBuilder = new QueryBuilder(DicomStudyEntity.class, "e", "attributes", "a", "series", "s");
-        handlePatientIeAttributes(queryBuilder, "a", model);
-        handleStudyIeAttributes(queryBuilder, "e", "a", "s", model);
-        queryBuilder.addParameter("s.provider.name", "source", source);
+        QueryBuilder queryBuilder = buildStudyQuery(model, source);
+        handleCursor(queryBuilder, model);
         LOG.info("Study Query: " + queryBuilder.getQueryString());
-        PanacheQuery<DicomStudyEntity> query = queryBuilder.getParameters().isEmpty() ? DicomStudyEntity.findAll()
-                : DicomStudyEntity.find(queryBuilder.getQueryString(), queryBuilder.getParameters());
-        LOG.info("Query Result: " + query.count());
+        PanacheQuery<DicomStudyEntity> query = DicomStudyEntity.find(queryBuilder.getOrderedQueryString(),
+                queryBuilder.getParameters());
         query = (PanacheQuery<DicomStudyEntity>) handlePagination(query, model);
         return query.list();
     }
 
     @SuppressWarnings("unchecked")
     public List<DicomSeriesEntity> querySeries(DicomQueryModel model, String source) {
-        QueryBuilder queryBuilder = new QueryBuilder(DicomSeriesEntity.class, "e", "attributes", "a", "instances", "i",
-                "study.attributes", "sa");
-        handlePatientIeAttributes(queryBuilder, "sa", model);
-        if (model.getStudyUid() != null) {
-            queryBuilder.addParameter("e.study.studyInstanceUID", "studyInstanceUID", model.getStudyUid());
-        } else {
-            handleStudyIeAttributes(queryBuilder, "e.study", "sa", "e", model);
-        }
-        handleSeriesIeAttributes(queryBuilder, "e", "a", model);
-        queryBuilder.addParameter("e.provider.name", "source", source);
+        QueryBuilder queryBuilder = buildSeriesQuery(model, source);
+        handleCursor(queryBuilder, model);
         LOG.info("Series Query: " + queryBuilder.getQueryString());
-        PanacheQuery<DicomSeriesEntity> query = queryBuilder.getParameters().isEmpty() ? DicomSeriesEntity.findAll()
-                : DicomSeriesEntity.find(queryBuilder.getQueryString(), queryBuilder.getParameters());
-        LOG.info("Query Result: " + query.count());
+        PanacheQuery<DicomSeriesEntity> query = DicomSeriesEntity.find(queryBuilder.getOrderedQueryString(),
+                queryBuilder.getParameters());
         query = (PanacheQuery<DicomSeriesEntity>) handlePagination(query, model);
         return query.list();
     }
 
     @SuppressWarnings("unchecked")
     public List<DicomInstanceEntity> queryInstances(DicomQueryModel model, String source) {
-        QueryBuilder queryBuilder = new QueryBuilder(DicomInstanceEntity.class, "e", "series.attributes", "a",
-                "series.study.attributes", "sa");
-        handlePatientIeAttributes(queryBuilder, "sa", model);
+        QueryBuilder queryBuilder = buildInstanceQuery(model, source);
+        handleCursor(queryBuilder, model);
+        LOG.info("Instances Query: " + queryBuilder.getQueryString());
+        PanacheQuery<DicomInstanceEntity> query = DicomInstanceEntity.find(queryBuilder.getOrderedQueryString(),
+                queryBuilder.getParameters());
+        query = (PanacheQuery<DicomInstanceEntity>) handlePagination(query, model);
+        return query.list();
+    }
+
+    /**
+     * Streams the results of the query from a database cursor rather than
+     * reading them into a list. The results are read only, and are not limited
+     * to a page unless the query has a limit. The associations the results refer
+     * to are fetched with them, as the persistence context is cleared while the
+     * stream is read. The stream must be closed, and read in a transaction.
+     */
+    public Stream<PanacheEntity> stream(DicomQueryModel model, String source) {
+        QueryBuilder queryBuilder;
+        PanacheQuery<PanacheEntity> query;
+        switch (model.getScope()) {
+        case SERIES:
+            queryBuilder = buildSeriesQuery(model, source);
+            handleCursor(queryBuilder, model);
+            query = DicomSeriesEntity.find(queryBuilder.getOrderedQueryString("e.study", "e.provider"),
+                    queryBuilder.getParameters());
+            break;
+        case INSTANCE:
+            queryBuilder = buildInstanceQuery(model, source);
+            handleCursor(queryBuilder, model);
+            query = DicomInstanceEntity.find(
+                    queryBuilder.getOrderedQueryString("e.series s", "s.study", "s.provider"),
+                    queryBuilder.getParameters());
+            break;
+        case STUDY:
+        default:
+            queryBuilder = buildStudyQuery(model, source);
+            handleCursor(queryBuilder, model);
+            query = DicomStudyEntity.find(queryBuilder.getOrderedQueryString(), queryBuilder.getParameters());
+            break;
+        }
+        LOG.info("Stream Query: " + queryBuilder.getQueryString());
+        query = query.withHint(QueryHints.HINT_FETCH_SIZE, FETCH_SIZE).withHint(QueryHints.HINT_READONLY, true);
+        if (model.getOffset() > 0 || model.getLimit() > 0) {
+            int startIndex = model.getOffset();
+            int endIndex = model.getLimit() > 0 ? startIndex + model.getLimit() - 1 : Integer.MAX_VALUE - 1;
+            query = query.range(startIndex, endIndex);
+        }
+        return query.stream();
+    }
+
+    /**
+     * @return the number of results of the query across all pages
+     */
+    public long count(DicomQueryModel model, String source) {
+        switch (model.getScope()) {
+        case SERIES:
+            QueryBuilder queryBuilder = buildSeriesQuery(model, source);
+            return DicomSeriesEntity.find(queryBuilder.getQueryString(), queryBuilder.getParameters()).count();
+        case INSTANCE:
+            queryBuilder = buildInstanceQuery(model, source);
+            return DicomInstanceEntity.find(queryBuilder.getQueryString(), queryBuilder.getParameters()).count();
+        case STUDY:
+        default:
+            queryBuilder = buildStudyQuery(model, source);
+            return DicomStudyEntity.find(queryBuilder.getQueryString(), queryBuilder.getParameters()).count();
+        }
+    }
+
+    /**
+     * @return the cursor of a query result, to continue the query after it
+     */
+    public static String getCursor(PanacheEntity entity) {
+        return String.valueOf(entity.id);
+    }
+
+    QueryBuilder buildStudyQuery(DicomQueryModel model, String source) {
+        QueryBuilder queryBuilder = new QueryBuilder(DicomStudyEntity.class, "e");
+        handlePatientIeAttributes(queryBuilder, "e", model);
+        handleStudyIeAttributes(queryBuilder, "e", model);
+        queryBuilder.addExistsParameter(DicomSeriesEntity.class, "study", "e", "provider.name", "source", source);
+        return queryBuilder;
+    }
+
+    QueryBuilder buildSeriesQuery(DicomQueryModel model, String source) {
+        QueryBuilder queryBuilder = new QueryBuilder(DicomSeriesEntity.class, "e");
+        handlePatientIeAttributes(queryBuilder, "e.study", model);
+        if (model.getStudyUid() != null) {
+            queryBuilder.addParameter("e.study.studyInstanceUID", "studyInstanceUID", model.getStudyUid());
+        } else {
+            handleStudyIeAttributes(queryBuilder, "e.study", model);
+        }
+        handleSeriesIeAttributes(queryBuilder, "e", model);
+        queryBuilder.addParameter("e.provider.name", "source", source);
+        return queryBuilder;
+    }
+
+    QueryBuilder buildInstanceQuery(DicomQueryModel model, String source) {
+        QueryBuilder queryBuilder = new QueryBuilder(DicomInstanceEntity.class, "e");
+        handlePatientIeAttributes(queryBuilder, "e.series.study", model);
         if (model.getStudyUid() != null) {
             queryBuilder.addParameter("e.series.study.studyInstanceUID", "studyInstanceUID", model.getStudyUid());
         }
@@ -123,41 +286,32 @@ public class QueryHelper {
             queryBuilder.addParameter("e.series.seriesInstanceUID", "seriesInstanceUID", model.getSeriesUid());
         }
 
-        handleStudyIeAttributes(queryBuilder, "e.series.study", "sa", "e.series", model);
-        handleSeriesIeAttributes(queryBuilder, "e.series", "a", model);
+        handleStudyIeAttributes(queryBuilder, "e.series.study", model);
+        handleSeriesIeAttributes(queryBuilder, "e.series", model);
         handleInstanceIeAttributes(queryBuilder, "e", model);
         queryBuilder.addParameter("e.series.provider.name", "source", source);
-        LOG.info("Instances Query: " + queryBuilder.getQueryString());
-        PanacheQuery<DicomInstanceEntity> query = queryBuilder.getParameters().isEmpty() ? DicomInstanceEntity.findAll()
-                : DicomInstanceEntity.find(queryBuilder.getQueryString(), queryBuilder.getParameters());
-        LOG.info("Query Result: " + query.count());
-        query = (PanacheQuery<DicomInstanceEntity>) handlePagination(query, model);
-        return query.list();
+        return queryBuilder;
     }
 
-    private void handlePatientIeAttributes(QueryBuilder queryBuilder, String studyAttributesAlias,
-            DicomQueryModel model) {
+    private void handlePatientIeAttributes(QueryBuilder queryBuilder, String studyAlias, DicomQueryModel model) {
         for (Map.Entry<Integer, String> attribute : model.getQueryAttributes().entrySet()) {
             switch (attribute.getKey()) {
             case Tag.PatientName:
-                queryBuilder.addParameter(studyAttributesAlias + ".tag", "tag", Integer.valueOf(attribute.getKey()));
                 if (model.isFuzzyMatching()) {
-                    queryBuilder.addWildcardParameter(studyAttributesAlias + ".value", "value",
+                    queryBuilder.addWildcardParameter(studyAlias + ".patientName", "patientName",
                             attribute.getValue().replaceAll("\\*", "%"));
                 } else {
-                    queryBuilder.addParameter(studyAttributesAlias + ".value", "value", attribute.getValue());
+                    queryBuilder.addParameter(studyAlias + ".patientName", "patientName", attribute.getValue());
                 }
                 break;
             case Tag.PatientID:
-                queryBuilder.addParameter(studyAttributesAlias + ".tag", "tag", Integer.valueOf(attribute.getKey()));
-                queryBuilder.addParameter(studyAttributesAlias + ".value", "value", attribute.getValue());
+                queryBuilder.addParameter(studyAlias + ".patientID", "patientID", attribute.getValue());
                 break;
             }
         }
     }
 
-    private void handleStudyIeAttributes(QueryBuilder queryBuilder, String studyAlias, String studyAttributesAlias,
-            String seriesAlias, DicomQueryModel model) {
+    private void handleStudyIeAttributes(QueryBuilder queryBuilder, String studyAlias, DicomQueryModel model) {
         for (Map.Entry<Integer, String> attribute : model.getQueryAttributes().entrySet()) {
             switch (attribute.getKey()) {
             case Tag.StudyInstanceUID:
@@ -197,9 +351,11 @@ public class QueryHelper {
                 }
                 break;
             case Tag.ReferringPhysicianName:
+                queryBuilder.addParameter(studyAlias + ".referringPhysicianName", "referringPhysicianName",
+                        attribute.getValue());
+                break;
             case Tag.AccessionNumber:
-                queryBuilder.addParameter(studyAttributesAlias + ".tag", "tag", Integer.valueOf(attribute.getKey()));
-                queryBuilder.addParameter(studyAttributesAlias + ".value", "value", attribute.getValue());
+                queryBuilder.addParameter(studyAlias + ".accessionNumber", "accessionNumber", attribute.getValue());
                 break;
             case Tag.ModalitiesInStudy:
                 values = attribute.getValue().split(",");
@@ -208,20 +364,21 @@ public class QueryHelper {
                     for (String value : values) {
                         parameters.add(value);
                     }
-                    queryBuilder.addListParameter(seriesAlias + ".modality", "modality", parameters);
+                    queryBuilder.addExistsParameter(DicomSeriesEntity.class, "study", studyAlias, "modality",
+                            "modalitiesInStudy", parameters);
                 } else {
-                    queryBuilder.addParameter(seriesAlias + ".modality", "modality", attribute.getValue());
+                    queryBuilder.addExistsParameter(DicomSeriesEntity.class, "study", studyAlias, "modality",
+                            "modalitiesInStudy", attribute.getValue());
                 }
             }
         }
     }
 
-    private void handleSeriesIeAttributes(QueryBuilder queryBuilder, String seriesAlias, String seriesAttributeAlias,
-            DicomQueryModel model) {
+    private void handleSeriesIeAttributes(QueryBuilder queryBuilder, String seriesAlias, DicomQueryModel model) {
         for (Map.Entry<Integer, String> attribute : model.getQueryAttributes().entrySet()) {
             switch (attribute.getKey()) {
             case Tag.Modality:
-                queryBuilder.addParameter("e.modality", "modality", attribute.getValue());
+                queryBuilder.addParameter(seriesAlias + ".modality", "modality", attribute.getValue());
                 break;
             case Tag.SeriesInstanceUID:
                 String[] values = attribute.getValue().split(",");
@@ -240,9 +397,10 @@ public class QueryHelper {
                 queryBuilder.addParameter(seriesAlias + ".number", "number", attribute.getValue());
                 break;
             case Tag.PerformedProcedureStepStartDate:
+                queryBuilder.addParameter(seriesAlias + ".ppsStartDate", "ppsStartDate", attribute.getValue());
+                break;
             case Tag.PerformedProcedureStepStartTime:
-                queryBuilder.addParameter(seriesAttributeAlias + ".tag", "tag", Integer.valueOf(attribute.getKey()));
-                queryBuilder.addParameter(seriesAttributeAlias + ".value", "value", attribute.getValue());
+                queryBuilder.addParameter(seriesAlias + ".ppsStartTime", "ppsStartTime", attribute.getValue());
             }
         }
     }
@@ -282,9 +440,16 @@ public class QueryHelper {
         }
     }
 
+    private static void handleCursor(QueryBuilder queryBuilder, DicomQueryModel model) {
+        if (model.getAfter() != null) {
+            queryBuilder.addCursorParameter(model.getAfter());
+        }
+    }
+
     private static PanacheQuery<?> handlePagination(PanacheQuery<?> query, DicomQueryModel model) {
+        // Any offset is from the cursor, and best avoided for deep pages
         int startIndex = model.getOffset();
-        int endIndex = model.getLimit() == 0 ? PAGE_SIZE : startIndex + model.getLimit();
+        int endIndex = startIndex + (model.getLimit() == 0 ? PAGE_SIZE : model.getLimit()) - 1;
         LOG.info(String.format("Range %d-%d", startIndex, endIndex));
         return query.range(startIndex, endIndex);
     }
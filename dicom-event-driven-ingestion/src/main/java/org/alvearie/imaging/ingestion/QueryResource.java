@@ -19,6 +19,7 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.alvearie.imaging.ingestion.model.result.DicomEntityResult;
 import org.alvearie.imaging.ingestion.model.result.DicomQueryModel;
@@ -29,6 +30,8 @@ import org.jboss.logging.Logger;
 public class QueryResource {
     private static final Logger LOG = Logger.getLogger(QueryResource.class);
 
+    static final String NDJSON_TYPE = "application/x-ndjson";
+
     @Inject
     RetrieveService retrieveService;
 
@@ -73,4 +76,22 @@ public class QueryResource {
         List<DicomEntityResult> instances = retrieveService.getResults(model, source);
         return Response.ok(instances).build();
     }
+
+    @POST
+    @Path("/studies/count")
+    @Consumes("application/json")
+    @Produces("application/json")
+    public Response count(DicomQueryModel model, @NotBlank @QueryParam("source") String source) {
+        return Response.ok(retrieveService.count(model, source)).build();
+    }
+
+    @POST
+    @Path("/studies/stream")
+    @Consumes("application/json")
+    @Produces(NDJSON_TYPE)
+    public Response streamResults(DicomQueryModel model, @NotBlank @QueryParam("source") String source) {
+        LOG.info("STREAM QUERY MODEL " + model.toString());
+        StreamingOutput output = out -> retrieveService.streamResults(model, source, out);
+        return Response.ok(output).build();
+    }
 }
@@ -5,29 +5,39 @@
  */
 package org.alvearie.imaging.ingestion;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.stream.Stream;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.transaction.Transactional;
 
 import org.alvearie.imaging.ingestion.entity.DicomInstanceEntity;
 import org.alvearie.imaging.ingestion.entity.DicomSeriesAttributesEntity;
 import org.alvearie.imaging.ingestion.entity.DicomSeriesEntity;
 import org.alvearie.imaging.ingestion.entity.DicomStudyAttributesEntity;
 import org.alvearie.imaging.ingestion.entity.DicomStudyEntity;
+import org.alvearie.imaging.ingestion.entity.MultiValue;
 import org.alvearie.imaging.ingestion.model.result.DicomAttribute;
 import org.alvearie.imaging.ingestion.model.result.DicomEntityResult;
 import org.alvearie.imaging.ingestion.model.result.DicomQueryModel;
 import org.alvearie.imaging.ingestion.model.result.DicomResource;
-import org.apache.commons.lang3.StringUtils;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.VR;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntity;
+
 @ApplicationScoped
 public class RetrieveService {
-    
+    @Inject
+    ObjectMapper mapper;
+
     protected DicomStudyEntity loadStudy(String studyUID, boolean lock) {
         DicomStudyEntity study = DicomStudyEntity.findByStudyInstanceUID(studyUID, lock);
         if (study != null) {
@@ -70,6 +80,9 @@ public class RetrieveService {
                         if (series.instances != null) {
                             for (DicomInstanceEntity instance : series.instances) {
                                 DicomEntityResult result = new DicomEntityResult();
+                                addAttributeToEntity(result, Tag.SeriesInstanceUID, VR.UI, series.seriesInstanceUID);
+                                addAttributeToEntity(result, Tag.SOPInstanceUID, VR.UI, instance.sopInstanceUID);
+                                addAttributeToEntity(result, Tag.TransferSyntaxUID, VR.UI, instance.transferSyntaxUID);
 
                                 DicomResource resource = new DicomResource();
                                 resource.setObjectName(instance.objectName);
@@ -81,6 +94,7 @@ public class RetrieveService {
                     }
                 }
             }
+            setRevision(results, study);
         }
 
         return results;
@@ -93,6 +107,9 @@ public class RetrieveService {
             if (series.instances != null) {
                 for (DicomInstanceEntity instance : series.instances) {
                     DicomEntityResult result = new DicomEntityResult();
+                    addAttributeToEntity(result, Tag.SeriesInstanceUID, VR.UI, series.seriesInstanceUID);
+                    addAttributeToEntity(result, Tag.SOPInstanceUID, VR.UI, instance.sopInstanceUID);
+                    addAttributeToEntity(result, Tag.TransferSyntaxUID, VR.UI, instance.transferSyntaxUID);
 
                     DicomResource resource = new DicomResource();
                     resource.setObjectName(instance.objectName);
@@ -101,6 +118,7 @@ public class RetrieveService {
                     results.add(result);
                 }
             }
+            setRevision(results, series.study);
         }
 
         return results;
@@ -112,6 +130,7 @@ public class RetrieveService {
         if (instance != null && seriesId.equals(instance.series.seriesInstanceUID)
                 && studyId.equals(instance.series.study.studyInstanceUID)) {
             DicomEntityResult result = new DicomEntityResult();
+            addAttributeToEntity(result, Tag.TransferSyntaxUID, VR.UI, instance.transferSyntaxUID);
 
             DicomResource resource = new DicomResource();
             resource.setObjectName(instance.objectName);
@@ -123,6 +142,24 @@ public class RetrieveService {
         return results;
     }
 
+    /**
+     * Marks the results with the revision of the last StudyRevisionEvent of the
+     * study, unless any of them was stored after that revision was built.
+     */
+    private void setRevision(List<DicomEntityResult> results, DicomStudyEntity study) {
+        if (study.revision == null || study.revision == 0) {
+            return;
+        }
+        for (DicomEntityResult result : results) {
+            if (result.getLastModified() == null || result.getLastModified().isAfter(study.revisionTime)) {
+                return;
+            }
+        }
+        for (DicomEntityResult result : results) {
+            result.setRevision(study.revision - 1);
+        }
+    }
+
     public List<DicomEntityResult> getResults(DicomQueryModel model, String source) {
         switch (model.getScope()) {
         case SERIES:
@@ -135,98 +172,142 @@ public class RetrieveService {
         }
     }
 
+    /**
+     * Writes the results of the query as newline delimited JSON while they are
+     * read from the database, so that a result set of any size is held in memory
+     * a batch of rows at a time.
+     */
+    @Transactional
+    public void streamResults(DicomQueryModel model, String source, OutputStream out) throws IOException {
+        try (Stream<PanacheEntity> entities = new QueryHelper().stream(model, source)) {
+            int count = 0;
+            for (Iterator<PanacheEntity> it = entities.iterator(); it.hasNext();) {
+                out.write(mapper.writeValueAsBytes(toResult(it.next())));
+                out.write('\n');
+                if (++count % QueryHelper.FETCH_SIZE == 0) {
+                    // Drop the written entities and their associations
+                    DicomStudyEntity.getEntityManager().clear();
+                    out.flush();
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private DicomEntityResult toResult(PanacheEntity entity) {
+        if (entity instanceof DicomInstanceEntity) {
+            return toResult((DicomInstanceEntity) entity);
+        } else if (entity instanceof DicomSeriesEntity) {
+            return toResult((DicomSeriesEntity) entity);
+        }
+        return toResult((DicomStudyEntity) entity);
+    }
+
+    public long count(DicomQueryModel model, String source) {
+        return new QueryHelper().count(model, source);
+    }
+
     public List<DicomEntityResult> handleStudyQuery(DicomQueryModel model, String source) {
         List<DicomEntityResult> results = new ArrayList<>();
 
         List<DicomStudyEntity> studyInstances = new QueryHelper().queryStudies(model, source);
 
         for (DicomStudyEntity studyInstance : studyInstances) {
-            DicomEntityResult searchResult = new DicomEntityResult();
-            addAttributeToEntity(searchResult, Tag.StudyDate, VR.DA, studyInstance.studyDate);
-            addAttributeToEntity(searchResult, Tag.StudyTime, VR.TM, studyInstance.studyTime);
-            addAttributeToEntity(searchResult, Tag.StudyInstanceUID, VR.UI, studyInstance.studyInstanceUID);
-            addAttributeToEntity(searchResult, Tag.StudyID, VR.SH, studyInstance.studyID);
-
-            List<DicomSeriesEntity> studySeries = studyInstance.series;
-
-            int instancesInStudy = 0;
-            String endpoint = null;
-            Set<String> modalitiesInStudy = new HashSet<String>();
-            Set<String> sopClassesInStudy = new HashSet<String>();
-            for (DicomSeriesEntity series : studySeries) {
-                instancesInStudy += series.instances.size();
-                modalitiesInStudy.add(series.modality);
-                if (StringUtils.isBlank(endpoint) && series.provider != null) {
-                    endpoint = series.provider.wadoExternalEndpoint;
-                }
-                for (DicomInstanceEntity instance : series.instances) {
-                    sopClassesInStudy.add(instance.sopClassUID);
-                }
-            }
-
-            // Build out the Query/Retrieve attributes as defined in Part 4, Table C.3-1 
-            // Missing Tag.AlternateRepresentationSequence 
-            addAttributeToEntity(searchResult, Tag.NumberOfStudyRelatedSeries, VR.IS, studySeries.size());
-            addAttributeToEntity(searchResult, Tag.NumberOfStudyRelatedInstances, VR.IS, instancesInStudy);
-            addAttributeToEntity(searchResult, Tag.ModalitiesInStudy, VR.CS, modalitiesInStudy.toArray(new String[0]));
-            addAttributeToEntity(searchResult, Tag.SOPClassesInStudy, VR.CS, sopClassesInStudy.toArray(new String[0]));
-            
-            addAttributeToEntity(searchResult, Tag.RetrieveURL, VR.UR,
-                    String.format("%s/studies/%s", endpoint, studyInstance.studyInstanceUID));
-
-            List<DicomStudyAttributesEntity> studyAttributes = studyInstance.attributes;
-            for (DicomStudyAttributesEntity studyAttribute : studyAttributes) {
-                addAttributeToEntity(searchResult, studyAttribute.tag.intValue(), VR.valueOf(studyAttribute.vr),
-                        studyAttribute.value);
-            }
-            results.add(searchResult);
+            results.add(toResult(studyInstance));
         }
         return results;
     }
 
+    private DicomEntityResult toResult(DicomStudyEntity studyInstance) {
+        DicomEntityResult searchResult = new DicomEntityResult();
+        searchResult.setCursor(QueryHelper.getCursor(studyInstance));
+        addAttributeToEntity(searchResult, Tag.StudyDate, VR.DA, studyInstance.studyDate);
+        addAttributeToEntity(searchResult, Tag.StudyTime, VR.TM, studyInstance.studyTime);
+        addAttributeToEntity(searchResult, Tag.StudyInstanceUID, VR.UI, studyInstance.studyInstanceUID);
+        addAttributeToEntity(searchResult, Tag.StudyID, VR.SH, studyInstance.studyID);
+
+        if (studyInstance.numberOfInstances == null) {
+            // Not yet summarized by the backfill
+            studyInstance.summarize();
+        }
+
+        // Build out the Query/Retrieve attributes as defined in Part 4, Table C.3-1 
+        // Missing Tag.AlternateRepresentationSequence 
+        addAttributeToEntity(searchResult, Tag.NumberOfStudyRelatedSeries, VR.IS, studyInstance.numberOfSeries);
+        addAttributeToEntity(searchResult, Tag.NumberOfStudyRelatedInstances, VR.IS,
+                studyInstance.numberOfInstances);
+        addAttributeToEntity(searchResult, Tag.ModalitiesInStudy, VR.CS,
+                MultiValue.split(studyInstance.modalities));
+        addAttributeToEntity(searchResult, Tag.SOPClassesInStudy, VR.CS,
+                MultiValue.split(studyInstance.sopClasses));
+        
+        addAttributeToEntity(searchResult, Tag.RetrieveURL, VR.UR,
+                String.format("%s/studies/%s", studyInstance.wadoExternalEndpoint, studyInstance.studyInstanceUID));
+
+        List<DicomStudyAttributesEntity> studyAttributes = studyInstance.attributes;
+        for (DicomStudyAttributesEntity studyAttribute : studyAttributes) {
+            addAttributeToEntity(searchResult, studyAttribute.tag.intValue(), VR.valueOf(studyAttribute.vr),
+                    studyAttribute.value);
+        }
+        return searchResult;
+    }
+
     public List<DicomEntityResult> handleSeriesQuery(DicomQueryModel model, String source) {
         List<DicomEntityResult> results = new ArrayList<>();
 
         List<DicomSeriesEntity> seriesInstances = new QueryHelper().querySeries(model, source);
 
         for (DicomSeriesEntity series : seriesInstances) {
-            DicomEntityResult searchResult = new DicomEntityResult();
-            addAttributeToEntity(searchResult, Tag.Modality, VR.CS, series.modality);
-            addAttributeToEntity(searchResult, Tag.SeriesInstanceUID, VR.UI, series.seriesInstanceUID);
-            addAttributeToEntity(searchResult, Tag.SeriesNumber, VR.IS, series.number);
-            addAttributeToEntity(searchResult, Tag.NumberOfSeriesRelatedInstances, VR.IS, series.instances.size());
-            addAttributeToEntity(searchResult, Tag.RetrieveURL, VR.UR, String.format("%s/studies/%s/series/%s",
-                    series.provider.wadoExternalEndpoint, series.study.studyInstanceUID, series.seriesInstanceUID));
-
-            for (DicomSeriesAttributesEntity seriesAttribute : series.attributes) {
-                addAttributeToEntity(searchResult, seriesAttribute.tag.intValue(), VR.valueOf(seriesAttribute.vr),
-                        seriesAttribute.value);
-            }
-
-            results.add(searchResult);
+            results.add(toResult(series));
         }
         return results;
     }
 
+    private DicomEntityResult toResult(DicomSeriesEntity series) {
+        DicomEntityResult searchResult = new DicomEntityResult();
+        searchResult.setCursor(QueryHelper.getCursor(series));
+        addAttributeToEntity(searchResult, Tag.Modality, VR.CS, series.modality);
+        addAttributeToEntity(searchResult, Tag.SeriesInstanceUID, VR.UI, series.seriesInstanceUID);
+        addAttributeToEntity(searchResult, Tag.SeriesNumber, VR.IS, series.number);
+        if (series.numberOfInstances == null) {
+            // Not yet summarized by the backfill
+            series.summarize();
+        }
+        addAttributeToEntity(searchResult, Tag.NumberOfSeriesRelatedInstances, VR.IS, series.numberOfInstances);
+        addAttributeToEntity(searchResult, Tag.RetrieveURL, VR.UR, String.format("%s/studies/%s/series/%s",
+                series.provider.wadoExternalEndpoint, series.study.studyInstanceUID, series.seriesInstanceUID));
+
+        for (DicomSeriesAttributesEntity seriesAttribute : series.attributes) {
+            addAttributeToEntity(searchResult, seriesAttribute.tag.intValue(), VR.valueOf(seriesAttribute.vr),
+                    seriesAttribute.value);
+        }
+        return searchResult;
+    }
+
     public List<DicomEntityResult> handleInstanceQuery(DicomQueryModel model, String source) {
         List<DicomEntityResult> results = new ArrayList<>();
 
         List<DicomInstanceEntity> instances = new QueryHelper().queryInstances(model, source);
         for (DicomInstanceEntity instance : instances) {
-            DicomEntityResult searchResult = new DicomEntityResult();
-            addAttributeToEntity(searchResult, Tag.SOPClassUID, VR.UI, instance.sopClassUID);
-            addAttributeToEntity(searchResult, Tag.SOPInstanceUID, VR.UI, instance.sopInstanceUID);
-            addAttributeToEntity(searchResult, Tag.TransferSyntaxUID, VR.UI, instance.transferSyntaxUID);
-            addAttributeToEntity(searchResult, Tag.SeriesNumber, VR.IS, instance.number);
-            addAttributeToEntity(searchResult, Tag.RetrieveURL, VR.UR,
-                    String.format("%s/studies/%s/series/%s/instances/%s", instance.series.provider.wadoExternalEndpoint,
-                            instance.series.study.studyInstanceUID, instance.series.seriesInstanceUID,
-                            instance.sopInstanceUID));
-            results.add(searchResult);
+            results.add(toResult(instance));
         }
         return results;
     }
 
+    private DicomEntityResult toResult(DicomInstanceEntity instance) {
+        DicomEntityResult searchResult = new DicomEntityResult();
+        searchResult.setCursor(QueryHelper.getCursor(instance));
+        addAttributeToEntity(searchResult, Tag.SOPClassUID, VR.UI, instance.sopClassUID);
+        addAttributeToEntity(searchResult, Tag.SOPInstanceUID, VR.UI, instance.sopInstanceUID);
+        addAttributeToEntity(searchResult, Tag.TransferSyntaxUID, VR.UI, instance.transferSyntaxUID);
+        addAttributeToEntity(searchResult, Tag.SeriesNumber, VR.IS, instance.number);
+        addAttributeToEntity(searchResult, Tag.RetrieveURL, VR.UR,
+                String.format("%s/studies/%s/series/%s/instances/%s", instance.series.provider.wadoExternalEndpoint,
+                        instance.series.study.studyInstanceUID, instance.series.seriesInstanceUID,
+                        instance.sopInstanceUID));
+        return searchResult;
+    }
+
     private DicomEntityResult addAttributeToEntity(DicomEntityResult result, int tag, VR valueRepresentation,
             int value) {
         return addAttributeToEntity(result, tag, valueRepresentation, Integer.valueOf(value).toString());
@@ -0,0 +1,72 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion;
+
+import java.util.List;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.persistence.LockModeType;
+import javax.transaction.Transactional;
+
+import org.alvearie.imaging.ingestion.entity.DicomStudyEntity;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import io.quarkus.runtime.StartupEvent;
+
+/**
+ * Summarizes the studies and series stored before their summary columns were
+ * added, so that queries can read the summaries instead of loading every
+ * instance. Runs once with the {@link BackfillRunner}, a batch per
+ * transaction; queries summarize the studies they read until then.
+ */
+@ApplicationScoped
+public class StudySummaryBackfill {
+    private static final Logger log = Logger.getLogger(StudySummaryBackfill.class);
+
+    static final String BACKFILL_NAME = "study-summary";
+
+    @ConfigProperty(name = "imaging.ingestion.study.summary.backfill.batchSize")
+    Integer batchSize;
+
+    @Inject
+    StudySummaryBackfill self;
+
+    @Inject
+    BackfillRunner backfillRunner;
+
+    void onStart(@Observes StartupEvent event) {
+        backfillRunner.submit(BACKFILL_NAME, this::backfillAll);
+    }
+
+    void backfillAll() {
+        int total = 0;
+        int count;
+        while (!Thread.currentThread().isInterrupted() && (count = self.backfill()) > 0) {
+            total += count;
+            log.debug("Summarized studies: " + total);
+        }
+        log.info("Summarized studies: " + total);
+    }
+
+    /**
+     * Summarizes a batch of studies and their series, locking the studies as
+     * ingestion does while updating their summaries.
+     *
+     * @return the number of studies summarized
+     */
+    @Transactional
+    public int backfill() {
+        List<DicomStudyEntity> studies = DicomStudyEntity.find("numberOfInstances is null")
+                .withLock(LockModeType.PESSIMISTIC_WRITE).page(0, batchSize).list();
+        for (DicomStudyEntity study : studies) {
+            study.summarize();
+        }
+        return studies.size();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alvearie.imaging.ingestion.model.result.DicomQueryModel;
+import org.alvearie.imaging.ingestion.model.result.DicomQueryModel.Scope;
+import org.dcm4che3.data.Tag;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class QueryHelperTest {
+    @Test
+    public void testCombinedKeyStudyQuery() {
+        DicomQueryModel model = new DicomQueryModel();
+        model.setScope(Scope.STUDY);
+        model.setQueryAttributes(new HashMap<>(
+                Map.of(Tag.PatientID, "patient1", Tag.AccessionNumber, "A1", Tag.ModalitiesInStudy, "CT,MR")));
+        QueryHelper.QueryBuilder queryBuilder = new QueryHelper().buildStudyQuery(model, "test");
+
+        String query = queryBuilder.getQueryString();
+        Assertions.assertFalse(query.contains("DISTINCT"), query);
+        Assertions.assertFalse(query.contains("JOIN"), query);
+        Assertions.assertTrue(query.contains("e.patientID = :patientID"), query);
+        Assertions.assertTrue(query.contains("e.accessionNumber = :accessionNumber"), query);
+        Assertions.assertTrue(query.contains("EXISTS (SELECT 1 FROM DicomSeriesEntity x1 WHERE x1.study = e"
+                + " AND x1.modality IN (:modalitiesInStudy))"), query);
+        Assertions.assertTrue(query.contains("EXISTS (SELECT 1 FROM DicomSeriesEntity x2 WHERE x2.study = e"
+                + " AND x2.provider.name = :source)"), query);
+        Assertions.assertEquals(Map.of("patientID", "patient1", "accessionNumber", "A1", "modalitiesInStudy",
+                List.of("CT", "MR"), "source", "test"), queryBuilder.getParameters());
+    }
+
+    @Test
+    public void testUniqueParameterNames() {
+        DicomQueryModel model = new DicomQueryModel();
+        model.setScope(Scope.INSTANCE);
+        model.setStudyUid("1.2");
+        model.setQueryAttributes(new HashMap<>(Map.of(Tag.StudyInstanceUID, "1.3")));
+        QueryHelper.QueryBuilder queryBuilder = new QueryHelper().buildInstanceQuery(model, "test");
+
+        Assertions.assertEquals("1.2", queryBuilder.getParameters().get("studyInstanceUID"));
+        Assertions.assertEquals("1.3", queryBuilder.getParameters().get("studyInstanceUID2"));
+        Assertions.assertTrue(
+                queryBuilder.getQueryString().contains("e.series.study.studyInstanceUID = :studyInstanceUID2"));
+    }
+
+    @Test
+    public void testFetchingQuery() {
+        DicomQueryModel model = new DicomQueryModel();
+        model.setScope(Scope.INSTANCE);
+        model.setStudyUid("1.2");
+        QueryHelper.QueryBuilder queryBuilder = new QueryHelper().buildInstanceQuery(model, "test");
+
+        String query = queryBuilder.getOrderedQueryString("e.series s", "s.study");
+        Assertions.assertTrue(query.startsWith("SELECT e FROM DicomInstanceEntity e JOIN FETCH e.series s"
+                + " JOIN FETCH s.study WHERE "), query);
+        Assertions.assertTrue(query.contains("e.series.study.studyInstanceUID = :studyInstanceUID"), query);
+        Assertions.assertTrue(query.endsWith(" ORDER BY e.id"), query);
+        Assertions.assertFalse(queryBuilder.getQueryString().contains("JOIN"));
+    }
+}
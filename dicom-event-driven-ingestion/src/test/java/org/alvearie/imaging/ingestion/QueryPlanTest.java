@@ -0,0 +1,101 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.transaction.Transactional;
+
+import org.alvearie.imaging.ingestion.model.result.DicomQueryModel;
+import org.alvearie.imaging.ingestion.model.result.DicomQueryModel.Scope;
+import org.dcm4che3.data.Tag;
+import org.hibernate.engine.query.spi.HQLQueryPlan;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.hql.spi.QueryTranslator;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.QuarkusTestProfile;
+import io.quarkus.test.junit.TestProfile;
+
+/**
+ * Checks the PostgreSQL plans of QIDO queries. Runs only when POSTGRES_TEST_URL
+ * is set to the JDBC URL of a database the schema can be created in.
+ */
+@QuarkusTest
+@TestProfile(QueryPlanTest.PostgresProfile.class)
+@EnabledIfEnvironmentVariable(named = "POSTGRES_TEST_URL", matches = ".+")
+public class QueryPlanTest {
+    public static class PostgresProfile implements QuarkusTestProfile {
+        @Override
+        public Map<String, String> getConfigOverrides() {
+            return Map.of("quarkus.datasource.db-kind", "postgresql", "quarkus.datasource.jdbc.url",
+                    System.getenv("POSTGRES_TEST_URL"), "quarkus.datasource.username",
+                    System.getenv().getOrDefault("POSTGRES_TEST_USER", "postgres"), "quarkus.datasource.password",
+                    System.getenv().getOrDefault("POSTGRES_TEST_PASSWORD", "postgres"),
+                    "quarkus.hibernate-orm.database.generation", "drop-and-create");
+        }
+    }
+
+    @Inject
+    EntityManager em;
+
+    @Test
+    @Transactional
+    public void testCombinedKeyStudyQuery() {
+        DicomQueryModel model = new DicomQueryModel();
+        model.setScope(Scope.STUDY);
+        model.setQueryAttributes(new HashMap<>(Map.of(Tag.PatientID, "patient1", Tag.AccessionNumber, "A1")));
+
+        String plan = explain(new QueryHelper().buildStudyQuery(model, "test"));
+        Assertions.assertTrue(
+                plan.contains("dicom_study_patient_id_idx") || plan.contains("dicom_study_accession_number_idx"),
+                plan);
+    }
+
+    @Test
+    @Transactional
+    public void testStudySeriesQuery() {
+        DicomQueryModel model = new DicomQueryModel();
+        model.setScope(Scope.SERIES);
+        model.setQueryAttributes(new HashMap<>(Map.of(Tag.AccessionNumber, "A1", Tag.Modality, "CT")));
+
+        String plan = explain(new QueryHelper().buildSeriesQuery(model, "test"));
+        Assertions.assertTrue(plan.contains("dicom_study_accession_number_idx"), plan);
+    }
+
+    /**
+     * @return the plan PostgreSQL chooses for the query when it cannot scan
+     *         whole tables, as it would for large ones
+     */
+    @SuppressWarnings("unchecked")
+    private String explain(QueryHelper.QueryBuilder queryBuilder) {
+        SessionFactoryImplementor factory = em.getEntityManagerFactory().unwrap(SessionFactoryImplementor.class);
+        HQLQueryPlan queryPlan = factory.getQueryPlanCache().getHQLQueryPlan(queryBuilder.getQueryString(), false,
+                Collections.emptyMap());
+        QueryTranslator translator = queryPlan.getTranslators()[0];
+        Assertions.assertFalse(translator.getSQLString().toLowerCase().contains("distinct"),
+                translator.getSQLString());
+
+        em.createNativeQuery("SET LOCAL enable_seqscan = off").executeUpdate();
+        Query explain = em.createNativeQuery("EXPLAIN " + translator.getSQLString());
+        for (Map.Entry<String, Object> parameter : queryBuilder.getParameters().entrySet()) {
+            for (int location : translator.getParameterTranslations()
+                    .getNamedParameterInformation(parameter.getKey()).getSourceLocations()) {
+                explain.setParameter(location + 1, parameter.getValue());
+            }
+        }
+        return String.join("\n", (List<String>) explain.getResultList());
+    }
+}
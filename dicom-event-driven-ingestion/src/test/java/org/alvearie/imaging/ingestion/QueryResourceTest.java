@@ -9,7 +9,9 @@ import static io.restassured.RestAssured.given;
 import static org.hamcrest.Matchers.is;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import javax.inject.Inject;
@@ -23,6 +25,7 @@ import org.alvearie.imaging.ingestion.model.result.DicomQueryModel;
 import org.alvearie.imaging.ingestion.model.result.DicomQueryModel.Scope;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.VR;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
@@ -69,6 +72,77 @@ public class QueryResourceTest {
                 .post("/query/studies?source=test").then().log().all(true).statusCode(200).body("size()", is(1));
     }
 
+    @Test
+    public void testGetStudySummary() {
+        // Storing the instance again leaves the summary unchanged
+        createData();
+        DicomQueryModel model = new DicomQueryModel();
+        model.setScope(Scope.STUDY);
+        given().log().all(true).headers("Content-Type", MediaType.APPLICATION_JSON).body(model)
+                .post("/query/studies?source=test").then().log().all(true).statusCode(200)
+                .body("[0].attributes.'00201206'.Value[0]", is("1"))
+                .body("[0].attributes.'00201208'.Value[0]", is("1"))
+                .body("[0].attributes.'00080061'.Value", is(List.of("CT")))
+                .body("[0].attributes.'00081190'.Value[0]", is("http://wado/studies/" + STUDY_ID));
+
+        model.setStudyUid(STUDY_ID);
+        model.setScope(Scope.SERIES);
+        given().log().all(true).headers("Content-Type", MediaType.APPLICATION_JSON).body(model)
+                .post("/query/studies?source=test").then().log().all(true).statusCode(200)
+                .body("[0].attributes.'00201209'.Value[0]", is("1"));
+    }
+
+    @Test
+    public void testGetStudyByPatientID() {
+        DicomQueryModel model = new DicomQueryModel();
+        model.setScope(Scope.STUDY);
+        model.setQueryAttributes(new HashMap<>(Map.of(Tag.PatientID, "patient1")));
+        given().log().all(true).headers("Content-Type", MediaType.APPLICATION_JSON).body(model)
+                .post("/query/studies?source=test").then().log().all(true).statusCode(200).body("size()", is(1));
+
+        model.setQueryAttributes(new HashMap<>(Map.of(Tag.PatientID, "patient2")));
+        given().log().all(true).headers("Content-Type", MediaType.APPLICATION_JSON).body(model)
+                .post("/query/studies?source=test").then().log().all(true).statusCode(200).body("size()", is(0));
+    }
+
+    @Test
+    public void testStreamInstances() {
+        DicomQueryModel model = new DicomQueryModel();
+        model.setScope(Scope.INSTANCE);
+        model.setQueryAttributes(new HashMap<>(Map.of(Tag.StudyInstanceUID, STUDY_ID)));
+        String body = given().log().all(true).headers("Content-Type", MediaType.APPLICATION_JSON).body(model)
+                .post("/query/studies/stream?source=test").then().log().all(true).statusCode(200)
+                .contentType(QueryResource.NDJSON_TYPE).extract().asString();
+
+        String[] lines = body.split("\n");
+        Assertions.assertEquals(1, lines.length);
+        Assertions.assertTrue(lines[0].contains(INSTANCE_ID));
+
+        given().log().all(true).headers("Content-Type", MediaType.APPLICATION_JSON).body(model)
+                .post("/query/studies/stream?source=invalid").then().log().all(true).statusCode(200)
+                .body(is(""));
+    }
+
+    @Test
+    public void testGetStudyAfterCursor() {
+        DicomQueryModel model = new DicomQueryModel();
+        model.setScope(Scope.STUDY);
+        model.setQueryAttributes(new HashMap<>(Map.of(Tag.StudyInstanceUID, STUDY_ID)));
+        String cursor = given().log().all(true).headers("Content-Type", MediaType.APPLICATION_JSON).body(model)
+                .post("/query/studies?source=test").then().log().all(true).statusCode(200).body("size()", is(1))
+                .extract().path("[0].cursor");
+
+        model.setAfter(cursor);
+        given().log().all(true).headers("Content-Type", MediaType.APPLICATION_JSON).body(model)
+                .post("/query/studies?source=test").then().log().all(true).statusCode(200).body("size()", is(0));
+        given().log().all(true).headers("Content-Type", MediaType.APPLICATION_JSON).body(model)
+                .post("/query/studies/count?source=test").then().log().all(true).statusCode(200).body(is("1"));
+
+        model.setAfter("invalid");
+        given().log().all(true).headers("Content-Type", MediaType.APPLICATION_JSON).body(model)
+                .post("/query/studies?source=test").then().log().all(true).statusCode(400);
+    }
+
     @Test
     public void testGetStudyNoResults() {
         DicomQueryModel model = new DicomQueryModel();
@@ -137,6 +211,7 @@ public class QueryResourceTest {
 
         Store store = new Store();
         store.setProvider("test");
+        store.setWadoExternalEndpoint("http://wado");
 
         data.setStore(store);
 
@@ -0,0 +1,45 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.entity;
+
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Table;
+
+import io.quarkus.hibernate.orm.panache.PanacheEntity;
+
+/**
+ * Records a one-off backfill of columns added to existing rows once it has
+ * completed, so that it is not repeated on the next start.
+ */
+@Entity
+@Table(name = "BACKFILL")
+public class BackfillEntity extends PanacheEntity {
+    @Column(name = "name", unique = true)
+    public String name;
+
+    @Column(name = "completed")
+    public OffsetDateTime completed;
+
+    public static boolean isCompleted(String name) {
+        return count("name", name) > 0;
+    }
+
+    public static void complete(String name) {
+        BackfillEntity backfill = new BackfillEntity();
+        backfill.name = name;
+        backfill.completed = OffsetDateTime.now(ZoneOffset.UTC);
+        backfill.persist();
+    }
+
+    @Override
+    public String toString() {
+        return "BackfillEntity [name=" + name + ", completed=" + completed + ", id=" + id + "]";
+    }
+}
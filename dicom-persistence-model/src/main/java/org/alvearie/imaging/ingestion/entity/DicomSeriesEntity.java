@@ -7,11 +7,13 @@ package org.alvearie.imaging.ingestion.entity;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
 
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
+import javax.persistence.Index;
 import javax.persistence.LockModeType;
 import javax.persistence.ManyToOne;
 import javax.persistence.OneToMany;
@@ -24,7 +26,8 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import io.quarkus.hibernate.orm.panache.PanacheEntity;
 
 @Entity
-@Table(name = "DICOM_SERIES")
+@Table(name = "DICOM_SERIES", indexes = { @Index(name = "dicom_series_modality_idx", columnList = "modality"),
+        @Index(name = "dicom_series_pps_start_date_idx", columnList = "pps_start_date") })
 public class DicomSeriesEntity extends PanacheEntity {
     @OneToOne(cascade = CascadeType.ALL, mappedBy = "series", fetch = FetchType.LAZY)
     public ProviderEntity provider;
@@ -47,6 +50,20 @@ public class DicomSeriesEntity extends PanacheEntity {
 
     public String modality;
 
+    // Matching keys copied from the attributes, so that queries use indexes
+    @Column(name = "pps_start_date")
+    public String ppsStartDate;
+
+    @Column(name = "pps_start_time")
+    public String ppsStartTime;
+
+    // Summary of the instances, or null until summarized
+    @Column(name = "number_of_instances")
+    public Integer numberOfInstances;
+
+    @Column(name = "sop_classes", length = 4096)
+    public String sopClasses;
+
     public void addInstance(DicomInstanceEntity inst) {
         inst.series = this;
         if (!this.instances.contains(inst)) {
@@ -54,6 +71,35 @@ public class DicomSeriesEntity extends PanacheEntity {
         }
     }
 
+    /**
+     * Updates the summary for a newly stored instance.
+     */
+    public void instanceAdded(DicomInstanceEntity inst) {
+        if (numberOfInstances == null) {
+            summarize();
+        } else {
+            numberOfInstances++;
+            sopClasses = MultiValue.add(sopClasses, inst.sopClassUID);
+        }
+    }
+
+    /**
+     * Updates the summaries of the series and study once an instance is deleted.
+     */
+    public void instanceRemoved(DicomInstanceEntity inst) {
+        this.instances.remove(inst);
+        summarize();
+        study.summarize();
+    }
+
+    /**
+     * Recomputes the summary from the instances.
+     */
+    public void summarize() {
+        numberOfInstances = instances.size();
+        sopClasses = MultiValue.join(instances.stream().map(i -> i.sopClassUID).collect(Collectors.toList()));
+    }
+
     public void addAttribute(DicomSeriesAttributesEntity attr) {
         attr.series = this;
         if (!this.attributes.contains(attr)) {
@@ -99,7 +145,8 @@ public class DicomSeriesEntity extends PanacheEntity {
     @Override
     public String toString() {
         return "DicomSeriesEntity [provider=" + provider + ", instances=" + instances + ", attributes=" + attributes
-                + ", seriesInstanceUID=" + seriesInstanceUID + ", number=" + number + ", modality=" + modality + ", id="
-                + id + "]";
+                + ", seriesInstanceUID=" + seriesInstanceUID + ", number=" + number + ", modality=" + modality
+                + ", ppsStartDate=" + ppsStartDate + ", ppsStartTime=" + ppsStartTime
+                + ", numberOfInstances=" + numberOfInstances + ", sopClasses=" + sopClasses + ", id=" + id + "]";
     }
 }
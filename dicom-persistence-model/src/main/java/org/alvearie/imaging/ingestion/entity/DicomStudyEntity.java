@@ -7,12 +7,14 @@ package org.alvearie.imaging.ingestion.entity;
 
 import java.time.OffsetDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
+import javax.persistence.Index;
 import javax.persistence.LockModeType;
 import javax.persistence.OneToMany;
 import javax.persistence.OrderBy;
@@ -21,7 +23,11 @@ import javax.persistence.Table;
 import io.quarkus.hibernate.orm.panache.PanacheEntity;
 
 @Entity
-@Table(name = "DICOM_STUDY")
+@Table(name = "DICOM_STUDY", indexes = { @Index(name = "dicom_study_patient_id_idx", columnList = "patient_id"),
+        @Index(name = "dicom_study_patient_name_idx", columnList = "patient_name"),
+        @Index(name = "dicom_study_accession_number_idx", columnList = "accession_number"),
+        @Index(name = "dicom_study_referring_physician_name_idx", columnList = "referring_physician_name"),
+        @Index(name = "dicom_study_study_date_idx", columnList = "study_date") })
 public class DicomStudyEntity extends PanacheEntity {
     @OneToMany(cascade = CascadeType.ALL, mappedBy = "study", fetch = FetchType.LAZY)
     @OrderBy("number")
@@ -42,12 +48,42 @@ public class DicomStudyEntity extends PanacheEntity {
     @Column(name = "study_time")
     public String studyTime;
 
+    // Matching keys copied from the attributes, so that queries use indexes
+    @Column(name = "patient_name", length = 512)
+    public String patientName;
+
+    @Column(name = "patient_id")
+    public String patientID;
+
+    @Column(name = "accession_number")
+    public String accessionNumber;
+
+    @Column(name = "referring_physician_name", length = 512)
+    public String referringPhysicianName;
+
     @Column(name = "revision")
     public Integer revision;
 
     @Column(name = "revision_time")
     public OffsetDateTime revisionTime;
 
+    // Summary of the series and instances, or null until summarized
+    @Column(name = "number_of_series")
+    public Integer numberOfSeries;
+
+    @Column(name = "number_of_instances")
+    public Integer numberOfInstances;
+
+    @Column(name = "modalities", length = 1024)
+    public String modalities;
+
+    @Column(name = "sop_classes", length = 4096)
+    public String sopClasses;
+
+    // WADO-RS endpoint of the first series stored with a provider
+    @Column(name = "wado_external_endpoint")
+    public String wadoExternalEndpoint;
+
     public void addSeries(DicomSeriesEntity s) {
         s.study = this;
         if (!this.series.contains(s)) {
@@ -55,6 +91,68 @@ public class DicomStudyEntity extends PanacheEntity {
         }
     }
 
+    /**
+     * Updates the summary for a newly stored series, or a stored series whose
+     * modality may have changed. The modalities are recomputed from the series,
+     * so that a modality no series has any more is dropped.
+     */
+    public void seriesStored(DicomSeriesEntity s, boolean added) {
+        if (numberOfSeries == null) {
+            summarize();
+            return;
+        }
+        if (added) {
+            numberOfSeries++;
+        }
+        List<String> seriesModalities = new ArrayList<>();
+        for (DicomSeriesEntity other : series) {
+            seriesModalities.add(other.modality);
+        }
+        modalities = MultiValue.join(seriesModalities);
+        if ((wadoExternalEndpoint == null || wadoExternalEndpoint.isBlank()) && s.provider != null) {
+            wadoExternalEndpoint = s.provider.wadoExternalEndpoint;
+        }
+    }
+
+    /**
+     * Updates the summary for a newly stored instance.
+     */
+    public void instanceAdded(DicomInstanceEntity inst) {
+        if (numberOfInstances == null) {
+            summarize();
+        } else {
+            numberOfInstances++;
+            sopClasses = MultiValue.add(sopClasses, inst.sopClassUID);
+        }
+    }
+
+    /**
+     * Recomputes the summary from the series, summarizing those that are not
+     * yet.
+     */
+    public void summarize() {
+        int instanceCount = 0;
+        List<String> seriesModalities = new ArrayList<>();
+        List<String> seriesSopClasses = new ArrayList<>();
+        String endpoint = null;
+        for (DicomSeriesEntity s : series) {
+            if (s.numberOfInstances == null) {
+                s.summarize();
+            }
+            instanceCount += s.numberOfInstances;
+            seriesModalities.add(s.modality);
+            seriesSopClasses.addAll(Arrays.asList(MultiValue.split(s.sopClasses)));
+            if ((endpoint == null || endpoint.isBlank()) && s.provider != null) {
+                endpoint = s.provider.wadoExternalEndpoint;
+            }
+        }
+        numberOfSeries = series.size();
+        numberOfInstances = instanceCount;
+        modalities = MultiValue.join(seriesModalities);
+        sopClasses = MultiValue.join(seriesSopClasses);
+        wadoExternalEndpoint = endpoint;
+    }
+
     public void addAttribute(DicomStudyAttributesEntity attr) {
         attr.study = this;
         if (!this.attributes.contains(attr)) {
@@ -86,6 +184,10 @@ public class DicomStudyEntity extends PanacheEntity {
     public String toString() {
         return "DicomStudyEntity [series=" + series + ", attributes=" + attributes + ", studyInstanceUID="
                 + studyInstanceUID + ", studyID=" + studyID + ", studyDate=" + studyDate + ", studyTime=" + studyTime
-                + ", revision=" + revision + ", revisionTime=" + revisionTime + ", id=" + id + "]";
+                + ", patientName=" + patientName + ", patientID=" + patientID + ", accessionNumber="
+                + accessionNumber + ", referringPhysicianName=" + referringPhysicianName
+                + ", revision=" + revision + ", revisionTime=" + revisionTime + ", numberOfSeries=" + numberOfSeries
+                + ", numberOfInstances=" + numberOfInstances + ", modalities=" + modalities + ", sopClasses="
+                + sopClasses + ", wadoExternalEndpoint=" + wadoExternalEndpoint + ", id=" + id + "]";
     }
 }
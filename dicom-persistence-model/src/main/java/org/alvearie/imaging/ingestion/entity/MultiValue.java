@@ -0,0 +1,56 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.entity;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Distinct values, such as modalities or SOP classes, stored in one column
+ * separated by commas.
+ */
+public final class MultiValue {
+    static final String SEPARATOR = ",";
+
+    private MultiValue() {
+    }
+
+    public static String[] split(String values) {
+        if (values == null || values.isEmpty()) {
+            return new String[0];
+        }
+        return values.split(SEPARATOR);
+    }
+
+    /**
+     * @return the values with the value appended if not already present
+     */
+    public static String add(String values, String value) {
+        if (value == null || value.isEmpty()) {
+            return values;
+        }
+        if (values == null || values.isEmpty()) {
+            return value;
+        }
+        for (String existing : split(values)) {
+            if (existing.equals(value)) {
+                return values;
+            }
+        }
+        return values + SEPARATOR + value;
+    }
+
+    public static String join(Collection<String> values) {
+        Set<String> distinct = new LinkedHashSet<>();
+        for (String value : values) {
+            if (value != null && !value.isEmpty()) {
+                distinct.add(value);
+            }
+        }
+        return String.join(SEPARATOR, distinct);
+    }
+}
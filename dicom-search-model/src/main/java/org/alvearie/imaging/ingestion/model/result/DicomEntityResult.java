@@ -16,6 +16,8 @@ import io.quarkus.runtime.annotations.RegisterForReflection;
 public class DicomEntityResult extends DicomSearchResult {
     private DicomResource resource;
     private OffsetDateTime lastModified;
+    private Integer revision;
+    private String cursor;
 
     public DicomEntityResult() {
         super();
@@ -41,4 +43,28 @@ public class DicomEntityResult extends DicomSearchResult {
     public void setLastModified(OffsetDateTime lastModified) {
         this.lastModified = lastModified;
     }
+
+    /**
+     * @return the study revision the result is unchanged since, or null if the
+     *         study has changes that are not yet part of a revision
+     */
+    public Integer getRevision() {
+        return revision;
+    }
+
+    public void setRevision(Integer revision) {
+        this.revision = revision;
+    }
+
+    /**
+     * @return the position of the result in the order of query results, to
+     *         continue the query after it
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
 }
@@ -25,6 +25,8 @@ public class DicomEntityResultSerializer extends JsonSerializer<Object> {
         gen.writeObjectField("attributes", obj.getAttributes());
         gen.writeObjectField("resource", obj.getResource());
         gen.writeObjectField("lastModified", obj.getLastModified());
+        gen.writeObjectField("revision", obj.getRevision());
+        gen.writeObjectField("cursor", obj.getCursor());
         gen.writeEndObject();
     }
 }
@@ -26,6 +26,7 @@ public class DicomQueryModel {
     private boolean fuzzyMatching;
     private int offset;
     private int limit;
+    private String after;
     private List<String> includedFields = new ArrayList<String>();
     private Map<Integer, String> queryAttributes = new HashMap<Integer, String>();
 
@@ -40,6 +41,8 @@ public class DicomQueryModel {
         builder.append(getOffset());
         builder.append(" limit : ");
         builder.append(getLimit());
+        builder.append(" after : ");
+        builder.append(getAfter());
         builder.append(" includedFields : ");
         for (String field : getIncludedFields()) {
             builder.append(field);
@@ -88,6 +91,18 @@ public class DicomQueryModel {
         this.limit = limit;
     }
 
+    /**
+     * @return the cursor of the last result of the previous page, from which the
+     *         results continue, or null for the first page
+     */
+    public String getAfter() {
+        return after;
+    }
+
+    public void setAfter(String after) {
+        this.after = after;
+    }
+
     public List<String> getIncludedFields() {
         return includedFields;
     }
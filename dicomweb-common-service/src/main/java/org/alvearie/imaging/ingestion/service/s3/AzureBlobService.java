@@ -5,20 +5,26 @@
  */
 package org.alvearie.imaging.ingestion.service.s3;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
 
 import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobContainerAsyncClient;
 import com.azure.storage.blob.BlobContainerClient;
 import com.azure.storage.blob.BlobServiceClient;
 import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobStorageException;
 import com.azure.storage.blob.specialized.BlockBlobClient;
 import com.azure.storage.common.StorageSharedKeyCredential;
 
@@ -30,20 +36,72 @@ public class AzureBlobService extends PersistenceService {
 
    
     BlobContainerClient blobContainerClient;
+    BlobContainerAsyncClient blobContainerAsyncClient;
 
     @Override
-    ByteArrayOutputStream getObject(String objectKey) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    StoredObject getObject(String objectKey) throws IOException {
+        LOG.infof("Opening %s from blob store", objectKey);
+        BlockBlobClient blobClient = blobContainerClient.getBlobClient(objectKey).getBlockBlobClient();
         try {
-            LOG.infof("Beginning retrieval of %s from blob store", objectKey);
-            BlockBlobClient blobClient = blobContainerClient.getBlobClient(objectKey).getBlockBlobClient();
-            blobClient.downloadStream(baos);
-            LOG.infof("Completed retrieval of %s from blob store", objectKey);
-        } finally {
-            baos.close();
-            LOG.infof("Failed retrieving of %s from blob store", objectKey);
+            long length = blobClient.getProperties().getBlobSize();
+            return new StoredObject(objectKey, length, blobClient.openInputStream());
+        } catch (BlobStorageException e) {
+            throw translate(objectKey, e);
+        }
+    }
+
+    @Override
+    StoredObject getObject(String objectKey, long offset, long length) throws IOException {
+        LOG.debugf("Opening %s [%d, %d] from blob store", objectKey, offset, length);
+        BlockBlobClient blobClient = blobContainerClient.getBlobClient(objectKey).getBlockBlobClient();
+        try {
+            return new StoredObject(objectKey, length, blobClient.openInputStream(new BlobRange(offset, length), null));
+        } catch (BlobStorageException e) {
+            throw translate(objectKey, e);
+        }
+    }
+
+    @Override
+    CompletableFuture<StoredObject> getObjectAsync(String objectKey) {
+        LOG.debugf("Opening %s from blob store", objectKey);
+        return getObjectAsync(objectKey, null);
+    }
+
+    @Override
+    CompletableFuture<StoredObject> getObjectAsync(String objectKey, long offset, long length) {
+        LOG.debugf("Opening %s [%d, %d] from blob store", objectKey, offset, length);
+        return getObjectAsync(objectKey, new BlobRange(offset, length));
+    }
+
+    private CompletableFuture<StoredObject> getObjectAsync(String objectKey, BlobRange range) {
+        // Completes on the client's event loop once the response starts, the
+        // content is streamed as it is read rather than buffered
+        return blobContainerAsyncClient.getBlobAsyncClient(objectKey).downloadWithResponse(range, null, null, false)
+                .map(response -> {
+                    PublisherInputStream body = new PublisherInputStream();
+                    response.getValue().subscribe(body);
+                    Long length = response.getDeserializedHeaders().getContentLength();
+                    return new StoredObject(objectKey, length == null ? -1 : length, body);
+                }).toFuture().handle((object, error) -> {
+                    if (error == null) {
+                        return object;
+                    }
+                    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                    if (cause instanceof BlobStorageException) {
+                        cause = translate(objectKey, (BlobStorageException) cause);
+                    }
+                    throw new CompletionException(cause);
+                });
+    }
+
+    @Override
+    long getObjectLength(String objectKey) throws IOException {
+        BlockBlobClient blobClient = blobContainerClient.getBlobClient(objectKey).getBlockBlobClient();
+        try {
+            return blobClient.getProperties().getBlobSize();
+        } catch (BlobStorageException e) {
+            throw translate(objectKey, e);
         }
-        return baos;
     }
 
     @Override
@@ -61,15 +119,31 @@ public class AzureBlobService extends PersistenceService {
         LOG.infof("Completed storage of %s to blob store", objectKey);
     }
 
+    @Override
+    void putObject(String objectKey, byte[] data) throws IOException {
+        LOG.debugf("Storing %s to blob store", objectKey);
+        BlobClient blobClient = blobContainerClient.getBlobClient(objectKey);
+        blobClient.upload(new ByteArrayInputStream(data), data.length, true);
+    }
+
+    private IOException translate(String objectKey, BlobStorageException e) {
+        if (e.getStatusCode() == 404) {
+            return new FileNotFoundException(objectKey);
+        }
+        return new IOException(e);
+    }
+
     @PostConstruct
     void init() throws URISyntaxException {
         String endpoint = config.getAzureConnectionString();
         StorageSharedKeyCredential credential = new StorageSharedKeyCredential(config.getAzureStorageAccountName(),
                 config.getAzureStorageAccountKey());
 
-        BlobServiceClient blobServiceClient = new BlobServiceClientBuilder().endpoint(endpoint).credential(credential)
-                .buildClient();
+        BlobServiceClientBuilder builder = new BlobServiceClientBuilder().endpoint(endpoint).credential(credential);
+        BlobServiceClient blobServiceClient = builder.buildClient();
         blobContainerClient = blobServiceClient.getBlobContainerClient(config.getAzureContainerName());
+        blobContainerAsyncClient = builder.buildAsyncClient()
+                .getBlobContainerAsyncClient(config.getAzureContainerName());
     }
 
 }
@@ -0,0 +1,135 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.s3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reads objects through an {@link ObjectCache} before falling back to the
+ * configured persistence service. Writes go straight to the persistence
+ * service. Concurrent reads of an object that is not cached wait for the first
+ * read to start caching it and are then served from the cache, larger objects
+ * as they are downloaded to disk, so the object is downloaded once whatever the
+ * pace of its readers.
+ */
+class CachingPersistenceService extends PersistenceService {
+    private final PersistenceService delegate;
+    private final ObjectCache cache;
+    private final ConcurrentMap<String, CompletableFuture<Void>> downloads = new ConcurrentHashMap<>();
+
+    CachingPersistenceService(PersistenceService delegate, ObjectCache cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    @Override
+    StoredObject getObject(String objectKey) throws IOException {
+        StoredObject object = cache.get(objectKey);
+        if (object != null) {
+            return object;
+        }
+
+        CompletableFuture<Void> download = new CompletableFuture<>();
+        CompletableFuture<Void> existing = downloads.putIfAbsent(objectKey, download);
+        if (existing != null) {
+            object = awaitDownload(objectKey, existing);
+            return object != null ? object : cache.put(delegate.getObject(objectKey));
+        }
+
+        try {
+            return cache.put(delegate.getObject(objectKey));
+        } finally {
+            finishDownload(objectKey, download);
+        }
+    }
+
+    private StoredObject awaitDownload(String objectKey, CompletableFuture<Void> download) throws IOException {
+        try {
+            download.get(cache.getSharedReadTimeout().toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + objectKey);
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        }
+        return cache.get(objectKey);
+    }
+
+    private void finishDownload(String objectKey, CompletableFuture<Void> download) {
+        downloads.remove(objectKey, download);
+        download.complete(null);
+    }
+
+    @Override
+    CompletableFuture<StoredObject> getObjectAsync(String objectKey) {
+        StoredObject object = cache.get(objectKey);
+        if (object != null) {
+            return CompletableFuture.completedFuture(object);
+        }
+        // Small objects are cached as the caller reads them, as nothing may be
+        // read on the thread completing the download
+        return delegate.getObjectAsync(objectKey).thenApply(downloaded -> {
+            try {
+                return cache.putWhileRead(downloaded);
+            } catch (IOException e) {
+                // Caching is best effort
+                return downloaded;
+            }
+        });
+    }
+
+    @Override
+    StoredObject getObject(String objectKey, long offset, long length) throws IOException {
+        StoredObject object = cache.get(objectKey, offset, length);
+        if (object != null) {
+            return object;
+        }
+        // Ranges do not populate the cache, the whole object is cached once read
+        return delegate.getObject(objectKey, offset, length);
+    }
+
+    @Override
+    CompletableFuture<StoredObject> getObjectAsync(String objectKey, long offset, long length) {
+        try {
+            StoredObject object = cache.get(objectKey, offset, length);
+            if (object != null) {
+                return CompletableFuture.completedFuture(object);
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return delegate.getObjectAsync(objectKey, offset, length);
+    }
+
+    @Override
+    long getObjectLength(String objectKey) throws IOException {
+        try (StoredObject object = cache.get(objectKey)) {
+            // Unknown while being downloaded without a length
+            if (object != null && object.getLength() >= 0) {
+                return object.getLength();
+            }
+        }
+        return delegate.getObjectLength(objectKey);
+    }
+
+    @Override
+    void putObject(StoreContext ctx) throws NoSuchAlgorithmException, IOException {
+        delegate.putObject(ctx);
+    }
+
+    @Override
+    void putObject(String objectKey, byte[] data) throws IOException {
+        delegate.putObject(objectKey, data);
+    }
+}
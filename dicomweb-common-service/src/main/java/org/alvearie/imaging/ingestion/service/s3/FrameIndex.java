@@ -0,0 +1,137 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Location of each pixel data frame within a stored DICOM object. Native
+ * frames are described by a single fragment; encapsulated frames by the value
+ * of each of their fragment items. Offsets are absolute byte positions within
+ * the stored object, so a frame can be read with ranged reads only.
+ */
+public class FrameIndex {
+    public static final String OBJECT_SUFFIX = ".frames";
+
+    private static final int MAGIC = 0x46494458;
+    private static final int VERSION = 1;
+
+    private final String transferSyntaxUID;
+    private final boolean encapsulated;
+    private final long pixelDataOffset;
+    private final long[][] fragmentOffsets;
+    private final int[][] fragmentLengths;
+
+    public FrameIndex(String transferSyntaxUID, boolean encapsulated, long pixelDataOffset, long[][] fragmentOffsets,
+            int[][] fragmentLengths) {
+        if (fragmentOffsets.length != fragmentLengths.length) {
+            throw new IllegalArgumentException("Fragment offsets and lengths differ in number of frames");
+        }
+        this.transferSyntaxUID = transferSyntaxUID;
+        this.encapsulated = encapsulated;
+        this.pixelDataOffset = pixelDataOffset;
+        this.fragmentOffsets = fragmentOffsets;
+        this.fragmentLengths = fragmentLengths;
+    }
+
+    public String getTransferSyntaxUID() {
+        return transferSyntaxUID;
+    }
+
+    public boolean isEncapsulated() {
+        return encapsulated;
+    }
+
+    /**
+     * @return position of the first byte of the pixel data value
+     */
+    public long getPixelDataOffset() {
+        return pixelDataOffset;
+    }
+
+    public int getNumberOfFrames() {
+        return fragmentOffsets.length;
+    }
+
+    /**
+     * @param frame 1-based frame number
+     */
+    public long[] getFragmentOffsets(int frame) {
+        return fragmentOffsets[frame - 1];
+    }
+
+    /**
+     * @param frame 1-based frame number
+     */
+    public int[] getFragmentLengths(int frame) {
+        return fragmentLengths[frame - 1];
+    }
+
+    /**
+     * @param frame 1-based frame number
+     */
+    public long getFrameLength(int frame) {
+        long length = 0;
+        for (int fragmentLength : getFragmentLengths(frame)) {
+            length += fragmentLength;
+        }
+        return length;
+    }
+
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(baos)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(transferSyntaxUID);
+            out.writeBoolean(encapsulated);
+            out.writeLong(pixelDataOffset);
+            out.writeInt(fragmentOffsets.length);
+            for (int i = 0; i < fragmentOffsets.length; i++) {
+                out.writeInt(fragmentOffsets[i].length);
+                for (int j = 0; j < fragmentOffsets[i].length; j++) {
+                    out.writeLong(fragmentOffsets[i][j]);
+                    out.writeInt(fragmentLengths[i][j]);
+                }
+            }
+        }
+        return baos.toByteArray();
+    }
+
+    public static FrameIndex fromBytes(byte[] data) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported frame index format");
+            }
+            String transferSyntaxUID = in.readUTF();
+            boolean encapsulated = in.readBoolean();
+            long pixelDataOffset = in.readLong();
+            int numberOfFrames = in.readInt();
+            long[][] offsets = new long[numberOfFrames][];
+            int[][] lengths = new int[numberOfFrames][];
+            for (int i = 0; i < numberOfFrames; i++) {
+                int fragments = in.readInt();
+                offsets[i] = new long[fragments];
+                lengths[i] = new int[fragments];
+                for (int j = 0; j < fragments; j++) {
+                    offsets[i][j] = in.readLong();
+                    lengths[i][j] = in.readInt();
+                }
+            }
+            return new FrameIndex(transferSyntaxUID, encapsulated, pixelDataOffset, offsets, lengths);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FrameIndex [transferSyntaxUID=" + transferSyntaxUID + ", encapsulated=" + encapsulated
+                + ", pixelDataOffset=" + pixelDataOffset + ", numberOfFrames=" + getNumberOfFrames() + "]";
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.imageio.codec.ImageDescriptor;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.util.ByteUtils;
+import org.dcm4che3.util.StreamUtils;
+import org.jboss.logging.Logger;
+
+/**
+ * Builds a {@link FrameIndex} by reading the pixel data element headers of a
+ * DICOM object. Native pixel data is skipped over. Encapsulated frames are
+ * located with the Extended Offset Table without reading any item, or else by
+ * walking the items and grouping fragments into frames with the Basic Offset
+ * Table or, lacking one, the codestream start marker of each fragment.
+ */
+public class FrameIndexBuilder {
+    private static final Logger LOG = Logger.getLogger(FrameIndexBuilder.class);
+
+    private static final int ITEM_HEADER_LENGTH = 8;
+    private static final int MARKER_LENGTH = 4;
+
+    public FrameIndex build(File file) throws IOException {
+        try (DicomInputStream dis = new DicomInputStream(file)) {
+            return build(dis);
+        }
+    }
+
+    /**
+     * @return the frame index, or null when the object has no pixel data or its
+     *         fragments can not be mapped to frames
+     */
+    public FrameIndex build(DicomInputStream dis) throws IOException {
+        Attributes dataset = dis.readDatasetUntilPixelData();
+        if (dis.tag() != Tag.PixelData) {
+            return null;
+        }
+        return build(dis, dataset);
+    }
+
+    /**
+     * Continues reading a stream positioned after the pixel data element header.
+     * 
+     * @param dataset the attributes read up to the pixel data element
+     */
+    public FrameIndex build(DicomInputStream dis, Attributes dataset) throws IOException {
+        int numberOfFrames = dataset.getInt(Tag.NumberOfFrames, 1);
+        if (dis.length() != -1) {
+            return buildNative(dis, dataset, numberOfFrames);
+        }
+        return buildEncapsulated(dis, dataset, numberOfFrames);
+    }
+
+    private FrameIndex buildNative(DicomInputStream dis, Attributes dataset, int numberOfFrames) {
+        long pixelDataOffset = dis.getPosition();
+        long pixelDataLength = dis.length() & 0xFFFFFFFFL;
+        int frameLength = new ImageDescriptor(dataset).getFrameLength();
+        if ((long) frameLength * numberOfFrames > pixelDataLength) {
+            LOG.warnf("Pixel data length %d is less than %d frames of %d bytes", pixelDataLength, numberOfFrames,
+                    frameLength);
+            return null;
+        }
+
+        long[][] offsets = new long[numberOfFrames][];
+        int[][] lengths = new int[numberOfFrames][];
+        for (int i = 0; i < numberOfFrames; i++) {
+            offsets[i] = new long[] { pixelDataOffset + (long) i * frameLength };
+            lengths[i] = new int[] { frameLength };
+        }
+        return new FrameIndex(dis.getTransferSyntax(), false, pixelDataOffset, offsets, lengths);
+    }
+
+    private FrameIndex buildEncapsulated(DicomInputStream dis, Attributes dataset, int numberOfFrames)
+            throws IOException {
+        long pixelDataOffset = dis.getPosition();
+        long[] basicOffsetTable = null;
+        List<Long> fragmentOffsets = new ArrayList<>();
+        List<Integer> fragmentLengths = new ArrayList<>();
+        List<Boolean> frameStarts = new ArrayList<>();
+
+        while (dis.readHeader() && dis.tag() == Tag.Item) {
+            int length = dis.length();
+            if (basicOffsetTable == null) {
+                basicOffsetTable = readBasicOffsetTable(dis, length);
+                FrameIndex frameIndex = buildFromExtendedOffsetTable(dis, dataset, numberOfFrames, pixelDataOffset);
+                if (frameIndex != null) {
+                    return frameIndex;
+                }
+            } else {
+                fragmentOffsets.add(dis.getPosition());
+                fragmentLengths.add(length);
+                byte[] marker = new byte[Math.min(length, MARKER_LENGTH)];
+                StreamUtils.readFully(dis, marker, 0, marker.length);
+                StreamUtils.skipFully(dis, length - marker.length);
+                frameStarts.add(isFrameStart(marker));
+            }
+        }
+
+        int[] firstFragments = mapFragmentsToFrames(numberOfFrames, basicOffsetTable, fragmentOffsets, frameStarts);
+        if (firstFragments == null) {
+            LOG.warnf("Unable to map %d fragments to %d frames", fragmentOffsets.size(), numberOfFrames);
+            return null;
+        }
+
+        long[][] offsets = new long[numberOfFrames][];
+        int[][] lengths = new int[numberOfFrames][];
+        for (int i = 0; i < numberOfFrames; i++) {
+            int start = firstFragments[i];
+            int end = i + 1 < numberOfFrames ? firstFragments[i + 1] : fragmentOffsets.size();
+            offsets[i] = new long[end - start];
+            lengths[i] = new int[end - start];
+            for (int j = start; j < end; j++) {
+                offsets[i][j - start] = fragmentOffsets.get(j);
+                lengths[i][j - start] = fragmentLengths.get(j);
+            }
+        }
+        return new FrameIndex(dis.getTransferSyntax(), true, pixelDataOffset, offsets, lengths);
+    }
+
+    /**
+     * The Extended Offset Table holds the offset and length of each frame, which
+     * is a single fragment, so no fragment item has to be read.
+     * 
+     * @return the frame index, or null if the object has no usable Extended
+     *         Offset Table
+     */
+    private FrameIndex buildFromExtendedOffsetTable(DicomInputStream dis, Attributes dataset, int numberOfFrames,
+            long pixelDataOffset) throws IOException {
+        long[] extendedOffsets = toLongs(dataset.getBytes(Tag.ExtendedOffsetTable));
+        long[] extendedLengths = toLongs(dataset.getBytes(Tag.ExtendedOffsetTableLengths));
+        if (extendedOffsets == null || extendedLengths == null || extendedOffsets.length != numberOfFrames
+                || extendedLengths.length != numberOfFrames) {
+            return null;
+        }
+
+        // Offsets are relative to the first fragment item tag, which follows the
+        // Basic Offset Table item just read
+        long firstItem = dis.getPosition();
+        long[][] offsets = new long[numberOfFrames][];
+        int[][] lengths = new int[numberOfFrames][];
+        for (int i = 0; i < numberOfFrames; i++) {
+            if (extendedLengths[i] > Integer.MAX_VALUE) {
+                return null;
+            }
+            offsets[i] = new long[] { firstItem + extendedOffsets[i] + ITEM_HEADER_LENGTH };
+            lengths[i] = new int[] { (int) extendedLengths[i] };
+        }
+        return new FrameIndex(dis.getTransferSyntax(), true, pixelDataOffset, offsets, lengths);
+    }
+
+    /**
+     * @return the index of the first fragment of each frame, or null if the
+     *         frame boundaries can not be determined
+     */
+    private int[] mapFragmentsToFrames(int numberOfFrames, long[] basicOffsetTable, List<Long> fragmentOffsets,
+            List<Boolean> frameStarts) {
+        int fragments = fragmentOffsets.size();
+        if (fragments == 0 || fragments < numberOfFrames) {
+            return null;
+        }
+
+        int[] firstFragments = new int[numberOfFrames];
+        if (fragments == numberOfFrames) {
+            for (int i = 0; i < numberOfFrames; i++) {
+                firstFragments[i] = i;
+            }
+            return firstFragments;
+        }
+        if (numberOfFrames == 1) {
+            return firstFragments;
+        }
+        if (basicOffsetTable != null && basicOffsetTable.length == numberOfFrames) {
+            // Basic Offset Table entries are relative to the first fragment item tag
+            long firstItem = fragmentOffsets.get(0) - ITEM_HEADER_LENGTH;
+            int fragment = 0;
+            for (int i = 0; i < numberOfFrames; i++) {
+                long itemOffset = firstItem + basicOffsetTable[i];
+                while (fragment < fragments && fragmentOffsets.get(fragment) - ITEM_HEADER_LENGTH < itemOffset) {
+                    fragment++;
+                }
+                if (fragment == fragments || fragmentOffsets.get(fragment) - ITEM_HEADER_LENGTH != itemOffset) {
+                    return null;
+                }
+                firstFragments[i] = fragment;
+            }
+            return firstFragments;
+        }
+        if (frameStarts.get(0)) {
+            // Without offsets, a frame starts with each fragment that starts a
+            // codestream
+            int frame = 0;
+            for (int i = 0; i < fragments; i++) {
+                if (frameStarts.get(i)) {
+                    if (frame == numberOfFrames) {
+                        return null;
+                    }
+                    firstFragments[frame++] = i;
+                }
+            }
+            return frame == numberOfFrames ? firstFragments : null;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the fragment starts with a JPEG SOI or JPEG 2000 SOC and SIZ
+     *         marker
+     */
+    private static boolean isFrameStart(byte[] marker) {
+        if (marker.length < MARKER_LENGTH || marker[0] != (byte) 0xFF) {
+            return false;
+        }
+        return marker[1] == (byte) 0xD8 || (marker[1] == (byte) 0x4F && marker[2] == (byte) 0xFF
+                && marker[3] == (byte) 0x51);
+    }
+
+    private static long[] toLongs(byte[] value) {
+        if (value == null || value.length == 0) {
+            return null;
+        }
+        long[] longs = new long[value.length / 8];
+        ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(longs);
+        return longs;
+    }
+
+    private long[] readBasicOffsetTable(DicomInputStream dis, int length) throws IOException {
+        byte[] table = new byte[length];
+        StreamUtils.readFully(dis, table, 0, length);
+        long[] offsets = new long[length / 4];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = ByteUtils.bytesToIntLE(table, i * 4) & 0xFFFFFFFFL;
+        }
+        return offsets;
+    }
+}
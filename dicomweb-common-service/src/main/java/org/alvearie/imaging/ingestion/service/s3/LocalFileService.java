@@ -5,10 +5,10 @@
  */
 package org.alvearie.imaging.ingestion.service.s3;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
@@ -24,19 +24,30 @@ public class LocalFileService extends PersistenceService {
     private static final Logger LOG = Logger.getLogger(LocalFileService.class);
 
     @Override
-    ByteArrayOutputStream getObject(String objectKey) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    StoredObject getObject(String objectKey) throws IOException {
         File storedFile = Paths.get(config.getLocalStoragePath(), objectKey).toFile();
-        if (storedFile.exists() && storedFile.canRead()) {
-            FileInputStream fis = new FileInputStream(storedFile);
-            try {
-                fis.transferTo(baos);
-            } finally {
-                fis.close();
-            }
+        if (!storedFile.exists() || !storedFile.canRead()) {
+            throw new FileNotFoundException(objectKey);
+        }
+        return new StoredObject(objectKey, FileChannel.open(storedFile.toPath()), 0, storedFile.length());
+    }
 
+    @Override
+    StoredObject getObject(String objectKey, long offset, long length) throws IOException {
+        File storedFile = Paths.get(config.getLocalStoragePath(), objectKey).toFile();
+        if (!storedFile.exists() || !storedFile.canRead()) {
+            throw new FileNotFoundException(objectKey);
+        }
+        return new StoredObject(objectKey, FileChannel.open(storedFile.toPath()), offset, length);
+    }
+
+    @Override
+    long getObjectLength(String objectKey) throws IOException {
+        File storedFile = Paths.get(config.getLocalStoragePath(), objectKey).toFile();
+        if (!storedFile.exists() || !storedFile.canRead()) {
+            throw new FileNotFoundException(objectKey);
         }
-        return baos;
+        return storedFile.length();
     }
 
     @Override
@@ -60,4 +71,15 @@ public class LocalFileService extends PersistenceService {
                 StandardCopyOption.REPLACE_EXISTING);
     }
 
+    @Override
+    void putObject(String objectKey, byte[] data) throws IOException {
+        File bucketDir = Paths.get(config.getLocalStoragePath()).toFile();
+        if (!bucketDir.exists()) {
+            bucketDir.mkdir();
+        }
+
+        LOG.debugf("Storing %s to %s", objectKey, bucketDir.getPath());
+        Files.write(Paths.get(bucketDir.getPath(), objectKey), data);
+    }
+
 }
@@ -0,0 +1,113 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.s3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.json.JSONWriter;
+
+/**
+ * The metadata of a stored instance serialized as a DICOM JSON object, stored
+ * next to the instance so that metadata requests do not need to read the
+ * object itself. The pixel data BulkDataURI is stored relative to
+ * {@link #BASE_URI_TEMPLATE}, which is replaced with the WADO-RS base URI of
+ * the request as the sidecar is written out, or in the parsed attributes.
+ */
+public class MetadataSidecar {
+    public static final String OBJECT_SUFFIX = ".metadata.json";
+    public static final String BASE_URI_TEMPLATE = "{+WadoBaseURI}";
+
+    private static final byte[] TEMPLATE_BYTES = BASE_URI_TEMPLATE.getBytes(StandardCharsets.UTF_8);
+
+    private MetadataSidecar() {
+    }
+
+    /**
+     * @param metadata    the attributes up to the pixel data element
+     * @param pixelDataVR the VR of the pixel data element, or null if the
+     *                    object has no pixel data
+     */
+    public static byte[] toBytes(Attributes metadata, VR pixelDataVR, boolean bigEndian) {
+        Attributes attrs = new Attributes(metadata);
+        if (pixelDataVR != null) {
+            attrs.setValue(Tag.PixelData, pixelDataVR, new BulkData(null, getBulkDataURI(metadata), bigEndian));
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        JsonGenerator gen = Json.createGenerator(baos);
+        new JSONWriter(gen).write(attrs);
+        gen.flush();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Writes the sidecar, or a document concatenating sidecars, with the base URI
+     * template replaced by the given URI. The document is not copied.
+     */
+    public static void write(byte[] sidecar, String baseURI, OutputStream out) throws IOException {
+        byte[] base = baseURI.getBytes(StandardCharsets.UTF_8);
+        int start = 0;
+        for (int i = indexOfTemplate(sidecar, 0); i >= 0; i = indexOfTemplate(sidecar, start)) {
+            out.write(sidecar, start, i - start);
+            out.write(base);
+            start = i + TEMPLATE_BYTES.length;
+        }
+        out.write(sidecar, start, sidecar.length - start);
+    }
+
+    /**
+     * Replaces the base URI template in the pixel data BulkDataURI of the parsed
+     * sidecar.
+     *
+     * @return the attributes
+     */
+    public static Attributes resolve(Attributes metadata, String baseURI) {
+        Object value = metadata.getValue(Tag.PixelData);
+        if (value instanceof BulkData) {
+            BulkData bulkData = (BulkData) value;
+            String uri = bulkData.getURI();
+            if (uri != null && uri.startsWith(BASE_URI_TEMPLATE)) {
+                metadata.setValue(Tag.PixelData, metadata.getVR(Tag.PixelData),
+                        new BulkData(null, baseURI + uri.substring(BASE_URI_TEMPLATE.length()), bulkData.bigEndian()));
+            }
+        }
+        return metadata;
+    }
+
+    private static int indexOfTemplate(byte[] b, int from) {
+        for (int i = from; i <= b.length - TEMPLATE_BYTES.length; i++) {
+            if (matchesTemplate(b, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matchesTemplate(byte[] b, int offset) {
+        for (int j = 0; j < TEMPLATE_BYTES.length; j++) {
+            if (b[offset + j] != TEMPLATE_BYTES[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String getBulkDataURI(Attributes metadata) {
+        return String.format("%s/studies/%s/series/%s/instances/%s/bulkdata/7FE00010", BASE_URI_TEMPLATE,
+                metadata.getString(Tag.StudyInstanceUID), metadata.getString(Tag.SeriesInstanceUID),
+                metadata.getString(Tag.SOPInstanceUID));
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * Two tier read-through cache of stored objects: small objects are kept on the
+ * heap, larger ones in files on a local disk. Both tiers are bounded by bytes
+ * and evict with Caffeine's W-TinyLFU policy. Object keys are content
+ * addresses, so cached objects are never invalidated.
+ * <p>
+ * Objects for the disk tier are downloaded to their file on a fill thread.
+ * Readers read the file as it is written, so the download neither waits for
+ * the pace of a reader nor stops when a reader does.
+ */
+@ApplicationScoped
+public class ObjectCache {
+    private static final Logger LOG = Logger.getLogger(ObjectCache.class);
+
+    static final String METRIC_NAME = "store.object.cache";
+
+    @ConfigProperty(name = "store.cache.enabled", defaultValue = "false")
+    boolean enabled;
+
+    @ConfigProperty(name = "store.cache.heap.max-bytes", defaultValue = "67108864")
+    long heapMaxBytes;
+
+    @ConfigProperty(name = "store.cache.heap.max-object-bytes", defaultValue = "1048576")
+    long heapMaxObjectBytes;
+
+    @ConfigProperty(name = "store.cache.disk.path")
+    Optional<String> diskPath;
+
+    @ConfigProperty(name = "store.cache.disk.max-bytes", defaultValue = "10737418240")
+    long diskMaxBytes;
+
+    @ConfigProperty(name = "store.cache.disk.fill-threads", defaultValue = "32")
+    int fillThreads;
+
+    @ConfigProperty(name = "store.cache.shared-read.timeout", defaultValue = "PT30S")
+    Duration sharedReadTimeout;
+
+    private Cache<String, byte[]> heap;
+    private Cache<String, DiskEntry> disk;
+    private Path diskDirectory;
+    private final ConcurrentMap<String, Fill> fills = new ConcurrentHashMap<>();
+    private ExecutorService fillExecutor;
+
+    private static class DiskEntry {
+        private final Path path;
+        private final long length;
+
+        private DiskEntry(Path path, long length) {
+            this.path = path;
+            this.length = length;
+        }
+    }
+
+    @PostConstruct
+    void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+
+        heap = Caffeine.newBuilder().maximumWeight(heapMaxBytes).weigher((String k, byte[] v) -> v.length)
+                .recordStats().build();
+        CaffeineCacheMetrics.monitor(Metrics.globalRegistry, heap, METRIC_NAME, Tags.of("tier", "heap"));
+        LOG.infof("Caching objects up to %d bytes on heap, %d bytes total", heapMaxObjectBytes, heapMaxBytes);
+
+        if (diskPath.isPresent()) {
+            diskDirectory = Paths.get(diskPath.get());
+            Files.createDirectories(diskDirectory);
+            clearDirectory(diskDirectory);
+            // Weighed in KiB, as an object may be larger than an int weight
+            disk = Caffeine.newBuilder().maximumWeight(toKiB(diskMaxBytes))
+                    .weigher((String k, DiskEntry v) -> (int) Math.min(toKiB(v.length), Integer.MAX_VALUE))
+                    .removalListener((String k, DiskEntry v, RemovalCause cause) -> {
+                        // A replaced entry shares the file of its replacement
+                        if (v != null && cause != RemovalCause.REPLACED) {
+                            deleteQuietly(v.path);
+                        }
+                    }).recordStats().build();
+            CaffeineCacheMetrics.monitor(Metrics.globalRegistry, disk, METRIC_NAME, Tags.of("tier", "disk"));
+            LOG.infof("Caching objects in %s, %d bytes total", diskDirectory, diskMaxBytes);
+        }
+    }
+
+    @PreDestroy
+    synchronized void shutdown() {
+        if (fillExecutor != null) {
+            fillExecutor.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return how long a read waits for a concurrent read of the same object to
+     *         start caching it before reading the object itself
+     */
+    Duration getSharedReadTimeout() {
+        return sharedReadTimeout;
+    }
+
+    /**
+     * @return the cached object, which may still be being downloaded to disk, or
+     *         null when it is not cached
+     */
+    StoredObject get(String objectKey) {
+        // Looked up first, as a completed fill is in the disk tier once removed
+        Fill fill = fills.get(objectKey);
+        if (fill != null) {
+            try {
+                StoredObject object = fill.open();
+                if (object != null) {
+                    return object;
+                }
+            } catch (IOException e) {
+                LOG.debugf("Failed joining the download of %s: %s", objectKey, e.getMessage());
+            }
+        }
+
+        byte[] data = heap.getIfPresent(objectKey);
+        if (data != null) {
+            return new StoredObject(objectKey, data.length, new ByteArrayInputStream(data));
+        }
+
+        DiskEntry entry = getDiskEntry(objectKey);
+        if (entry != null) {
+            try {
+                return new StoredObject(objectKey, FileChannel.open(entry.path), 0, entry.length);
+            } catch (IOException e) {
+                // Evicted after the lookup
+                LOG.debugf("Cached file of %s is gone: %s", objectKey, e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the cached range of the object, or null when it is not cached
+     */
+    StoredObject get(String objectKey, long offset, long length) {
+        byte[] data = heap.getIfPresent(objectKey);
+        if (data != null) {
+            int from = (int) Math.min(offset, data.length);
+            int count = (int) Math.min(length, data.length - from);
+            return new StoredObject(objectKey, count, new ByteArrayInputStream(data, from, count));
+        }
+
+        DiskEntry entry = getDiskEntry(objectKey);
+        if (entry != null) {
+            // A range past the end is read short, as from the heap tier
+            long from = Math.min(offset, entry.length);
+            long count = Math.min(length, entry.length - from);
+            try {
+                return new StoredObject(objectKey, FileChannel.open(entry.path), from, count);
+            } catch (IOException e) {
+                LOG.debugf("Cached file of %s is gone: %s", objectKey, e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Caches the object. Small objects are read into memory right away, others
+     * are downloaded to disk on a fill thread, and the object returned reads the
+     * part downloaded so far. Concurrent gets of the object read the same
+     * download.
+     */
+    StoredObject put(StoredObject object) throws IOException {
+        String objectKey = object.getObjectKey();
+        long length = object.getLength();
+        if (length >= 0 && length <= heapMaxObjectBytes) {
+            byte[] data;
+            try (object) {
+                data = object.getInputStream().readAllBytes();
+            }
+            heap.put(objectKey, data);
+            return new StoredObject(objectKey, data.length, new ByteArrayInputStream(data));
+        }
+
+        if (disk == null || length > diskMaxBytes) {
+            return object;
+        }
+        Path path = diskDirectory.resolve(URLEncoder.encode(objectKey, StandardCharsets.UTF_8));
+        Path temp = diskDirectory.resolve(path.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        Fill fill = new Fill(object, path, temp);
+        // Opened before the fill runs, which may complete before a later open
+        StoredObject filled = fill.open();
+        fills.put(objectKey, fill);
+        getFillExecutor().execute(fill);
+        return filled;
+    }
+
+    private synchronized ExecutorService getFillExecutor() {
+        if (fillExecutor == null) {
+            fillExecutor = Executors.newFixedThreadPool(Math.max(1, fillThreads));
+        }
+        return fillExecutor;
+    }
+
+    /**
+     * Caches the object like {@link #put(StoredObject)}, but small objects are
+     * cached as the caller reads them. Nothing is read before returning, so it
+     * may be called on the thread that completes an asynchronous read.
+     */
+    StoredObject putWhileRead(StoredObject object) throws IOException {
+        long length = object.getLength();
+        if (length >= 0 && length <= heapMaxObjectBytes) {
+            String objectKey = object.getObjectKey();
+            return new StoredObject(objectKey, length,
+                    new CachingInputStream(object.getInputStream(), objectKey, length));
+        }
+        return put(object);
+    }
+
+    private static long toKiB(long bytes) {
+        return (bytes + 1023) / 1024;
+    }
+
+    private DiskEntry getDiskEntry(String objectKey) {
+        return disk == null ? null : disk.getIfPresent(objectKey);
+    }
+
+    private static void clearDirectory(Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                deleteQuietly(file);
+            }
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOG.warn("Failed to delete cached file " + path, e);
+        }
+    }
+
+    /**
+     * Copies what is read to memory, and puts the copy in the heap tier once the
+     * object was read completely.
+     */
+    private class CachingInputStream extends FilterInputStream {
+        private final String objectKey;
+        private final long length;
+        private ByteArrayOutputStream copy;
+        private boolean eof;
+
+        CachingInputStream(InputStream in, String objectKey, long length) {
+            super(in);
+            this.objectKey = objectKey;
+            this.length = length;
+            this.copy = new ByteArrayOutputStream((int) length);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                eof = true;
+            } else if (copy != null) {
+                copy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read < 0) {
+                eof = true;
+            } else if (copy != null) {
+                copy.write(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes can not be cached
+            copy = null;
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (copy != null && eof && copy.size() == length) {
+                    heap.put(objectKey, copy.toByteArray());
+                }
+                copy = null;
+            }
+        }
+    }
+
+    /**
+     * Download of an object to a temporary file, which is moved into the disk
+     * tier once complete. Readers opened before then read the file up to what
+     * has been written, and wait for the rest.
+     */
+    private class Fill implements Runnable {
+        private final StoredObject object;
+        private final Path path;
+        private final Path temp;
+        private final OutputStream out;
+        private long written;
+        private boolean done;
+        private IOException failure;
+
+        Fill(StoredObject object, Path path, Path temp) throws IOException {
+            this.object = object;
+            this.path = path;
+            this.temp = temp;
+            this.out = Files.newOutputStream(temp);
+        }
+
+        @Override
+        public void run() {
+            String objectKey = object.getObjectKey();
+            try (object; out) {
+                InputStream in = object.getInputStream();
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    // Unbuffered, so readers see what has been written
+                    out.write(buffer, 0, read);
+                    advance(read);
+                }
+                if (object.getLength() >= 0 && written != object.getLength()) {
+                    throw new EOFException("Read " + written + " of " + object.getLength() + " bytes");
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Failed caching " + objectKey, e);
+                deleteQuietly(temp);
+                finish(e instanceof IOException ? (IOException) e : new IOException(e));
+                return;
+            }
+
+            // Not opened while moved, and in the disk tier once no longer a fill
+            synchronized (this) {
+                try {
+                    // Open readers keep reading the moved file
+                    Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    disk.put(objectKey, new DiskEntry(path, written));
+                } catch (NoSuchFileException e) {
+                    LOG.debugf("Cache directory changed while caching %s", objectKey);
+                } catch (IOException e) {
+                    LOG.warn("Failed caching " + objectKey, e);
+                    deleteQuietly(temp);
+                }
+                finish(null);
+            }
+        }
+
+        private synchronized void advance(int count) {
+            written += count;
+            notifyAll();
+        }
+
+        private synchronized void finish(IOException e) {
+            failure = e;
+            done = true;
+            notifyAll();
+            fills.remove(object.getObjectKey(), this);
+        }
+
+        /**
+         * @return a reader of the download, or null once it is done
+         */
+        synchronized StoredObject open() throws IOException {
+            if (done) {
+                return null;
+            }
+            FileChannel channel = FileChannel.open(temp);
+            return new StoredObject(object.getObjectKey(), object.getLength(), new FillInputStream(this, channel));
+        }
+
+        /**
+         * @return the number of bytes written, waiting until it is past the
+         *         position or the download is done
+         */
+        synchronized long awaitWritten(long position) throws IOException {
+            while (written <= position && !done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted reading " + object.getObjectKey());
+                }
+            }
+            if (failure != null) {
+                throw new IOException("Failed downloading " + object.getObjectKey(), failure);
+            }
+            return written;
+        }
+    }
+
+    /**
+     * Reads the file of a fill as it is written.
+     */
+    private static class FillInputStream extends InputStream {
+        private final Fill fill;
+        private final FileChannel channel;
+        private long position;
+
+        FillInputStream(Fill fill, FileChannel channel) {
+            this.fill = fill;
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            long written = fill.awaitWritten(position);
+            if (written <= position) {
+                return -1;
+            }
+            int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, written - position)), position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
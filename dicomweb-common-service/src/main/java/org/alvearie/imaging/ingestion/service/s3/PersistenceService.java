@@ -5,12 +5,12 @@
  */
 package org.alvearie.imaging.ingestion.service.s3;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
 
 import javax.inject.Inject;
 
@@ -21,9 +21,57 @@ abstract class PersistenceService {
     @Inject
     StoreConfiguration config;
 
-    abstract ByteArrayOutputStream getObject(String objectKey) throws IOException;
+    /**
+     * @throws java.io.FileNotFoundException when the object does not exist
+     */
+    abstract StoredObject getObject(String objectKey) throws IOException;
+
+    /**
+     * Reads {@code length} bytes of the object starting at {@code offset}.
+     * 
+     * @throws java.io.FileNotFoundException when the object does not exist
+     */
+    abstract StoredObject getObject(String objectKey, long offset, long length) throws IOException;
+
+    /**
+     * @return the length of the object, read without transferring its content
+     * @throws java.io.FileNotFoundException when the object does not exist
+     */
+    abstract long getObjectLength(String objectKey) throws IOException;
+
+    /**
+     * Opens the object without blocking the calling thread. Services without an
+     * asynchronous client open the object before returning.
+     * 
+     * @return the object, completed exceptionally with a
+     *         {@link java.io.FileNotFoundException} when it does not exist
+     */
+    CompletableFuture<StoredObject> getObjectAsync(String objectKey) {
+        try {
+            return CompletableFuture.completedFuture(getObject(objectKey));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Reads a range of the object without blocking the calling thread. Services
+     * without an asynchronous client read the range before returning.
+     * 
+     * @return the range, completed exceptionally with a
+     *         {@link java.io.FileNotFoundException} when the object does not exist
+     */
+    CompletableFuture<StoredObject> getObjectAsync(String objectKey, long offset, long length) {
+        try {
+            return CompletableFuture.completedFuture(getObject(objectKey, offset, length));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 
     abstract void putObject(StoreContext ctx) throws NoSuchAlgorithmException, IOException;
+
+    abstract void putObject(String objectKey, byte[] data) throws IOException;
     
 
     String getContentChecksum(MessageDigest digest, File file) throws IOException {
@@ -0,0 +1,137 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * Input stream over the body of an asynchronous response. Buffers are requested
+ * from the publisher as the stream is read, so only a few of them are held at a
+ * time however long the body is.
+ */
+class PublisherInputStream extends InputStream implements Subscriber<ByteBuffer> {
+    static final int BUFFERS_AHEAD = 4;
+
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final BlockingQueue<ByteBuffer> buffers = new LinkedBlockingQueue<>();
+    private Subscription subscription;
+    private volatile boolean closed;
+    private volatile Throwable error;
+    private ByteBuffer current;
+    private volatile boolean ended;
+
+    @Override
+    public synchronized void onSubscribe(Subscription subscription) {
+        this.subscription = subscription;
+        if (closed) {
+            subscription.cancel();
+        } else {
+            subscription.request(BUFFERS_AHEAD);
+        }
+    }
+
+    @Override
+    public void onNext(ByteBuffer buffer) {
+        buffers.add(buffer);
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        this.error = error;
+        buffers.add(END);
+    }
+
+    @Override
+    public void onComplete() {
+        buffers.add(END);
+    }
+
+    @Override
+    public int read() throws IOException {
+        ByteBuffer buffer = next();
+        return buffer == null ? -1 : buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        ByteBuffer buffer = next();
+        if (buffer == null) {
+            return -1;
+        }
+        int count = Math.min(len, buffer.remaining());
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.remaining();
+    }
+
+    /**
+     * @return the buffer to read from, or null at the end of the body
+     */
+    private ByteBuffer next() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (current == null || !current.hasRemaining()) {
+            if (ended) {
+                return null;
+            }
+            try {
+                current = buffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted reading response");
+            }
+            if (current == END) {
+                ended = true;
+                current = null;
+                if (error != null) {
+                    throw new IOException("Failed reading response", error);
+                }
+                return null;
+            }
+            request();
+        }
+        return current;
+    }
+
+    private synchronized void request() {
+        if (!closed) {
+            subscription.request(1);
+        }
+    }
+
+    /**
+     * Cancels the rest of the body if it has not been read.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            if (subscription != null && !ended) {
+                subscription.cancel();
+            }
+            buffers.clear();
+            // Ends a read waiting for the next buffer
+            buffers.add(END);
+        }
+    }
+}
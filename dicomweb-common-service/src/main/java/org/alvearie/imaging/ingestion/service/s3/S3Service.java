@@ -5,45 +5,124 @@
  */
 package org.alvearie.imaging.ingestion.service.s3;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
 
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.logging.Logger;
 
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.AwsCredentials;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
-import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 
 @ApplicationScoped
 public class S3Service extends PersistenceService {
     private static final Logger LOG = Logger.getLogger(S3Service.class);
 
+    // Sized explicitly rather than left to the SDK default, see
+    // wado.retrieve.open-objects
+    @ConfigProperty(name = "store.s3.max-connections", defaultValue = "64")
+    int maxConnections;
+
+    @ConfigProperty(name = "store.s3.connection-acquisition-timeout", defaultValue = "PT10S")
+    Duration connectionAcquisitionTimeout;
+
     S3Client s3;
+    S3AsyncClient s3Async;
+
+    @Override
+    public StoredObject getObject(String objectKey) throws IOException {
+        GetObjectRequest request = GetObjectRequest.builder().bucket(config.getBucketName()).key(objectKey).build();
+        return getObject(objectKey, request);
+    }
 
     @Override
-    public ByteArrayOutputStream getObject(String objectKey) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    public StoredObject getObject(String objectKey, long offset, long length) throws IOException {
+        GetObjectRequest request = GetObjectRequest.builder().bucket(config.getBucketName()).key(objectKey)
+                .range(String.format("bytes=%d-%d", offset, offset + length - 1)).build();
+        return getObject(objectKey, request);
+    }
 
+    @Override
+    CompletableFuture<StoredObject> getObjectAsync(String objectKey) {
         GetObjectRequest request = GetObjectRequest.builder().bucket(config.getBucketName()).key(objectKey).build();
-        s3.getObject(request, ResponseTransformer.toOutputStream(baos));
+        return getObjectAsync(objectKey, request);
+    }
+
+    @Override
+    CompletableFuture<StoredObject> getObjectAsync(String objectKey, long offset, long length) {
+        GetObjectRequest request = GetObjectRequest.builder().bucket(config.getBucketName()).key(objectKey)
+                .range(String.format("bytes=%d-%d", offset, offset + length - 1)).build();
+        return getObjectAsync(objectKey, request);
+    }
+
+    private CompletableFuture<StoredObject> getObjectAsync(String objectKey, GetObjectRequest request) {
+        // Completes on the SDK's event loop once the response starts, the content
+        // is streamed as it is read rather than buffered
+        return s3Async.getObject(request, new StreamingResponseTransformer(objectKey)).handle((object, error) -> {
+            if (error == null) {
+                return object;
+            }
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause instanceof NoSuchKeyException) {
+                throw new CompletionException(new FileNotFoundException(objectKey));
+            }
+            throw new CompletionException(cause);
+        });
+    }
 
-        return baos;
+    @Override
+    long getObjectLength(String objectKey) throws IOException {
+        HeadObjectRequest request = HeadObjectRequest.builder().bucket(config.getBucketName()).key(objectKey).build();
+        try {
+            return s3.headObject(request).contentLength();
+        } catch (NoSuchKeyException e) {
+            throw new FileNotFoundException(objectKey);
+        } catch (S3Exception e) {
+            // Responses to HEAD requests have no error code
+            if (e.statusCode() == 404) {
+                throw new FileNotFoundException(objectKey);
+            }
+            throw e;
+        }
+    }
+
+    private StoredObject getObject(String objectKey, GetObjectRequest request) throws IOException {
+        try {
+            ResponseInputStream<GetObjectResponse> in = s3.getObject(request);
+            Long length = in.response().contentLength();
+            return new StoredObject(objectKey, length == null ? -1 : length, in);
+        } catch (NoSuchKeyException e) {
+            throw new FileNotFoundException(objectKey);
+        }
     }
 
     @Override
@@ -66,6 +145,18 @@ public class S3Service extends PersistenceService {
         LOG.infof("%s stored in object store", key);
     }
 
+    @Override
+    public void putObject(String objectKey, byte[] data) throws IOException {
+        LOG.debugf("Put %s to object store", objectKey);
+        PutObjectRequest request = PutObjectRequest.builder().bucket(config.getBucketName()).key(objectKey)
+                .contentType("application/octet-stream").build();
+        PutObjectResponse response = s3.putObject(request, RequestBody.fromBytes(data));
+
+        if (response == null) {
+            throw new IOException("Error storing to object store");
+        }
+    }
+
     @PostConstruct
     void init() throws URISyntaxException {
         AwsCredentials credentials = AwsBasicCredentials.create(config.getAwsAcessKeyID(),
@@ -84,6 +175,19 @@ public class S3Service extends PersistenceService {
         }
 
         s3 = S3Client.builder().credentialsProvider(credentialsProvider).endpointOverride(new URI(hostPort))
-                .region(Region.of(config.getBucketRegion())).build();
+                .region(Region.of(config.getBucketRegion()))
+                .httpClientBuilder(ApacheHttpClient.builder().maxConnections(maxConnections)
+                        .connectionAcquisitionTimeout(connectionAcquisitionTimeout))
+                .build();
+        s3Async = S3AsyncClient.builder().credentialsProvider(credentialsProvider).endpointOverride(new URI(hostPort))
+                .region(Region.of(config.getBucketRegion()))
+                .httpClientBuilder(NettyNioAsyncHttpClient.builder().maxConcurrency(maxConnections)
+                        .connectionAcquisitionTimeout(connectionAcquisitionTimeout))
+                .build();
+    }
+
+    @PreDestroy
+    void close() {
+        s3Async.close();
     }
 }
@@ -5,8 +5,8 @@
  */
 package org.alvearie.imaging.ingestion.service.s3;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -14,6 +14,7 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.inject.Instance;
@@ -26,8 +27,10 @@ import org.alvearie.imaging.ingestion.event.ImageStoredEvent;
 import org.alvearie.imaging.ingestion.event.Store;
 import org.alvearie.imaging.ingestion.service.client.StudyStoredEventClient;
 import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.VR;
 import org.dcm4che3.imageio.codec.Transcoder;
+import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.net.Status;
 import org.dcm4che3.net.service.DicomServiceException;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
@@ -58,7 +61,8 @@ public class SimpleStoreService implements StoreService {
     StudyStoredEventClient eventClient;
 
     @Inject
-    public SimpleStoreService(StoreConfiguration config, Instance<PersistenceService> availablePersistenceServices) {
+    public SimpleStoreService(StoreConfiguration config, Instance<PersistenceService> availablePersistenceServices,
+            ObjectCache objectCache) {
         this.config = config;
         LOG.info("Determining Storage Configuration");
         if (config.getStorageType() == StoreConfiguration.StorageType.EPHEMERAL) {
@@ -71,6 +75,11 @@ public class SimpleStoreService implements StoreService {
             LOG.info("Binding Azure Blob PersistenceService");
             persistenceService = availablePersistenceServices.select(AzureBlobService.class).get();
         }
+        // Local files are already served from the local disk
+        if (objectCache.isEnabled() && config.getStorageType() != StoreConfiguration.StorageType.EPHEMERAL) {
+            LOG.info("Caching retrieved objects");
+            persistenceService = new CachingPersistenceService(persistenceService, objectCache);
+        }
     }
 
     @Override
@@ -79,16 +88,60 @@ public class SimpleStoreService implements StoreService {
     }
 
     @Override
-    public ByteArrayOutputStream retrieve(String objectKey) throws IOException {
+    public void store(String objectKey, byte[] data) throws IOException {
+        persistenceService.putObject(objectKey, data);
+    }
+
+    @Override
+    public StoredObject retrieve(String objectKey) throws IOException {
         return persistenceService.getObject(objectKey);
     }
 
+    @Override
+    public StoredObject retrieve(String objectKey, long offset, long length) throws IOException {
+        return persistenceService.getObject(objectKey, offset, length);
+    }
+
+    @Override
+    public CompletableFuture<StoredObject> retrieveAsync(String objectKey) {
+        return persistenceService.getObjectAsync(objectKey);
+    }
+
+    @Override
+    public CompletableFuture<StoredObject> retrieveAsync(String objectKey, long offset, long length) {
+        return persistenceService.getObjectAsync(objectKey, offset, length);
+    }
+
+    @Override
+    public long retrieveLength(String objectKey) throws IOException {
+        return persistenceService.getObjectLength(objectKey);
+    }
+
+    @Override
+    public FrameIndex retrieveFrameIndex(String objectKey) throws IOException {
+        try (StoredObject object = persistenceService.getObject(objectKey + FrameIndex.OBJECT_SUFFIX)) {
+            return FrameIndex.fromBytes(object.getInputStream().readAllBytes());
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public byte[] retrieveMetadata(String objectKey) throws IOException {
+        try (StoredObject object = persistenceService.getObject(objectKey + MetadataSidecar.OBJECT_SUFFIX)) {
+            return object.getInputStream().readAllBytes();
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
     private void writeToStorage(StoreContext ctx, InputStream data) throws DicomServiceException {
         try (Transcoder transcoder = new Transcoder(data)) {
             TranscoderHandler handler = new TranscoderHandler(ctx);
             transcoder.setIncludeFileMetaInformation(true);
             transcoder.transcode(handler);
             persistenceService.putObject(ctx);
+            storeSidecars(ctx);
             eventClient.sendEvent(UUID.randomUUID().toString(), Events.ImageStoredEvent, buildEvent(ctx), eventSource);
             handler.close();
         } catch (Throwable e) {
@@ -97,6 +150,35 @@ public class SimpleStoreService implements StoreService {
         }
     }
 
+    private void storeSidecars(StoreContext ctx) {
+        // Metadata and frames can still be served by reading the object
+        try (DicomInputStream dis = new DicomInputStream(new File(ctx.getFilePath()))) {
+            Attributes metadata = dis.readDatasetUntilPixelData();
+            VR pixelDataVR = null;
+            boolean bigEndian = dis.bigEndian();
+            if (dis.tag() == Tag.PixelData) {
+                pixelDataVR = dis.vr();
+                storeFrameIndex(ctx, dis, metadata);
+            }
+            persistenceService.putObject(ctx.getObjectName() + MetadataSidecar.OBJECT_SUFFIX,
+                    MetadataSidecar.toBytes(metadata, pixelDataVR, bigEndian));
+        } catch (IOException e) {
+            LOG.warn("Failed to store metadata for " + ctx.getObjectName(), e);
+        }
+    }
+
+    private void storeFrameIndex(StoreContext ctx, DicomInputStream dis, Attributes metadata) {
+        try {
+            FrameIndex frameIndex = new FrameIndexBuilder().build(dis, metadata);
+            if (frameIndex != null) {
+                LOG.debugf("Storing %s for %s", frameIndex, ctx.getObjectName());
+                persistenceService.putObject(ctx.getObjectName() + FrameIndex.OBJECT_SUFFIX, frameIndex.toBytes());
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to store frame index for " + ctx.getObjectName(), e);
+        }
+    }
+
     private ImageStoredEvent buildEvent(StoreContext ctx) {
         List<Element> elements = new ArrayList<>();
         Attributes attrs = ctx.getAttributes();
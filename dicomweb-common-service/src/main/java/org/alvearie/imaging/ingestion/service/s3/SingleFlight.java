@@ -0,0 +1,65 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.s3;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Coalesces concurrent identical calls: while a call for a key is in flight,
+ * further calls for the same key share its result instead of starting their
+ * own. Results are not kept once the call completes.
+ */
+public class SingleFlight<K, V> {
+    static final String METRIC_NAME = "singleflight.calls";
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final Counter leaderCounter;
+    private final Counter sharedCounter;
+
+    /**
+     * @param name the name the calls are counted under
+     */
+    public SingleFlight(String name) {
+        leaderCounter = Metrics.counter(METRIC_NAME, "name", name, "result", "leader");
+        sharedCounter = Metrics.counter(METRIC_NAME, "name", name, "result", "shared");
+    }
+
+    /**
+     * @return the result of the call in flight for the key, or of the given call
+     *         if there is none
+     */
+    public CompletableFuture<V> execute(K key, Supplier<? extends CompletionStage<V>> call) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            sharedCounter.increment();
+            return existing.copy();
+        }
+
+        leaderCounter.increment();
+        try {
+            call.get().whenComplete((value, error) -> {
+                inFlight.remove(key, flight);
+                if (error != null) {
+                    flight.completeExceptionally(error);
+                } else {
+                    flight.complete(value);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+        }
+        return flight.copy();
+    }
+}
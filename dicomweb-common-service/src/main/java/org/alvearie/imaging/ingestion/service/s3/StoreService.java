@@ -5,12 +5,47 @@
  */
 package org.alvearie.imaging.ingestion.service.s3;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 
 public interface StoreService {
     void store(StoreContext ctx, InputStream data) throws IOException;
+
+    /**
+     * Stores a derived object, such as a metadata snapshot, under the given key.
+     */
+    void store(String objectKey, byte[] data) throws IOException;
     
-    ByteArrayOutputStream retrieve(String objectKey) throws IOException;
+    StoredObject retrieve(String objectKey) throws IOException;
+
+    StoredObject retrieve(String objectKey, long offset, long length) throws IOException;
+
+    /**
+     * Opens the object without holding the calling thread while the store
+     * responds.
+     */
+    CompletableFuture<StoredObject> retrieveAsync(String objectKey);
+
+    /**
+     * Reads a range of the object without holding the calling thread while the
+     * store responds.
+     */
+    CompletableFuture<StoredObject> retrieveAsync(String objectKey, long offset, long length);
+
+    /**
+     * @return the length of the object, without reading it
+     */
+    long retrieveLength(String objectKey) throws IOException;
+
+    /**
+     * @return the frame index stored for the object, or null if none was stored
+     */
+    FrameIndex retrieveFrameIndex(String objectKey) throws IOException;
+
+    /**
+     * @return the {@link MetadataSidecar} stored for the object, or null if none
+     *         was stored
+     */
+    byte[] retrieveMetadata(String objectKey) throws IOException;
 }
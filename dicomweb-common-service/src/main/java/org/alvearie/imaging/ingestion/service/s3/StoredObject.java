@@ -0,0 +1,103 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.s3;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * An object read from the storage space. The content is exposed as a stream
+ * over the underlying storage rather than being buffered, so callers must
+ * close the object once they are done with it.
+ */
+public class StoredObject implements Closeable {
+    private final String objectKey;
+    private final long length;
+    private final InputStream inputStream;
+    private Runnable closeAction;
+
+    public StoredObject(String objectKey, long length, InputStream inputStream) {
+        this.objectKey = objectKey;
+        this.length = length;
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * An object backed by a region of a local file.
+     */
+    StoredObject(String objectKey, FileChannel fileChannel, long position, long length) throws IOException {
+        this.objectKey = objectKey;
+        this.length = length;
+        this.inputStream = new BoundedInputStream(Channels.newInputStream(fileChannel.position(position)), length);
+    }
+
+    public String getObjectKey() {
+        return objectKey;
+    }
+
+    /**
+     * @return the content length in bytes, or -1 when unknown
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public ReadableByteChannel getChannel() {
+        return Channels.newChannel(inputStream);
+    }
+
+    /**
+     * Copies the content to the given stream through a buffer. Responses are
+     * written through the servlet output stream, so objects backed by a local
+     * file are copied the same way.
+     * 
+     * @return the number of bytes written
+     */
+    public long transferTo(OutputStream out) throws IOException {
+        return inputStream.transferTo(out);
+    }
+
+    /**
+     * Runs the given action once the object is closed, such as releasing a
+     * permit held while the object is open.
+     * 
+     * @return this object
+     */
+    public synchronized StoredObject onClose(Runnable action) {
+        closeAction = action;
+        return this;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            inputStream.close();
+        } finally {
+            Runnable action;
+            synchronized (this) {
+                action = closeAction;
+                closeAction = null;
+            }
+            if (action != null) {
+                action.run();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StoredObject [objectKey=" + objectKey + ", length=" + length + "]";
+    }
+}
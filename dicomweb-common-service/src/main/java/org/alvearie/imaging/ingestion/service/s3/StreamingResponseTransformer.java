@@ -0,0 +1,53 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.s3;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+/**
+ * Completes with the object as soon as the response starts, its content is
+ * streamed from the response body as it is read instead of being buffered whole.
+ */
+class StreamingResponseTransformer implements AsyncResponseTransformer<GetObjectResponse, StoredObject> {
+    private final String objectKey;
+    private CompletableFuture<StoredObject> future;
+    private PublisherInputStream body;
+
+    StreamingResponseTransformer(String objectKey) {
+        this.objectKey = objectKey;
+    }
+
+    @Override
+    public CompletableFuture<StoredObject> prepare() {
+        // Prepared again for each attempt
+        future = new CompletableFuture<>();
+        body = new PublisherInputStream();
+        return future;
+    }
+
+    @Override
+    public void onResponse(GetObjectResponse response) {
+        Long length = response.contentLength();
+        future.complete(new StoredObject(objectKey, length == null ? -1 : length, body));
+    }
+
+    @Override
+    public void onStream(SdkPublisher<ByteBuffer> publisher) {
+        publisher.subscribe(body);
+    }
+
+    @Override
+    public void exceptionOccurred(Throwable error) {
+        if (!future.completeExceptionally(error)) {
+            body.onError(error);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.s3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FrameIndexBuilderTest {
+    private static final String TEST_FILENAME = "../test-data/dicom/file1.dcm";
+    private static final String JPEG_BASELINE = "1.2.840.10008.1.2.4.50";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testNativeMultiFrame() throws IOException {
+        FrameIndex frameIndex = new FrameIndexBuilder().build(new File(TEST_FILENAME));
+
+        Assertions.assertNotNull(frameIndex);
+        Assertions.assertFalse(frameIndex.isEncapsulated());
+        Assertions.assertEquals(2, frameIndex.getNumberOfFrames());
+        Assertions.assertEquals(512 * 512 * 2, frameIndex.getFrameLength(1));
+        Assertions.assertEquals(frameIndex.getPixelDataOffset(), frameIndex.getFragmentOffsets(1)[0]);
+        Assertions.assertEquals(frameIndex.getPixelDataOffset() + 512 * 512 * 2, frameIndex.getFragmentOffsets(2)[0]);
+    }
+
+    @Test
+    public void testSerialization() throws IOException {
+        FrameIndex frameIndex = new FrameIndexBuilder().build(new File(TEST_FILENAME));
+        FrameIndex copy = FrameIndex.fromBytes(frameIndex.toBytes());
+
+        Assertions.assertEquals(frameIndex.getTransferSyntaxUID(), copy.getTransferSyntaxUID());
+        Assertions.assertEquals(frameIndex.getNumberOfFrames(), copy.getNumberOfFrames());
+        Assertions.assertArrayEquals(frameIndex.getFragmentOffsets(2), copy.getFragmentOffsets(2));
+        Assertions.assertArrayEquals(frameIndex.getFragmentLengths(2), copy.getFragmentLengths(2));
+    }
+
+    @Test
+    public void testEncapsulatedFrameStarts() throws IOException {
+        byte[] frame1 = { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 1, 2 };
+        byte[] frame2 = { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xDB, 3, 4, 5, 6 };
+        byte[] continuation = { 7, 8, 9, 10 };
+        File file = writeEncapsulated(new Attributes(), 2, new byte[0], frame1, continuation, frame2);
+        FrameIndex frameIndex = new FrameIndexBuilder().build(file);
+
+        Assertions.assertNotNull(frameIndex);
+        Assertions.assertTrue(frameIndex.isEncapsulated());
+        Assertions.assertEquals(2, frameIndex.getNumberOfFrames());
+        Assertions.assertEquals(2, frameIndex.getFragmentOffsets(1).length);
+        Assertions.assertEquals(frame1.length + continuation.length, frameIndex.getFrameLength(1));
+        assertFragment(file, frameIndex, 1, 0, frame1);
+        assertFragment(file, frameIndex, 1, 1, continuation);
+        assertFragment(file, frameIndex, 2, 0, frame2);
+    }
+
+    @Test
+    public void testEncapsulatedBasicOffsetTable() throws IOException {
+        byte[] fragment = { 1, 2, 3, 4 };
+        // The second frame starts after two items of 8 + 4 bytes
+        byte[] basicOffsetTable = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putInt(0).putInt(24).array();
+        File file = writeEncapsulated(new Attributes(), 2, basicOffsetTable, fragment, fragment, fragment);
+        FrameIndex frameIndex = new FrameIndexBuilder().build(file);
+
+        Assertions.assertNotNull(frameIndex);
+        Assertions.assertEquals(2, frameIndex.getFragmentOffsets(1).length);
+        Assertions.assertEquals(1, frameIndex.getFragmentOffsets(2).length);
+        assertFragment(file, frameIndex, 2, 0, fragment);
+    }
+
+    @Test
+    public void testEncapsulatedExtendedOffsetTable() throws IOException {
+        byte[] frame1 = { 1, 2, 3, 4, 5, 6, 7, 8 };
+        byte[] frame2 = { 9, 10, 11, 12 };
+        Attributes dataset = new Attributes();
+        dataset.setBytes(Tag.ExtendedOffsetTable, VR.OV, toBytes(0, 8 + frame1.length));
+        dataset.setBytes(Tag.ExtendedOffsetTableLengths, VR.OV, toBytes(frame1.length, frame2.length));
+        File file = writeEncapsulated(dataset, 2, new byte[0], frame1, frame2);
+
+        // Fragment items are not read when the Extended Offset Table is present
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - frame2.length);
+        }
+        FrameIndex frameIndex = new FrameIndexBuilder().build(file);
+
+        Assertions.assertNotNull(frameIndex);
+        Assertions.assertEquals(frame2.length, frameIndex.getFrameLength(2));
+        assertFragment(file, frameIndex, 1, 0, frame1);
+    }
+
+    private File writeEncapsulated(Attributes dataset, int numberOfFrames, byte[]... items) throws IOException {
+        dataset.setString(Tag.SOPClassUID, VR.UI, "1.2.840.10008.5.1.4.1.1.7");
+        dataset.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3.4");
+        dataset.setInt(Tag.NumberOfFrames, VR.IS, numberOfFrames);
+        Fragments fragments = dataset.newFragments(Tag.PixelData, VR.OB, items.length);
+        for (byte[] item : items) {
+            fragments.add(item);
+        }
+
+        File file = tempDir.resolve("encapsulated.dcm").toFile();
+        try (DicomOutputStream dos = new DicomOutputStream(file)) {
+            dos.writeDataset(dataset.createFileMetaInformation(JPEG_BASELINE), dataset);
+        }
+        return file;
+    }
+
+    private void assertFragment(File file, FrameIndex frameIndex, int frame, int fragment, byte[] expected)
+            throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        int offset = (int) frameIndex.getFragmentOffsets(frame)[fragment];
+        Assertions.assertEquals(expected.length, frameIndex.getFragmentLengths(frame)[fragment]);
+        Assertions.assertArrayEquals(expected, Arrays.copyOfRange(data, offset, offset + expected.length));
+    }
+
+    private static byte[] toBytes(long... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        for (long value : values) {
+            buffer.putLong(value);
+        }
+        return buffer.array();
+    }
+}
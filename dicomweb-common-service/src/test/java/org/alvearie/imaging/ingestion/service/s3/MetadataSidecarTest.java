@@ -0,0 +1,40 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.s3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class MetadataSidecarTest {
+    private static final String BASE_URI = "http://localhost/wado-rs";
+
+    @Test
+    public void testWriteResolved() throws IOException {
+        String document = "[{\"u\":\"{+WadoBaseURI}/a\"},{\"u\":\"{+WadoBaseURI}/b\"},{\"v\":\"{+Wado\"}]";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MetadataSidecar.write(document.getBytes(StandardCharsets.UTF_8), BASE_URI, out);
+        Assertions.assertEquals(document.replace(MetadataSidecar.BASE_URI_TEMPLATE, BASE_URI),
+                out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testResolveAttributes() {
+        Attributes metadata = new Attributes();
+        metadata.setValue(Tag.PixelData, VR.OW,
+                new BulkData(null, MetadataSidecar.BASE_URI_TEMPLATE + "/studies/1/bulkdata/7FE00010", false));
+        MetadataSidecar.resolve(metadata, BASE_URI);
+        Assertions.assertEquals(BASE_URI + "/studies/1/bulkdata/7FE00010",
+                ((BulkData) metadata.getValue(Tag.PixelData)).getURI());
+    }
+}
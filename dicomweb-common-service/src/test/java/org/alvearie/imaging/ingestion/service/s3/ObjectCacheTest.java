@@ -0,0 +1,147 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+public class ObjectCacheTest {
+    @TempDir
+    Path cacheDir;
+
+    ObjectCache cache;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        cache = new ObjectCache();
+        cache.enabled = true;
+        cache.heapMaxBytes = 1024;
+        cache.heapMaxObjectBytes = 16;
+        cache.diskPath = Optional.of(cacheDir.toString());
+        cache.diskMaxBytes = 1024 * 1024;
+        cache.fillThreads = 2;
+        cache.sharedReadTimeout = Duration.ofSeconds(10);
+        cache.init();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        cache.shutdown();
+    }
+
+    @Test
+    public void testHeapTier() throws IOException {
+        byte[] data = new byte[] { 1, 2, 3, 4 };
+        try (StoredObject object = cache.put(new StoredObject("small", data.length, new ByteArrayInputStream(data)))) {
+            Assertions.assertArrayEquals(data, object.getInputStream().readAllBytes());
+        }
+
+        try (StoredObject object = cache.get("small", 1, 2)) {
+            Assertions.assertArrayEquals(new byte[] { 2, 3 }, object.getInputStream().readAllBytes());
+        }
+    }
+
+    @Test
+    public void testDiskTier() throws IOException {
+        byte[] data = new byte[100];
+        data[50] = 7;
+        // Read to the end once in the disk tier
+        try (StoredObject object = cache.put(new StoredObject("large", data.length, new ByteArrayInputStream(data)))) {
+            Assertions.assertArrayEquals(data, object.getInputStream().readAllBytes());
+        }
+
+        try (StoredObject object = cache.get("large")) {
+            Assertions.assertEquals(data.length, object.getLength());
+            Assertions.assertArrayEquals(data, object.getInputStream().readAllBytes());
+        }
+        try (StoredObject object = cache.get("large", 50, 1)) {
+            Assertions.assertEquals(7, object.getInputStream().read());
+        }
+        // Ranges past the end are read short
+        try (StoredObject object = cache.get("large", 90, 20)) {
+            Assertions.assertEquals(10, object.getLength());
+            Assertions.assertEquals(10, object.getInputStream().readAllBytes().length);
+        }
+        try (StoredObject object = cache.get("large", 200, 20)) {
+            Assertions.assertEquals(0, object.getLength());
+        }
+    }
+
+    @Test
+    public void testPartialReadCached() throws IOException {
+        byte[] data = new byte[100];
+        try (StoredObject object = cache.put(new StoredObject("partial", data.length, new ByteArrayInputStream(data)))) {
+            object.getInputStream().readNBytes(10);
+        }
+
+        // Downloaded whatever the reader read
+        try (StoredObject object = cache.get("partial")) {
+            Assertions.assertArrayEquals(data, object.getInputStream().readAllBytes());
+        }
+        try (StoredObject object = cache.get("partial", 0, 1)) {
+            Assertions.assertNotNull(object);
+        }
+    }
+
+    @Test
+    public void testFailedFillNotCached() throws IOException {
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("reset");
+            }
+        };
+        try (StoredObject object = cache.put(new StoredObject("failed", 100, failing))) {
+            Assertions.assertThrows(IOException.class, () -> object.getInputStream().readAllBytes());
+        }
+
+        Assertions.assertNull(cache.get("failed"));
+        try (var files = Files.list(cacheDir)) {
+            Assertions.assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void testPutWhileRead() throws IOException {
+        byte[] data = new byte[] { 1, 2, 3, 4 };
+        StoredObject object = cache.putWhileRead(new StoredObject("read", data.length, new ByteArrayInputStream(data)));
+        Assertions.assertNull(cache.get("read"));
+        try (object) {
+            Assertions.assertArrayEquals(data, object.getInputStream().readAllBytes());
+        }
+
+        try (StoredObject cached = cache.get("read")) {
+            Assertions.assertArrayEquals(data, cached.getInputStream().readAllBytes());
+        }
+    }
+
+    @Test
+    public void testSharedRead() throws Exception {
+        byte[] data = new byte[100];
+        PersistenceService delegate = Mockito.mock(PersistenceService.class);
+        Mockito.when(delegate.getObject("shared"))
+                .thenAnswer(i -> new StoredObject("shared", data.length, new ByteArrayInputStream(data)));
+        CachingPersistenceService service = new CachingPersistenceService(delegate, cache);
+
+        // Served while the first reader has read nothing
+        try (StoredObject first = service.getObject("shared"); StoredObject second = service.getObject("shared")) {
+            Assertions.assertArrayEquals(data, second.getInputStream().readAllBytes());
+        }
+        Mockito.verify(delegate, Mockito.times(1)).getObject("shared");
+    }
+}
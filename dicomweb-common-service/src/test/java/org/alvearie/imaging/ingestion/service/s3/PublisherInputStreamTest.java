@@ -0,0 +1,75 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.s3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscription;
+
+public class PublisherInputStreamTest {
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+
+    private final Subscription subscription = new Subscription() {
+        @Override
+        public void request(long n) {
+            requested.addAndGet(n);
+        }
+
+        @Override
+        public void cancel() {
+            cancelled.set(true);
+        }
+    };
+
+    @Test
+    public void testRequestsAsRead() throws IOException {
+        PublisherInputStream in = new PublisherInputStream();
+        in.onSubscribe(subscription);
+        Assertions.assertEquals(PublisherInputStream.BUFFERS_AHEAD, requested.get());
+
+        in.onNext(ByteBuffer.wrap(new byte[] { 1, 2 }));
+        in.onNext(ByteBuffer.wrap(new byte[] { 3 }));
+        in.onComplete();
+
+        byte[] b = new byte[4];
+        Assertions.assertEquals(2, in.read(b, 0, 4));
+        // One more buffer is requested for each one read
+        Assertions.assertEquals(PublisherInputStream.BUFFERS_AHEAD + 1, requested.get());
+        Assertions.assertEquals(3, in.read());
+        Assertions.assertEquals(-1, in.read());
+        in.close();
+        Assertions.assertFalse(cancelled.get());
+    }
+
+    @Test
+    public void testFailedResponse() {
+        PublisherInputStream in = new PublisherInputStream();
+        in.onSubscribe(subscription);
+        in.onNext(ByteBuffer.wrap(new byte[] { 1 }));
+        in.onError(new IllegalStateException("reset"));
+
+        Assertions.assertDoesNotThrow(() -> in.read());
+        IOException e = Assertions.assertThrows(IOException.class, () -> in.read());
+        Assertions.assertEquals("reset", e.getCause().getMessage());
+    }
+
+    @Test
+    public void testCloseCancels() throws IOException {
+        PublisherInputStream in = new PublisherInputStream();
+        in.onSubscribe(subscription);
+        in.onNext(ByteBuffer.wrap(new byte[] { 1, 2 }));
+        Assertions.assertEquals(1, in.read());
+        in.close();
+        Assertions.assertTrue(cancelled.get());
+        Assertions.assertThrows(IOException.class, () -> in.read());
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.s3;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class SingleFlightTest {
+    @Test
+    public void testConcurrentCallsShareResult() throws Exception {
+        SingleFlight<String, String> flights = new SingleFlight<>("test");
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> result = new CompletableFuture<>();
+
+        CompletableFuture<String> first = flights.execute("key", () -> {
+            calls.incrementAndGet();
+            return result;
+        });
+        CompletableFuture<String> second = flights.execute("key", () -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("other");
+        });
+        result.complete("value");
+
+        Assertions.assertEquals("value", first.get());
+        Assertions.assertEquals("value", second.get());
+        Assertions.assertEquals(1, calls.get());
+
+        // Completed calls are not shared
+        Assertions.assertEquals("next", flights.execute("key", () -> CompletableFuture.completedFuture("next")).get());
+    }
+
+    @Test
+    public void testFailureIsShared() {
+        SingleFlight<String, String> flights = new SingleFlight<>("test");
+        CompletableFuture<String> result = new CompletableFuture<>();
+        CompletableFuture<String> first = flights.execute("key", () -> result);
+        CompletableFuture<String> second = flights.execute("key", () -> result);
+        result.completeExceptionally(new IllegalStateException());
+
+        Assertions.assertTrue(first.isCompletedExceptionally());
+        Assertions.assertTrue(second.isCompletedExceptionally());
+    }
+}
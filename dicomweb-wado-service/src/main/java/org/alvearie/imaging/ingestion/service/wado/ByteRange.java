@@ -0,0 +1,100 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A satisfiable range of a Range request header, with inclusive offsets into
+ * the representation.
+ */
+public class ByteRange {
+    private static final String BYTES_UNIT = "bytes=";
+
+    // More ranges are served as the whole representation
+    static final int MAX_RANGES = 32;
+
+    private final long first;
+    private final long last;
+
+    ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * @param header the Range header
+     * @param length the length of the representation
+     * @return the satisfiable ranges, empty if none can be satisfied, or null if
+     *         the header is absent or not valid and the whole representation is
+     *         served
+     */
+    public static List<ByteRange> parse(String header, long length) {
+        if (header == null || !header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+        String[] specs = header.substring(BYTES_UNIT.length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>(specs.length);
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                String firstPos = spec.substring(0, dash).trim();
+                String lastPos = spec.substring(dash + 1).trim();
+                long first;
+                long last;
+                if (firstPos.isEmpty()) {
+                    // The final bytes
+                    long suffixLength = Long.parseLong(lastPos);
+                    if (suffixLength <= 0) {
+                        continue;
+                    }
+                    first = Math.max(0, length - suffixLength);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(firstPos);
+                    last = lastPos.isEmpty() ? length - 1 : Math.min(Long.parseLong(lastPos), length - 1);
+                    if (first < 0 || (!lastPos.isEmpty() && Long.parseLong(lastPos) < first)) {
+                        return null;
+                    }
+                }
+                if (first < length) {
+                    ranges.add(new ByteRange(first, last));
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges;
+    }
+
+    public long getFirst() {
+        return first;
+    }
+
+    public long getLast() {
+        return last;
+    }
+
+    public long getLength() {
+        return last - first + 1;
+    }
+
+    /**
+     * @return the Content-Range header of the range
+     */
+    public String toContentRange(long length) {
+        return String.format("bytes %d-%d/%d", first, last, length);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * Computes derived objects on a dedicated pool sized to the available
+ * processors, so that the work does not hold up the threads serving requests,
+ * and keeps them in a cache bounded by bytes. Concurrent requests for the same
+ * key share a single computation.
+ */
+class ComputedCache {
+    @FunctionalInterface
+    interface Computation {
+        byte[] compute() throws IOException;
+    }
+
+    private final int poolSize;
+    private final ExecutorService executor;
+    private final AsyncCache<String, byte[]> cache;
+
+    /**
+     * @param threads the size of the pool, or 0 for the number of available
+     *                processors
+     */
+    ComputedCache(String metricName, int threads, long maxBytes) {
+        poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        executor = Executors.newFixedThreadPool(poolSize);
+        cache = Caffeine.newBuilder().maximumWeight(maxBytes).weigher((String k, byte[] v) -> v.length)
+                .executor(executor).recordStats().buildAsync();
+        CaffeineCacheMetrics.monitor(Metrics.globalRegistry, cache.synchronous(), metricName, Tags.empty());
+    }
+
+    int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * @return the cached object, or the computation of it started on the pool
+     *         unless already in progress. Failures of the computation complete
+     *         the future with an {@link UncheckedIOException}.
+     */
+    CompletableFuture<byte[]> getAsync(String key, Computation computation) {
+        return cache.get(key, k -> {
+            try {
+                return computation.compute();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * @param description what is computed, for error messages
+     * @return the cached or computed object
+     * @throws IllegalArgumentException as thrown by the computation
+     */
+    byte[] get(String key, Computation computation, String description) throws IOException {
+        try {
+            return getAsync(key, computation).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + description);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            if (e.getCause() instanceof IllegalArgumentException) {
+                throw (IllegalArgumentException) e.getCause();
+            }
+            throw new IOException("Failed to compute " + description, e.getCause());
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
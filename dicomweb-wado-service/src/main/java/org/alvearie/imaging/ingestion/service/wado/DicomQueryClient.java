@@ -5,7 +5,9 @@
  */
 package org.alvearie.imaging.ingestion.service.wado;
 
+import java.io.InputStream;
 import java.util.List;
+import java.util.concurrent.CompletionStage;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.ws.rs.GET;
@@ -19,6 +21,10 @@ import org.alvearie.imaging.ingestion.model.result.DicomEntityResult;
 import org.alvearie.imaging.ingestion.model.result.DicomQueryModel;
 import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
 
+/**
+ * Client of the query service. Lookups used by WADO-RS complete asynchronously so
+ * the request thread is not held while the query service responds.
+ */
 @Path("")
 @RegisterRestClient
 @ApplicationScoped
@@ -26,23 +32,35 @@ public interface DicomQueryClient {
     @GET
     @Path("/studies/{studyUID}")
     @Produces("application/json")
-    List<DicomEntityResult> getResults(@PathParam("studyUID") String studyUID, @QueryParam("source") String source);
+    CompletionStage<List<DicomEntityResult>> getResultsAsync(@PathParam("studyUID") String studyUID,
+            @QueryParam("source") String source);
 
     @GET
     @Path("/studies/{studyUID}/series/{seriesUID}")
     @Produces("application/json")
-    List<DicomEntityResult> getResults(@PathParam("studyUID") String studyUID, @PathParam("seriesUID") String seriesUID,
-            @QueryParam("source") String source);
+    CompletionStage<List<DicomEntityResult>> getResultsAsync(@PathParam("studyUID") String studyUID,
+            @PathParam("seriesUID") String seriesUID, @QueryParam("source") String source);
 
     @GET
     @Path("/studies/{studyUID}/series/{seriesUID}/instances/{instanceUID}")
     @Produces("application/json")
-    List<DicomEntityResult> getResults(@PathParam("studyUID") String studyUID, @PathParam("seriesUID") String seriesUID,
-            @PathParam("instanceUID") String instanceUID, @QueryParam("source") String source);
+    CompletionStage<List<DicomEntityResult>> getResultsAsync(@PathParam("studyUID") String studyUID,
+            @PathParam("seriesUID") String seriesUID, @PathParam("instanceUID") String instanceUID,
+            @QueryParam("source") String source);
 
     @POST
     @Path("/studies")
     @Produces("application/json")
     List<DicomEntityResult> getResults(DicomQueryModel model, @QueryParam("source") String source);
 
+    @POST
+    @Path("/studies/count")
+    @Produces("application/json")
+    long count(DicomQueryModel model, @QueryParam("source") String source);
+
+    @POST
+    @Path("/studies/stream")
+    @Produces("application/x-ndjson")
+    InputStream getResultStream(DicomQueryModel model, @QueryParam("source") String source);
+
 }
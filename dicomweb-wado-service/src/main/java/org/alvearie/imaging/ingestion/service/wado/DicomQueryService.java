@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.alvearie.imaging.ingestion.model.result.DicomEntityResult;
+import org.alvearie.imaging.ingestion.model.result.DicomQueryModel;
+import org.alvearie.imaging.ingestion.service.s3.SingleFlight;
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Looks up studies, series and instances through the query service. Identical
+ * lookups made while one is in flight, such as when a study is opened on many
+ * workstations at once, share its result, and results are kept in the
+ * {@link QueryResultCache} for a short time. The results are shared between
+ * requests and must not be modified.
+ */
+@ApplicationScoped
+public class DicomQueryService {
+    @Inject
+    @RestClient
+    DicomQueryClient queryClient;
+
+    @Inject
+    QueryResultCache cache;
+
+    @Inject
+    ObjectMapper mapper;
+
+    private final SingleFlight<String, List<DicomEntityResult>> flights = new SingleFlight<>("wado.query");
+
+    public CompletionStage<List<DicomEntityResult>> getResultsAsync(String studyUID, String source) {
+        return getResultsAsync(studyUID, getQueryKey(source, studyUID),
+                () -> queryClient.getResultsAsync(studyUID, source));
+    }
+
+    public CompletionStage<List<DicomEntityResult>> getResultsAsync(String studyUID, String seriesUID,
+            String source) {
+        return getResultsAsync(studyUID, getQueryKey(source, studyUID, seriesUID),
+                () -> queryClient.getResultsAsync(studyUID, seriesUID, source));
+    }
+
+    public CompletionStage<List<DicomEntityResult>> getResultsAsync(String studyUID, String seriesUID,
+            String instanceUID, String source) {
+        return getResultsAsync(studyUID, getQueryKey(source, studyUID, seriesUID, instanceUID),
+                () -> queryClient.getResultsAsync(studyUID, seriesUID, instanceUID, source));
+    }
+
+    public List<DicomEntityResult> getResults(DicomQueryModel model, String source) {
+        return cache.get(model.getStudyUid(), getQueryKey(source, model),
+                () -> queryClient.getResults(model, source));
+    }
+
+    /**
+     * @return the number of results of the query across all pages, which is not
+     *         cached
+     */
+    public long count(DicomQueryModel model, String source) {
+        return queryClient.count(model, source);
+    }
+
+    /**
+     * @return the results of the query as newline delimited JSON, read as the
+     *         query service writes them and not cached. The stream must be
+     *         closed.
+     */
+    public InputStream getResultStream(DicomQueryModel model, String source) {
+        return queryClient.getResultStream(model, source);
+    }
+
+    private CompletionStage<List<DicomEntityResult>> getResultsAsync(String studyUID, String key,
+            Supplier<CompletionStage<List<DicomEntityResult>>> call) {
+        return cache.getAsync(studyUID, key, () -> flights.execute(key, call));
+    }
+
+    private static String getQueryKey(String source, String... uids) {
+        return source + "/" + String.join("/", uids);
+    }
+
+    private String getQueryKey(String source, DicomQueryModel model) {
+        // Map entries are sorted so that equal models have equal keys
+        ObjectWriter writer = mapper.writer().with(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
+        try {
+            return source + "?" + writer.writeValueAsString(model);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Failed to serialize query " + model, e);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.io.IOException;
+
+import javax.inject.Inject;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.alvearie.imaging.ingestion.event.DicomAvailableEvent;
+import org.alvearie.imaging.ingestion.event.Events;
+import org.alvearie.imaging.ingestion.event.StudyRevisionEvent;
+import org.jboss.logging.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Receives binary mode cloud events announcing changes to studies, drops the
+ * cached query results they affect, schedules the generation of thumbnails for
+ * newly available instances and starts building the metadata snapshots of new
+ * study revisions.
+ */
+@Path("/events")
+public class EventResource {
+    private static final Logger LOG = Logger.getLogger(EventResource.class);
+
+    static final String METRIC_NAME = "wado.query.cache.invalidations";
+
+    private static final String STUDIES_PATH = "/studies/";
+    private static final String SERIES_PATH = "/series/";
+
+    @Inject
+    QueryResultCache queryResultCache;
+
+    @Inject
+    ThumbnailService thumbnailService;
+
+    @Inject
+    MetadataSnapshotService snapshotService;
+
+    @Inject
+    ObjectMapper mapper;
+
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response receive(@HeaderParam("Ce-Id") String id, @HeaderParam("Ce-Type") String type, String data) {
+        String studyUID = null;
+        String seriesUID = null;
+        try {
+            if (Events.StudyRevisionEvent.equals(type)) {
+                StudyRevisionEvent event = mapper.readValue(data, StudyRevisionEvent.class);
+                studyUID = event.getStudy() == null ? null : event.getStudy().getStudyInstanceUID();
+            } else if (Events.DicomAvailableEvent.equals(type)) {
+                DicomAvailableEvent event = mapper.readValue(data, DicomAvailableEvent.class);
+                studyUID = getPathParam(event.getEndpoint(), STUDIES_PATH);
+                seriesUID = getPathParam(event.getEndpoint(), SERIES_PATH);
+            }
+        } catch (IOException e) {
+            LOG.warnf("Failed to parse %s event %s: %s", type, id, e.getMessage());
+            return Response.status(Status.BAD_REQUEST).build();
+        }
+
+        if (studyUID == null) {
+            LOG.debugf("Ignoring %s event %s", type, id);
+            return Response.noContent().build();
+        }
+
+        LOG.debugf("Invalidating study %s for %s event %s", studyUID, type, id);
+        queryResultCache.invalidateStudy(studyUID);
+        Metrics.counter(METRIC_NAME, "event", type).increment();
+        if (seriesUID != null) {
+            thumbnailService.seriesUpdated(studyUID, seriesUID);
+        }
+        if (Events.StudyRevisionEvent.equals(type)) {
+            snapshotService.studyRevised(studyUID);
+        }
+        return Response.noContent().build();
+    }
+
+    /**
+     * @param endpoint the WADO-RS URL of an instance
+     * @param path     the path segment preceding the UID
+     * @return the UID in the URL, or null if it has none
+     */
+    static String getPathParam(String endpoint, String path) {
+        if (endpoint == null) {
+            return null;
+        }
+        int start = endpoint.indexOf(path);
+        if (start < 0) {
+            return null;
+        }
+        start += path.length();
+        int end = endpoint.indexOf('/', start);
+        return end < 0 ? endpoint.substring(start) : endpoint.substring(start, end);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+import org.alvearie.imaging.ingestion.service.s3.FrameIndex;
+import org.alvearie.imaging.ingestion.service.s3.StoreService;
+import org.alvearie.imaging.ingestion.service.s3.StoredObject;
+import org.jboss.logging.Logger;
+
+/**
+ * Reads the fragments of the requested frames of an object in order with a
+ * bounded number of ranges outstanding. Taking a fragment starts the reads of
+ * the fragments following it, so the next frames are read while one is written
+ * without every requested frame being held at once.
+ */
+public class FragmentPrefetcher implements Closeable {
+    private static final Logger LOG = Logger.getLogger(FragmentPrefetcher.class);
+
+    private final StoreService storeService;
+    private final String objectKey;
+    private final int inFlight;
+    private final List<Long> offsets = new ArrayList<>();
+    private final List<Integer> lengths = new ArrayList<>();
+    private final int[] firstFragments;
+    private final CompletableFuture<?>[] reads;
+    private int submitted;
+
+    FragmentPrefetcher(StoreService storeService, String objectKey, FrameIndex frameIndex, int[] frames,
+            int inFlight) {
+        this.storeService = storeService;
+        this.objectKey = objectKey;
+        this.inFlight = inFlight;
+        this.firstFragments = new int[frames.length + 1];
+        for (int i = 0; i < frames.length; i++) {
+            firstFragments[i] = offsets.size();
+            long[] frameOffsets = frameIndex.getFragmentOffsets(frames[i]);
+            int[] frameLengths = frameIndex.getFragmentLengths(frames[i]);
+            for (int j = 0; j < frameOffsets.length; j++) {
+                offsets.add(frameOffsets[j]);
+                lengths.add(frameLengths[j]);
+            }
+        }
+        firstFragments[frames.length] = offsets.size();
+        this.reads = new CompletableFuture<?>[offsets.size()];
+    }
+
+    /**
+     * Starts reading the first fragments.
+     *
+     * @return completed once the fragments of the first frame have been opened,
+     *         exceptionally if one could not be
+     */
+    public synchronized CompletableFuture<Void> start() {
+        submitUpTo(Math.max(inFlight, firstFragments[1]));
+        List<CompletableFuture<?>> first = new ArrayList<>();
+        for (int i = 0; i < firstFragments[1]; i++) {
+            first.add(reads[i]);
+        }
+        return CompletableFuture.allOf(first.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Writes the fragments of a frame; frames must be written in order.
+     *
+     * @param index position of the frame in the requested frames
+     */
+    public void writeFrame(int index, OutputStream out) throws IOException {
+        for (int i = firstFragments[index]; i < firstFragments[index + 1]; i++) {
+            try (StoredObject fragment = take(i)) {
+                fragment.transferTo(out);
+            }
+        }
+    }
+
+    private synchronized StoredObject take(int index) throws IOException {
+        submitUpTo(index + inFlight);
+        @SuppressWarnings("unchecked")
+        CompletableFuture<StoredObject> read = (CompletableFuture<StoredObject>) reads[index];
+        reads[index] = null;
+        try {
+            return read.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            read.thenAccept(FragmentPrefetcher::closeQuietly);
+            throw new InterruptedIOException("Interrupted reading " + objectKey);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed reading fragment of " + objectKey, cause);
+        }
+    }
+
+    private void submitUpTo(int end) {
+        while (submitted < Math.min(end, reads.length)) {
+            reads[submitted] = storeService.retrieveAsync(objectKey, offsets.get(submitted),
+                    lengths.get(submitted));
+            submitted++;
+        }
+    }
+
+    /**
+     * Closes the fragments read but not taken, including the ones still being
+     * read once they are opened.
+     */
+    @Override
+    public synchronized void close() {
+        for (int i = 0; i < reads.length; i++) {
+            if (reads[i] != null) {
+                @SuppressWarnings("unchecked")
+                CompletableFuture<StoredObject> read = (CompletableFuture<StoredObject>) reads[i];
+                read.thenAccept(FragmentPrefetcher::closeQuietly);
+                reads[i] = null;
+            }
+        }
+    }
+
+    private static void closeQuietly(StoredObject object) {
+        try {
+            object.close();
+        } catch (IOException e) {
+            LOG.debug("Failed closing " + object, e);
+        }
+    }
+}
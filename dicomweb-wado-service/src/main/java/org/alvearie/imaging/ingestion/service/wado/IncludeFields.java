@@ -0,0 +1,178 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.io.IOException;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.ElementDictionary;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomInputHandler;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.util.StreamUtils;
+
+/**
+ * Top level attributes selected by the includefields parameter of a metadata
+ * request. The selection is applied while the object is parsed: unselected
+ * attributes are skipped and parsing stops after the last selected attribute.
+ * Attribute paths into sequences select the whole top level sequence.
+ */
+public class IncludeFields {
+    public static final String ALL = "all";
+
+    // Identify each instance of a study or series
+    private static final int[] ALWAYS_INCLUDED = { Tag.SOPClassUID, Tag.SOPInstanceUID, Tag.StudyInstanceUID,
+            Tag.SeriesInstanceUID };
+
+    private final int[] tags;
+    private final int lastTag;
+
+    private IncludeFields(int[] tags) {
+        this.tags = tags;
+        this.lastTag = tags[tags.length - 1];
+    }
+
+    /**
+     * @param includefields comma separated attribute keywords or tags
+     * @return the selection, or null if all attributes are requested
+     * @throws IllegalArgumentException if an attribute is not known
+     */
+    public static IncludeFields parse(String includefields) {
+        if (includefields == null || includefields.isBlank()) {
+            return null;
+        }
+
+        SortedSet<Integer> selection = new TreeSet<>(Integer::compareUnsigned);
+        for (int tag : ALWAYS_INCLUDED) {
+            selection.add(tag);
+        }
+        for (String field : includefields.split(",")) {
+            field = field.trim();
+            if (ALL.equalsIgnoreCase(field)) {
+                return null;
+            }
+            int dot = field.indexOf('.');
+            selection.add(toTag(dot < 0 ? field : field.substring(0, dot)));
+        }
+        return new IncludeFields(selection.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    private static int toTag(String field) {
+        int tag = ElementDictionary.tagForKeyword(field, null);
+        if (tag != -1) {
+            return tag;
+        }
+        try {
+            if (field.length() == 8) {
+                return Integer.parseUnsignedInt(field, 16);
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Unknown attribute " + field);
+    }
+
+    public boolean includes(int tag) {
+        for (int selected : tags) {
+            if (selected == tag) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the selected attributes of the dataset
+     */
+    public Attributes select(Attributes dataset) {
+        return new Attributes(dataset, tags);
+    }
+
+    /**
+     * Reads the selected attributes of a dataset up to its pixel data.
+     */
+    public Attributes read(DicomInputStream dis) throws IOException {
+        SelectingHandler handler = new SelectingHandler(dis);
+        dis.setDicomInputHandler(handler);
+        try {
+            return dis.readDatasetUntilPixelData();
+        } catch (StopParsing e) {
+            return handler.dataset;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int tag : tags) {
+            sb.append(String.format("%08X", tag));
+        }
+        return sb.toString();
+    }
+
+    private class SelectingHandler implements DicomInputHandler {
+        private final DicomInputHandler parser;
+        private Attributes dataset;
+
+        SelectingHandler(DicomInputHandler parser) {
+            this.parser = parser;
+        }
+
+        @Override
+        public void readValue(DicomInputStream dis, Attributes attrs) throws IOException {
+            int tag = dis.tag();
+            // File meta information is always read, it sets the transfer syntax
+            if (!attrs.isRoot() || (tag >>> 16) == 2) {
+                parser.readValue(dis, attrs);
+                return;
+            }
+            dataset = attrs;
+            if (Integer.compareUnsigned(tag, lastTag) > 0) {
+                throw new StopParsing();
+            }
+            if (includes(tag)) {
+                parser.readValue(dis, attrs);
+            } else if (dis.length() >= 0) {
+                StreamUtils.skipFully(dis, dis.length());
+            } else {
+                // Sequences of undefined length have to be parsed to find their end
+                parser.readValue(dis, new Attributes(attrs.bigEndian()));
+            }
+        }
+
+        @Override
+        public void readValue(DicomInputStream dis, Sequence seq) throws IOException {
+            parser.readValue(dis, seq);
+        }
+
+        @Override
+        public void readValue(DicomInputStream dis, Fragments frags) throws IOException {
+            parser.readValue(dis, frags);
+        }
+
+        @Override
+        public void startDataset(DicomInputStream dis) throws IOException {
+            parser.startDataset(dis);
+        }
+
+        @Override
+        public void endDataset(DicomInputStream dis) throws IOException {
+            parser.endDataset(dis);
+        }
+    }
+
+    private static class StopParsing extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        StopParsing() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.alvearie.imaging.ingestion.service.s3.FrameIndex;
+import org.alvearie.imaging.ingestion.service.s3.StoreService;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Creates the prefetchers with which the objects of retrieves are fetched from
+ * storage ahead of being written to the response, and holds the pool on which
+ * requests continue once their query completes.
+ */
+@ApplicationScoped
+public class InstanceFetchService {
+    @ConfigProperty(name = "wado.retrieve.instances-in-flight", defaultValue = "8")
+    int instancesInFlight;
+
+    // Kept below the storage connection pool, so that objects waiting on slow
+    // clients leave connections for other reads
+    @ConfigProperty(name = "wado.retrieve.open-objects", defaultValue = "32")
+    int openObjects;
+
+    @ConfigProperty(name = "wado.retrieve.ranges-in-flight", defaultValue = "8")
+    int rangesInFlight;
+
+    @ConfigProperty(name = "wado.retrieve.continuation-threads", defaultValue = "32")
+    int continuationThreads;
+
+    @Inject
+    StoreService storeService;
+
+    private ExecutorService continuationExecutor;
+    private Semaphore openObjectPermits;
+
+    /**
+     * @return a prefetcher for the given objects, fetching up to the configured
+     *         number of instances in flight once the first one is taken
+     */
+    public InstancePrefetcher newPrefetcher(List<String> objectKeys) {
+        return new InstancePrefetcher(storeService, objectKeys, Math.max(1, instancesInFlight), getOpenObjectPermits());
+    }
+
+    /**
+     * @return a prefetcher for the fragments of the given frames of the object,
+     *         reading up to the configured number of ranges at a time
+     */
+    public FragmentPrefetcher newFragmentPrefetcher(String objectKey, FrameIndex frameIndex, int[] frames) {
+        return new FragmentPrefetcher(storeService, objectKey, frameIndex, frames, Math.max(1, rangesInFlight));
+    }
+
+    /**
+     * @return the pool on which requests continue once their query completes, so
+     *         that reads from storage do not hold the threads of the query client
+     */
+    public synchronized Executor getContinuationExecutor() {
+        if (continuationExecutor == null) {
+            continuationExecutor = Executors.newFixedThreadPool(Math.max(1, continuationThreads));
+        }
+        return continuationExecutor;
+    }
+
+    /**
+     * @return the permits held by the objects opened for retrieves across all
+     *         requests until they are closed
+     */
+    synchronized Semaphore getOpenObjectPermits() {
+        if (openObjectPermits == null) {
+            openObjectPermits = new Semaphore(Math.max(1, openObjects));
+        }
+        return openObjectPermits;
+    }
+
+    @PreDestroy
+    synchronized void shutdown() {
+        if (continuationExecutor != null) {
+            continuationExecutor.shutdownNow();
+        }
+    }
+}
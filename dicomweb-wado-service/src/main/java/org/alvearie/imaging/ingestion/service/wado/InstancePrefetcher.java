@@ -0,0 +1,138 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.alvearie.imaging.ingestion.service.s3.StoreService;
+import org.alvearie.imaging.ingestion.service.s3.StoredObject;
+import org.jboss.logging.Logger;
+
+/**
+ * Opens the objects of a retrieve in order with a bounded number in flight.
+ * Taking an object starts the fetch of the objects following it, so while one
+ * part is written the next ones are already being opened. Objects are opened
+ * with the asynchronous reads of the store, so no thread waits on storage while
+ * they are in flight. Object contents are only read by the caller, which bounds
+ * a retrieve to that many open objects without buffering them.
+ * <p>
+ * Each open object also holds one of the permits shared by all retrieves until
+ * it is closed, which bounds the storage connections held by objects waiting
+ * to be written to slow clients. Objects ahead are only opened while permits
+ * are available, the object taken waits for one.
+ */
+public class InstancePrefetcher implements Closeable {
+    private static final Logger LOG = Logger.getLogger(InstancePrefetcher.class);
+
+    private final StoreService storeService;
+    private final List<String> objectKeys;
+    private final int inFlight;
+    private final Semaphore openObjects;
+    private final CompletableFuture<?>[] fetches;
+    private int submitted;
+
+    InstancePrefetcher(StoreService storeService, List<String> objectKeys, int inFlight, Semaphore openObjects) {
+        this.storeService = storeService;
+        this.objectKeys = objectKeys;
+        this.inFlight = inFlight;
+        this.openObjects = openObjects;
+        this.fetches = new CompletableFuture<?>[objectKeys.size()];
+    }
+
+    /**
+     * @param index position of the object in the retrieve; objects must be taken
+     *              in order
+     * @return the opened object, to be closed by the caller
+     */
+    public synchronized StoredObject take(int index) throws IOException {
+        if (submitted == index) {
+            try {
+                openObjects.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting to fetch " + objectKeys.get(index));
+            }
+            submit();
+        }
+        submitUpTo(index + inFlight);
+        @SuppressWarnings("unchecked")
+        CompletableFuture<StoredObject> fetch = (CompletableFuture<StoredObject>) fetches[index];
+        fetches[index] = null;
+        try {
+            return fetch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fetch.thenAccept(InstancePrefetcher::closeQuietly);
+            throw new InterruptedIOException("Interrupted fetching " + objectKeys.get(index));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException("Failed fetching " + objectKeys.get(index), e.getCause());
+        }
+    }
+
+    private void submitUpTo(int end) {
+        while (submitted < Math.min(end, objectKeys.size()) && openObjects.tryAcquire()) {
+            submit();
+        }
+    }
+
+    // A permit is held for the object to submit
+    private void submit() {
+        String objectKey = objectKeys.get(submitted);
+        fetches[submitted++] = fetch(objectKey);
+    }
+
+    private CompletableFuture<StoredObject> fetch(String objectKey) {
+        CompletableFuture<StoredObject> fetch;
+        try {
+            fetch = storeService.retrieveAsync(objectKey);
+        } catch (RuntimeException e) {
+            openObjects.release();
+            throw e;
+        }
+        return fetch.whenComplete((object, e) -> {
+            if (e != null) {
+                openObjects.release();
+            }
+        }).thenApply(object -> object.onClose(openObjects::release));
+    }
+
+    /**
+     * Closes the objects fetched but not taken, including the ones still in
+     * flight once they complete.
+     */
+    @Override
+    public synchronized void close() {
+        for (int i = 0; i < fetches.length; i++) {
+            if (fetches[i] != null) {
+                @SuppressWarnings("unchecked")
+                CompletableFuture<StoredObject> fetch = (CompletableFuture<StoredObject>) fetches[i];
+                fetch.thenAccept(InstancePrefetcher::closeQuietly);
+                fetches[i] = null;
+            }
+        }
+    }
+
+    private static void closeQuietly(StoredObject object) {
+        try {
+            object.close();
+        } catch (IOException e) {
+            LOG.debug("Failed closing " + object, e);
+        }
+    }
+}
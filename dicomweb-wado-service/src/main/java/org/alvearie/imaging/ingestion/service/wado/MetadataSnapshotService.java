@@ -0,0 +1,223 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.alvearie.imaging.ingestion.model.result.DicomAttribute;
+import org.alvearie.imaging.ingestion.model.result.DicomEntityResult;
+import org.alvearie.imaging.ingestion.service.s3.MetadataSidecar;
+import org.alvearie.imaging.ingestion.service.s3.StoreService;
+import org.alvearie.imaging.ingestion.service.s3.StoredObject;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomInputStream;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Study and series level application/dicom+json metadata documents, stored per
+ * study revision so that a metadata request is served with a single read. The
+ * documents are assembled from the {@link MetadataSidecar} of each instance and
+ * keep its base URI template. Snapshots are built in the background on a small
+ * pool, one build at a time per document, when a study revision event is
+ * received or when a metadata request finds them missing.
+ */
+@ApplicationScoped
+public class MetadataSnapshotService {
+    private static final Logger LOG = Logger.getLogger(MetadataSnapshotService.class);
+
+    static final String METRIC_NAME = "wado.metadata.snapshots";
+
+    @ConfigProperty(name = "wado.metadata.snapshot.enabled", defaultValue = "true")
+    boolean enabled;
+
+    @ConfigProperty(name = "wado.metadata.snapshot.threads", defaultValue = "2")
+    int threads;
+
+    @ConfigProperty(name = "provider.name")
+    String source;
+
+    @Inject
+    StoreService storeService;
+
+    @Inject
+    DicomQueryService queryService;
+
+    private final Set<String> building = ConcurrentHashMap.newKeySet();
+    private ExecutorService executor;
+    private Counter builtCounter;
+    private Counter failedCounter;
+
+    @PostConstruct
+    void init() {
+        builtCounter = Metrics.counter(METRIC_NAME, "result", "built");
+        failedCounter = Metrics.counter(METRIC_NAME, "result", "failed");
+    }
+
+    @PreDestroy
+    synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the snapshot of the study, or of the series if a series UID is
+     *         given, or null if none was stored for the revision
+     */
+    public byte[] load(String studyUID, String seriesUID, int revision) throws IOException {
+        try (StoredObject object = storeService.retrieve(getObjectName(studyUID, seriesUID, revision))) {
+            return object.getInputStream().readAllBytes();
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts building the snapshots of the new revision of a study, once its
+     * cached query results have been dropped.
+     */
+    public void studyRevised(String studyUID) {
+        if (!enabled) {
+            return;
+        }
+        queryService.getResultsAsync(studyUID, source).whenComplete((results, error) -> {
+            if (error != null) {
+                LOG.warn("Failed to query study " + studyUID + " for its metadata snapshots", error);
+                failedCounter.increment();
+            } else if (results != null && !results.isEmpty() && results.get(0).getRevision() != null) {
+                buildAsync(studyUID, null, results.get(0).getRevision(), results);
+            }
+        });
+    }
+
+    /**
+     * Starts building the snapshot of the given study or series results in the
+     * background, unless it is being built already. Failures are logged and
+     * counted, the results are served instance by instance until a build succeeds.
+     */
+    public void buildAsync(String studyUID, String seriesUID, int revision, List<DicomEntityResult> results) {
+        if (!enabled) {
+            return;
+        }
+        String objectName = getObjectName(studyUID, seriesUID, revision);
+        if (!building.add(objectName)) {
+            return;
+        }
+        getExecutor().execute(() -> {
+            try {
+                build(studyUID, seriesUID, revision, results);
+                builtCounter.increment();
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Failed to build metadata snapshot " + objectName, e);
+                failedCounter.increment();
+            } finally {
+                building.remove(objectName);
+            }
+        });
+    }
+
+    /**
+     * Builds and stores the snapshot of the given study or series results. For a
+     * study, the snapshot of each of its series is stored as well.
+     *
+     * @return the snapshot of the study, or of the series if a series UID is
+     *         given
+     */
+    public byte[] build(String studyUID, String seriesUID, int revision, List<DicomEntityResult> results)
+            throws IOException {
+        Snapshot snapshot = new Snapshot();
+        Map<String, Snapshot> seriesSnapshots = new LinkedHashMap<>();
+        for (DicomEntityResult result : results) {
+            byte[] metadata = loadInstanceMetadata(result.getResource().getObjectName());
+            snapshot.add(metadata);
+            String resultSeriesUID = getSeriesInstanceUID(result);
+            if (seriesUID == null && resultSeriesUID != null) {
+                seriesSnapshots.computeIfAbsent(resultSeriesUID, k -> new Snapshot()).add(metadata);
+            }
+        }
+
+        for (Map.Entry<String, Snapshot> e : seriesSnapshots.entrySet()) {
+            storeService.store(getObjectName(studyUID, e.getKey(), revision), e.getValue().toByteArray());
+        }
+        byte[] data = snapshot.toByteArray();
+        storeService.store(getObjectName(studyUID, seriesUID, revision), data);
+        LOG.infof("Stored metadata snapshot of %d instances for %s revision %d", results.size(),
+                seriesUID == null ? studyUID : seriesUID, revision);
+        return data;
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        }
+        return executor;
+    }
+
+    static String getObjectName(String studyUID, String seriesUID, int revision) {
+        if (seriesUID == null) {
+            return String.format("%s.r%d%s", studyUID, revision, MetadataSidecar.OBJECT_SUFFIX);
+        }
+        return String.format("%s.%s.r%d%s", studyUID, seriesUID, revision, MetadataSidecar.OBJECT_SUFFIX);
+    }
+
+    private byte[] loadInstanceMetadata(String objectKey) throws IOException {
+        byte[] metadata = storeService.retrieveMetadata(objectKey);
+        if (metadata != null) {
+            return metadata;
+        }
+
+        // Objects stored without a sidecar
+        try (StoredObject object = storeService.retrieve(objectKey);
+                DicomInputStream dis = new DicomInputStream(object.getInputStream())) {
+            Attributes attrs = dis.readDatasetUntilPixelData();
+            return MetadataSidecar.toBytes(attrs, dis.tag() == Tag.PixelData ? dis.vr() : null, dis.bigEndian());
+        }
+    }
+
+    private String getSeriesInstanceUID(DicomEntityResult result) {
+        DicomAttribute attribute = result.getAttributes().get(String.format("%08X", Tag.SeriesInstanceUID));
+        if (attribute != null && attribute.getValue() != null) {
+            return attribute.getValue().get(0);
+        }
+        return null;
+    }
+
+    private static class Snapshot {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        void add(byte[] metadata) {
+            out.write(out.size() == 0 ? '[' : ',');
+            out.writeBytes(metadata);
+        }
+
+        byte[] toByteArray() {
+            if (out.size() == 0) {
+                out.write('[');
+            }
+            out.write(']');
+            return out.toByteArray();
+        }
+    }
+}
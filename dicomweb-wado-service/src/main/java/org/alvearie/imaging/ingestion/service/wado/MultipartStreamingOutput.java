@@ -0,0 +1,144 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Multipart response body whose parts are written directly to the response
+ * stream when the body is written, instead of being materialized up front.
+ */
+public class MultipartStreamingOutput implements StreamingOutput, Closeable {
+    private static final Logger LOG = Logger.getLogger(MultipartStreamingOutput.class);
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    @FunctionalInterface
+    public interface PartWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static class Part {
+        private final MediaType mediaType;
+        private final Map<String, String> headers;
+        private final PartWriter writer;
+
+        private Part(MediaType mediaType, Map<String, String> headers, PartWriter writer) {
+            this.mediaType = mediaType;
+            this.headers = headers;
+            this.writer = writer;
+        }
+    }
+
+    private final String boundary = UUID.randomUUID().toString();
+    private final List<Part> parts = new ArrayList<>();
+    private final List<Closeable> resources = new ArrayList<>();
+
+    public void addPart(MediaType mediaType, PartWriter writer) {
+        addPart(mediaType, Collections.emptyMap(), writer);
+    }
+
+    /**
+     * Adds a part with headers besides its Content-Type.
+     */
+    public void addPart(MediaType mediaType, Map<String, String> headers, PartWriter writer) {
+        parts.add(new Part(mediaType, headers, writer));
+    }
+
+    /**
+     * Adds a resource used by the part writers, closed once the body has been
+     * written, writing it failed or the response was abandoned.
+     */
+    public void addResource(Closeable resource) {
+        resources.add(resource);
+    }
+
+    public String getBoundary() {
+        return boundary;
+    }
+
+    /**
+     * @return the given multipart media type with the boundary parameter of
+     *         this output added
+     */
+    public MediaType getMediaType(MediaType multipartType) {
+        Map<String, String> parameters = new HashMap<>(multipartType.getParameters());
+        parameters.put("boundary", boundary);
+        return new MediaType(multipartType.getType(), multipartType.getSubtype(), parameters);
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException, WebApplicationException {
+        try {
+            for (Part part : parts) {
+                writePartHeader(out, part);
+                part.writer.writeTo(out);
+                out.write(CRLF);
+            }
+            writeAscii(out, "--" + boundary + "--");
+            out.write(CRLF);
+            out.flush();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Closes the resources of the part writers, also when the body is not
+     * written because the response was abandoned.
+     */
+    @Override
+    public void close() {
+        closeAll(resources);
+    }
+
+    /**
+     * Closes each of the resources once, logging rather than propagating the
+     * failure to close one so the others are still closed.
+     */
+    static void closeAll(List<Closeable> resources) {
+        synchronized (resources) {
+            for (Closeable resource : resources) {
+                try {
+                    resource.close();
+                } catch (IOException | RuntimeException e) {
+                    LOG.debug("Failed closing " + resource, e);
+                }
+            }
+            resources.clear();
+        }
+    }
+
+    private void writePartHeader(OutputStream out, Part part) throws IOException {
+        writeAscii(out, "--" + boundary);
+        out.write(CRLF);
+        writeAscii(out, "Content-Type: " + part.mediaType.toString());
+        out.write(CRLF);
+        for (Map.Entry<String, String> header : part.headers.entrySet()) {
+            writeAscii(out, header.getKey() + ": " + header.getValue());
+            out.write(CRLF);
+        }
+        out.write(CRLF);
+    }
+
+    private static void writeAscii(OutputStream out, String value) throws IOException {
+        out.write(value.getBytes(StandardCharsets.US_ASCII));
+    }
+}
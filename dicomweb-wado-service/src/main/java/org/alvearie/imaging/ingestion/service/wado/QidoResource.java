@@ -6,6 +6,8 @@
 package org.alvearie.imaging.ingestion.service.wado;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -25,6 +27,7 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 
 import org.alvearie.imaging.ingestion.model.result.DicomEntityResult;
@@ -32,10 +35,13 @@ import org.alvearie.imaging.ingestion.model.result.DicomQueryModel;
 import org.alvearie.imaging.ingestion.model.result.DicomSearchResult;
 import org.dcm4che3.data.Tag;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
-import org.eclipse.microprofile.rest.client.inject.RestClient;
 import org.jboss.logging.Logger;
 import org.jboss.resteasy.annotations.GZIP;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 @RequestScoped
 @Path("/wado-rs")
 @GZIP
@@ -45,9 +51,14 @@ public class QidoResource {
     @ConfigProperty(name = "provider.name")
     String source;
 
+    @ConfigProperty(name = "wado.query.stream.threshold")
+    int streamThreshold;
+
     @Inject
-    @RestClient
-    DicomQueryClient queryClient;
+    DicomQueryService queryService;
+
+    @Inject
+    ObjectMapper mapper;
 
     public final static String APPLICATION_DICOM_JSON = "application/dicom+json";
     public final static MediaType APPLICATION_DICOM_JSON_TYPE = new MediaType("application", "dicom+json");
@@ -57,6 +68,10 @@ public class QidoResource {
     public static final String QUERY_PARAM_OFFSET = "offset";
     public static final String QUERY_PARAM_LIMIT = "limit";
     public static final String QUERY_PARAM_INCLUDEFIELD = "includefield";
+    public static final String QUERY_PARAM_AFTER = "after";
+    public static final String QUERY_PARAM_COUNT = "count";
+
+    public static final String TOTAL_COUNT_HEADER = "X-Total-Count";
 
     public enum ValidPatientTags {
         PatientName(Tag.PatientName), PatientId(Tag.PatientID);
@@ -209,7 +224,7 @@ public class QidoResource {
             @Suspended AsyncResponse ar) throws IOException {
         DicomQueryModel model = new DicomQueryModel();
         model.setScope(DicomQueryModel.Scope.STUDY);
-        buildQidoResponse(model, uriInfo.getQueryParameters(), ar);
+        buildQidoResponse(model, uriInfo, ar);
     }
 
     @GET
@@ -220,7 +235,7 @@ public class QidoResource {
         DicomQueryModel model = new DicomQueryModel();
         model.setScope(DicomQueryModel.Scope.SERIES);
         model.setStudyUid(studyUID);
-        buildQidoResponse(model, uriInfo.getQueryParameters(), ar);
+        buildQidoResponse(model, uriInfo, ar);
     }
 
     @GET
@@ -232,7 +247,7 @@ public class QidoResource {
         model.setScope(DicomQueryModel.Scope.INSTANCE);
         model.setStudyUid(studyUID);
         model.setSeriesUid(seriesUID);
-        buildQidoResponse(model, uriInfo.getQueryParameters(), ar);
+        buildQidoResponse(model, uriInfo, ar);
     }
 
     @GET
@@ -243,7 +258,7 @@ public class QidoResource {
         DicomQueryModel model = new DicomQueryModel();
         model.setScope(DicomQueryModel.Scope.INSTANCE);
         model.setStudyUid(studyUID);
-        buildQidoResponse(model, uriInfo.getQueryParameters(), ar);
+        buildQidoResponse(model, uriInfo, ar);
     }
 
     @GET
@@ -252,7 +267,7 @@ public class QidoResource {
     public void searchSeries(@Context UriInfo uriInfo, @Suspended AsyncResponse ar) {
         DicomQueryModel model = new DicomQueryModel();
         model.setScope(DicomQueryModel.Scope.SERIES);
-        buildQidoResponse(model, uriInfo.getQueryParameters(), ar);
+        buildQidoResponse(model, uriInfo, ar);
     }
 
     @GET
@@ -261,15 +276,20 @@ public class QidoResource {
     public void searchInstance(@Context UriInfo uriInfo, @Suspended AsyncResponse ar) {
         DicomQueryModel model = new DicomQueryModel();
         model.setScope(DicomQueryModel.Scope.INSTANCE);
-        buildQidoResponse(model, uriInfo.getQueryParameters(), ar);
+        buildQidoResponse(model, uriInfo, ar);
     }
 
-    private void buildQidoResponse(DicomQueryModel model, MultivaluedMap<String, String> queryParams,
-            AsyncResponse ar) {
+    private void buildQidoResponse(DicomQueryModel model, UriInfo uriInfo, AsyncResponse ar) {
+        MultivaluedMap<String, String> queryParams = uriInfo.getQueryParameters();
         queryParams.entrySet().iterator().forEachRemaining(e -> handleQueryParameter(model, e));
         LOG.info("Qido Model: " + model.toString());
 
-        List<DicomEntityResult> results = queryClient.getResults(model, source);
+        if (model.getLimit() > streamThreshold) {
+            ar.resume(buildStreamedResponse(model, queryParams));
+            return;
+        }
+
+        List<DicomEntityResult> results = queryService.getResults(model, source);
         Response.ResponseBuilder responseBuilder;
         if (results != null) {
             List<DicomSearchResult> narrowedResults = new ArrayList<DicomSearchResult>();
@@ -282,6 +302,20 @@ public class QidoResource {
             cc.setNoCache(true);
             cc.setPrivate(true);
             responseBuilder = Response.ok(narrowedResults).cacheControl(cc);
+
+            // A full page links to the next, which continues after its last result
+            int limit = model.getLimit() == 0 ? DEFAULT_LIMIT : model.getLimit();
+            if (!results.isEmpty() && results.size() >= limit) {
+                String cursor = results.get(results.size() - 1).getCursor();
+                if (cursor != null) {
+                    URI next = uriInfo.getRequestUriBuilder().replaceQueryParam(QUERY_PARAM_OFFSET)
+                            .replaceQueryParam(QUERY_PARAM_AFTER, cursor).build();
+                    responseBuilder.link(next, "next");
+                }
+            }
+            if (Boolean.parseBoolean(queryParams.getFirst(QUERY_PARAM_COUNT))) {
+                responseBuilder.header(TOTAL_COUNT_HEADER, queryService.count(model, source));
+            }
         } else {
             responseBuilder = Response.status(Status.NOT_FOUND);
         }
@@ -289,6 +323,41 @@ public class QidoResource {
         ar.resume(responseBuilder.build());
     }
 
+    /**
+     * Writes the results of a query with a large limit as they are read from the
+     * query service, rather than reading them into a list. The results are not
+     * cached, and the response has no link to a next page.
+     */
+    private Response buildStreamedResponse(DicomQueryModel model, MultivaluedMap<String, String> queryParams) {
+        Long count = null;
+        if (Boolean.parseBoolean(queryParams.getFirst(QUERY_PARAM_COUNT))) {
+            count = queryService.count(model, source);
+        }
+        // Opened once the response is written, so that it is not left open when
+        // the response is not
+        StreamingOutput output = out -> {
+            try (InputStream in = queryService.getResultStream(model, source);
+                    MappingIterator<DicomEntityResult> results = mapper.readerFor(DicomEntityResult.class)
+                            .readValues(in);
+                    JsonGenerator gen = mapper.getFactory().createGenerator(out)) {
+                gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                gen.writeStartArray();
+                while (results.hasNextValue()) {
+                    DicomSearchResult searchResult = new DicomSearchResult();
+                    searchResult.setAttributes(results.nextValue().getAttributes());
+                    gen.writeObject(searchResult);
+                }
+                gen.writeEndArray();
+            }
+        };
+
+        CacheControl cc = new CacheControl();
+        cc.setNoCache(true);
+        cc.setPrivate(true);
+        return Response.ok(output, APPLICATION_DICOM_JSON_TYPE).cacheControl(cc).header(TOTAL_COUNT_HEADER, count)
+                .build();
+    }
+
     private void handleQueryParameter(DicomQueryModel model, Entry<String, List<String>> entry) {
         if (entry.getKey().equals(QUERY_PARAM_FUZZYMATCHING)) {
             model.setFuzzyMatching(Boolean.valueOf(entry.getValue().get(0)));
@@ -298,6 +367,10 @@ public class QidoResource {
             model.setLimit(getIntQueryParam(entry.getValue().get(0), DEFAULT_LIMIT));
         } else if (entry.getKey().equals(QUERY_PARAM_INCLUDEFIELD)) {
             filteredFields(entry.getValue(), model.getIncludedFields());
+        } else if (entry.getKey().equals(QUERY_PARAM_AFTER)) {
+            model.setAfter(entry.getValue().get(0));
+        } else if (entry.getKey().equals(QUERY_PARAM_COUNT)) {
+            // Handled once the results are found
         } else {
             getPatientQueryAttributes(entry.getKey(), entry.getValue().get(0), model.getQueryAttributes());
             switch (model.getScope()) {
@@ -0,0 +1,163 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+
+import org.alvearie.imaging.ingestion.model.result.DicomEntityResult;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * Keeps query results for a short time so that navigating within a study does
+ * not query the database on every request. Results are invalidated when the
+ * study changes, as announced by the study events delivered to the WADO
+ * service, and expire after the configured time to live in case an event is
+ * missed. Results of searches that are not limited to one study are
+ * invalidated by a change to any study. Empty results are not cached, so a
+ * study is found as soon as it has been stored.
+ */
+@ApplicationScoped
+public class QueryResultCache {
+    private static final Logger LOG = Logger.getLogger(QueryResultCache.class);
+
+    static final String METRIC_NAME = "wado.query.cache";
+
+    private static final int GENERATION_STRIPES = 64;
+
+    @ConfigProperty(name = "wado.query.cache.enabled", defaultValue = "true")
+    boolean enabled;
+
+    @ConfigProperty(name = "wado.query.cache.max-entries", defaultValue = "10000")
+    long maxEntries;
+
+    @ConfigProperty(name = "wado.query.cache.ttl", defaultValue = "PT30S")
+    Duration ttl;
+
+    private Cache<Key, List<DicomEntityResult>> cache;
+
+    // Invalidations since a query was sent make its results stale
+    private final AtomicLongArray studyGenerations = new AtomicLongArray(GENERATION_STRIPES);
+    private final AtomicLong generation = new AtomicLong();
+
+    @PostConstruct
+    void init() {
+        if (!enabled) {
+            LOG.info("Query result cache disabled");
+            return;
+        }
+        cache = Caffeine.newBuilder().maximumSize(maxEntries).expireAfterWrite(ttl).recordStats().build();
+        CaffeineCacheMetrics.monitor(Metrics.globalRegistry, cache, METRIC_NAME, Tags.empty());
+        LOG.infof("Caching up to %d query results for %s", maxEntries, ttl);
+    }
+
+    /**
+     * @param studyUID the study the query is limited to, or null
+     * @param query    identifies the query
+     * @param loader   runs the query if its results are not cached
+     */
+    public CompletionStage<List<DicomEntityResult>> getAsync(String studyUID, String query,
+            Supplier<CompletionStage<List<DicomEntityResult>>> loader) {
+        if (!enabled) {
+            return loader.get();
+        }
+        Key key = new Key(studyUID, query);
+        List<DicomEntityResult> results = cache.getIfPresent(key);
+        if (results != null) {
+            return CompletableFuture.completedFuture(results);
+        }
+        long startGeneration = getGeneration(studyUID);
+        return loader.get().thenApply(loaded -> {
+            put(key, startGeneration, loaded);
+            return loaded;
+        });
+    }
+
+    /**
+     * @see #getAsync(String, String, Supplier)
+     */
+    public List<DicomEntityResult> get(String studyUID, String query, Supplier<List<DicomEntityResult>> loader) {
+        if (!enabled) {
+            return loader.get();
+        }
+        Key key = new Key(studyUID, query);
+        List<DicomEntityResult> results = cache.getIfPresent(key);
+        if (results != null) {
+            return results;
+        }
+        long startGeneration = getGeneration(studyUID);
+        results = loader.get();
+        put(key, startGeneration, results);
+        return results;
+    }
+
+    /**
+     * Drops the results of queries that a change to the study may affect.
+     */
+    public void invalidateStudy(String studyUID) {
+        if (!enabled) {
+            return;
+        }
+        studyGenerations.incrementAndGet(getStripe(studyUID));
+        generation.incrementAndGet();
+        cache.asMap().keySet().removeIf(key -> key.studyUID == null || key.studyUID.equals(studyUID));
+    }
+
+    private void put(Key key, long startGeneration, List<DicomEntityResult> results) {
+        if (results != null && !results.isEmpty() && getGeneration(key.studyUID) == startGeneration) {
+            cache.put(key, results);
+        }
+    }
+
+    private long getGeneration(String studyUID) {
+        return studyUID == null ? generation.get() : studyGenerations.get(getStripe(studyUID));
+    }
+
+    private static int getStripe(String studyUID) {
+        return Math.floorMod(studyUID.hashCode(), GENERATION_STRIPES);
+    }
+
+    private static final class Key {
+        private final String studyUID;
+        private final String query;
+
+        Key(String studyUID, String query) {
+            this.studyUID = studyUID;
+            this.query = query;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return Objects.equals(studyUID, other.studyUID) && query.equals(other.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(studyUID, query);
+        }
+    }
+}
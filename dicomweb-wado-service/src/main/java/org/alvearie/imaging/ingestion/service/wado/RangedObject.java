@@ -0,0 +1,79 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.alvearie.imaging.ingestion.service.s3.StoreService;
+import org.alvearie.imaging.ingestion.service.s3.StoredObject;
+
+/**
+ * A stored object, or a contiguous part of one such as its pixel data, that is
+ * returned as a single application/octet-stream body and can be retrieved in
+ * byte ranges. Ranges are read from the store with ranged reads.
+ */
+public class RangedObject {
+    private final String objectKey;
+    private final long offset;
+    private final long length;
+
+    private RangedObject(String objectKey, long offset, long length) {
+        this.objectKey = objectKey;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * @return the whole object, whose length is looked up when needed
+     */
+    public static RangedObject of(String objectKey) {
+        return new RangedObject(objectKey, 0, -1);
+    }
+
+    /**
+     * @return the part of the object at the offset
+     */
+    public static RangedObject of(String objectKey, long offset, long length) {
+        return new RangedObject(objectKey, offset, length);
+    }
+
+    public String getObjectKey() {
+        return objectKey;
+    }
+
+    /**
+     * @return the length, or -1 for the length of the whole object
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the length, looking up the length of the whole object if unknown
+     */
+    public long getLength(StoreService storeService) throws IOException {
+        return length >= 0 ? length : storeService.retrieveLength(objectKey);
+    }
+
+    /**
+     * Writes {@code count} bytes starting {@code first} bytes into the object or
+     * part.
+     *
+     * @param total the length of the object or part
+     */
+    public void write(StoreService storeService, long first, long count, long total, OutputStream out)
+            throws IOException {
+        if (count == 0) {
+            return;
+        }
+        // The whole object is read through the object cache
+        try (StoredObject object = length < 0 && first == 0 && count == total ? storeService.retrieve(objectKey)
+                : storeService.retrieve(objectKey, offset + first, count)) {
+            object.transferTo(out);
+        }
+    }
+}
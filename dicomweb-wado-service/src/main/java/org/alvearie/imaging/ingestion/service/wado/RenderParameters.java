@@ -0,0 +1,206 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import javax.ws.rs.core.MediaType;
+
+import org.dcm4che3.util.StringUtils;
+import org.dcm4che3.ws.rs.MediaTypes;
+
+/**
+ * The media type, quality, viewport and window parameters of a rendered or
+ * thumbnail request. Annotations are not rendered.
+ */
+public class RenderParameters {
+    private static final String LINEAR = "linear";
+
+    private final MediaType mediaType;
+    private final int quality;
+    private final int viewportWidth;
+    private final int viewportHeight;
+    private final Integer sourceX;
+    private final Integer sourceY;
+    private final Integer sourceWidth;
+    private final Integer sourceHeight;
+    private final Float windowCenter;
+    private final Float windowWidth;
+
+    private RenderParameters(MediaType mediaType, int quality, Integer[] viewport, Float[] window) {
+        this.mediaType = mediaType;
+        this.quality = quality;
+        this.viewportWidth = viewport == null ? 0 : viewport[0];
+        this.viewportHeight = viewport == null ? 0 : viewport[1];
+        this.sourceX = viewport == null ? null : viewport[2];
+        this.sourceY = viewport == null ? null : viewport[3];
+        this.sourceWidth = viewport == null ? null : viewport[4];
+        this.sourceHeight = viewport == null ? null : viewport[5];
+        this.windowCenter = window == null ? null : window[0];
+        this.windowWidth = window == null ? null : window[1];
+    }
+
+    /**
+     * @param accept   the Accept header of the request
+     * @param quality  the quality from 1 to 100, or 0 for the default
+     * @param viewport vw,vh[,sx,sy,sw,sh], or null for the whole image at its
+     *                 size
+     * @param window   center,width[,linear], or null for the window of the image
+     * @return the parameters, or null if none of the accepted media types can be
+     *         rendered
+     * @throws IllegalArgumentException if a parameter is not valid
+     */
+    public static RenderParameters parse(String accept, int quality, String viewport, String window) {
+        MediaType mediaType = selectMediaType(accept);
+        if (mediaType == null) {
+            return null;
+        }
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("Invalid quality " + quality);
+        }
+        return new RenderParameters(mediaType, quality, parseViewport(viewport), parseWindow(window));
+    }
+
+    /**
+     * @param size the width and height of the thumbnail if the viewport is not
+     *             given
+     * @see #parse(String, int, String, String)
+     */
+    public static RenderParameters thumbnail(String accept, String viewport, int size) {
+        return parse(accept, 0, viewport == null || viewport.isBlank() ? size + "," + size : viewport, null);
+    }
+
+    private static MediaType selectMediaType(String accept) {
+        if (accept == null || accept.isBlank()) {
+            return MediaTypes.IMAGE_JPEG_TYPE;
+        }
+        for (String type : accept.split(",")) {
+            MediaType mediaType = MediaType.valueOf(type.trim());
+            if (MediaTypes.equalsIgnoreParameters(MediaTypes.MULTIPART_RELATED_TYPE, mediaType)) {
+                // Multiple rendered images are returned as parts of the given type
+                String partType = mediaType.getParameters().get("type");
+                mediaType = partType == null ? MediaTypes.IMAGE_JPEG_TYPE : MediaType.valueOf(partType);
+            }
+            if (MediaTypes.equalsIgnoreParameters(MediaTypes.IMAGE_JPEG_TYPE, mediaType)
+                    || MediaTypes.equalsIgnoreParameters(MediaType.WILDCARD_TYPE, mediaType)
+                    || MediaTypes.equalsIgnoreParameters(new MediaType("image", MediaType.MEDIA_TYPE_WILDCARD),
+                            mediaType)) {
+                return MediaTypes.IMAGE_JPEG_TYPE;
+            }
+            if (MediaTypes.equalsIgnoreParameters(MediaTypes.IMAGE_PNG_TYPE, mediaType)) {
+                return MediaTypes.IMAGE_PNG_TYPE;
+            }
+        }
+        return null;
+    }
+
+    private static Integer[] parseViewport(String viewport) {
+        if (viewport == null || viewport.isBlank()) {
+            return null;
+        }
+        String[] split = StringUtils.split(viewport, ',');
+        if (split.length < 2 || split.length > 6) {
+            throw new IllegalArgumentException("Invalid viewport " + viewport);
+        }
+        // The source region is optional, as is each of its values
+        Integer[] values = new Integer[6];
+        try {
+            for (int i = 0; i < split.length; i++) {
+                if (!split[i].isBlank()) {
+                    values[i] = Integer.valueOf(split[i].trim());
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid viewport " + viewport);
+        }
+        if (values[0] == null || values[1] == null || values[0] <= 0 || values[1] <= 0
+                || (values[2] != null && values[2] < 0) || (values[3] != null && values[3] < 0)
+                || (values[4] != null && values[4] == 0) || (values[5] != null && values[5] == 0)) {
+            throw new IllegalArgumentException("Invalid viewport " + viewport);
+        }
+        return values;
+    }
+
+    private static Float[] parseWindow(String window) {
+        if (window == null || window.isBlank()) {
+            return null;
+        }
+        String[] split = StringUtils.split(window, ',');
+        if (split.length < 2 || split.length > 3 || (split.length == 3 && !LINEAR.equals(split[2].trim()))) {
+            throw new IllegalArgumentException("Invalid window " + window);
+        }
+        try {
+            Float[] values = { Float.valueOf(split[0].trim()), Float.valueOf(split[1].trim()) };
+            if (values[1] < 1) {
+                throw new IllegalArgumentException("Invalid window " + window);
+            }
+            return values;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid window " + window);
+        }
+    }
+
+    public MediaType getMediaType() {
+        return mediaType;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    public int getViewportWidth() {
+        return viewportWidth;
+    }
+
+    public int getViewportHeight() {
+        return viewportHeight;
+    }
+
+    /**
+     * @return the left of the source region, or null for the left of the image
+     */
+    public Integer getSourceX() {
+        return sourceX;
+    }
+
+    /**
+     * @return the top of the source region, or null for the top of the image
+     */
+    public Integer getSourceY() {
+        return sourceY;
+    }
+
+    /**
+     * @return the width of the source region, negative to flip it horizontally,
+     *         or null for the rest of the image
+     */
+    public Integer getSourceWidth() {
+        return sourceWidth;
+    }
+
+    /**
+     * @return the height of the source region, negative to flip it vertically,
+     *         or null for the rest of the image
+     */
+    public Integer getSourceHeight() {
+        return sourceHeight;
+    }
+
+    /**
+     * @return the window center, or null for the window of the image
+     */
+    public Float getWindowCenter() {
+        return windowCenter;
+    }
+
+    public Float getWindowWidth() {
+        return windowWidth;
+    }
+
+    @Override
+    public String toString() {
+        return mediaType.getSubtype() + "/" + quality + "/" + viewportWidth + "," + viewportHeight + "," + sourceX
+                + "," + sourceY + "," + sourceWidth + "," + sourceHeight + "/" + windowCenter + "," + windowWidth;
+    }
+}
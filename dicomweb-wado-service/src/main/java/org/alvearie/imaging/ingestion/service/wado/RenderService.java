@@ -0,0 +1,282 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import javax.inject.Inject;
+
+import org.alvearie.imaging.ingestion.service.s3.FrameIndex;
+import org.alvearie.imaging.ingestion.service.s3.StoreService;
+import org.alvearie.imaging.ingestion.service.s3.StoredObject;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.imageio.plugins.dcm.DicomImageReadParam;
+import org.dcm4che3.imageio.plugins.dcm.DicomImageReader;
+import org.dcm4che3.imageio.plugins.dcm.DicomImageReaderSpi;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.ws.rs.MediaTypes;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+/**
+ * Renders frames of stored instances to JPEG or PNG images, in a
+ * {@link ComputedCache}. Frames of indexed multi-frame objects are rendered from
+ * ranged reads of the header and the frame, rather than from the whole object.
+ */
+@ApplicationScoped
+public class RenderService {
+    private static final Logger LOG = Logger.getLogger(RenderService.class);
+
+    static final String METRIC_NAME = "wado.render.cache";
+
+    @ConfigProperty(name = "wado.render.threads", defaultValue = "0")
+    int threads;
+
+    @ConfigProperty(name = "wado.render.cache.max-bytes", defaultValue = "67108864")
+    long cacheMaxBytes;
+
+    @ConfigProperty(name = "wado.render.thumbnail.size", defaultValue = "128")
+    int thumbnailSize;
+
+    @Inject
+    StoreService storeService;
+
+    @Inject
+    ThumbnailService thumbnailService;
+
+    private ComputedCache cache;
+
+    @PostConstruct
+    void init() {
+        cache = new ComputedCache(METRIC_NAME, threads, cacheMaxBytes);
+        LOG.infof("Rendering on %d threads, caching %d bytes", cache.getPoolSize(), cacheMaxBytes);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        cache.shutdown();
+    }
+
+    /**
+     * @return the width and height of thumbnails requested without a viewport
+     */
+    public int getThumbnailSize() {
+        return thumbnailSize;
+    }
+
+    /**
+     * Starts rendering the frame unless it is already cached or being rendered.
+     */
+    public void prefetch(String objectKey, int frame, RenderParameters params) {
+        renderAsync(objectKey, frame, params);
+    }
+
+    /**
+     * @param frame the frame number, starting at 1
+     * @return the rendered frame
+     * @throws IllegalArgumentException if the object has no such frame
+     */
+    public byte[] render(String objectKey, int frame, RenderParameters params) throws IOException {
+        return cache.get(getCacheKey(objectKey, frame, params), () -> doRender(objectKey, frame, params),
+                String.format("the rendering of frame %d of %s", frame, objectKey));
+    }
+
+    /**
+     * @see #render(String, int, RenderParameters)
+     */
+    public CompletableFuture<byte[]> renderAsync(String objectKey, int frame, RenderParameters params) {
+        return cache.getAsync(getCacheKey(objectKey, frame, params), () -> doRender(objectKey, frame, params));
+    }
+
+    private byte[] doRender(String objectKey, int frame, RenderParameters params) throws IOException {
+        byte[] stored = thumbnailService.load(objectKey, frame, params);
+        if (stored != null) {
+            return stored;
+        }
+
+        long start = System.currentTimeMillis();
+        BufferedImage image;
+        FrameIndex frameIndex = loadFrameIndex(objectKey);
+        if (frameIndex != null && frameIndex.getNumberOfFrames() > 1) {
+            if (frame > frameIndex.getNumberOfFrames()) {
+                throw new IllegalArgumentException(String.format("%s has no frame %d", objectKey, frame));
+            }
+            image = read(objectKey, new ByteArrayInputStream(readFrame(objectKey, frameIndex, frame)), 1, params);
+        } else {
+            try (StoredObject object = storeService.retrieve(objectKey)) {
+                image = read(objectKey, object.getInputStream(), frame, params);
+            }
+        }
+
+        byte[] rendered = encode(scale(image, params), params);
+        LOG.debugf("Rendered frame %d of %s as %s in %d ms", frame, objectKey, params,
+                System.currentTimeMillis() - start);
+        return rendered;
+    }
+
+    private BufferedImage read(String objectKey, InputStream in, int frame, RenderParameters params)
+            throws IOException {
+        DicomImageReader reader = new DicomImageReader(new DicomImageReaderSpi());
+        try (ImageInputStream iis = new MemoryCacheImageInputStream(in)) {
+            reader.setInput(iis);
+            if (frame > reader.getNumImages(false)) {
+                throw new IllegalArgumentException(String.format("%s has no frame %d", objectKey, frame));
+            }
+            DicomImageReadParam readParam = (DicomImageReadParam) reader.getDefaultReadParam();
+            if (params.getWindowCenter() != null) {
+                readParam.setWindowCenter(params.getWindowCenter());
+                readParam.setWindowWidth(params.getWindowWidth());
+            }
+            return reader.read(frame - 1, readParam);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    private FrameIndex loadFrameIndex(String objectKey) {
+        try {
+            return storeService.retrieveFrameIndex(objectKey);
+        } catch (IOException e) {
+            LOG.warn("Failed to load frame index for " + objectKey, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return a single frame object made of the header of the stored object and
+     *         the given frame, read with ranged reads only
+     */
+    private byte[] readFrame(String objectKey, FrameIndex frameIndex, int frame) throws IOException {
+        Attributes attrs;
+        VR pixelDataVR;
+        try (StoredObject header = storeService.retrieve(objectKey, 0, frameIndex.getPixelDataOffset());
+                DicomInputStream dis = new DicomInputStream(header.getInputStream())) {
+            attrs = dis.readDatasetUntilPixelData();
+            pixelDataVR = dis.vr();
+        }
+
+        long[] offsets = frameIndex.getFragmentOffsets(frame);
+        int[] lengths = frameIndex.getFragmentLengths(frame);
+        if (frameIndex.isEncapsulated()) {
+            Fragments fragments = attrs.newFragments(Tag.PixelData, pixelDataVR, offsets.length + 1);
+            // Empty basic offset table
+            fragments.add(new byte[0]);
+            for (int i = 0; i < offsets.length; i++) {
+                fragments.add(readRange(objectKey, offsets[i], lengths[i]));
+            }
+        } else {
+            attrs.setBytes(Tag.PixelData, pixelDataVR, readRange(objectKey, offsets[0], lengths[0]));
+        }
+        attrs.setInt(Tag.NumberOfFrames, VR.IS, 1);
+        Sequence perFrame = attrs.getSequence(Tag.PerFrameFunctionalGroupsSequence);
+        if (perFrame != null && perFrame.size() >= frame) {
+            Attributes item = new Attributes(perFrame.get(frame - 1));
+            attrs.newSequence(Tag.PerFrameFunctionalGroupsSequence, 1).add(item);
+        }
+
+        String tsuid = frameIndex.getTransferSyntaxUID();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DicomOutputStream dos = new DicomOutputStream(out, tsuid)) {
+            dos.writeDataset(attrs.createFileMetaInformation(tsuid), attrs);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] readRange(String objectKey, long offset, int length) throws IOException {
+        try (StoredObject object = storeService.retrieve(objectKey, offset, length)) {
+            return object.getInputStream().readNBytes(length);
+        }
+    }
+
+    /**
+     * @return the source region of the image fitted into the viewport, in a
+     *         color model the image writers support
+     */
+    static BufferedImage scale(BufferedImage image, RenderParameters params) {
+        int sx = params.getSourceX() == null ? 0 : Math.min(params.getSourceX(), image.getWidth());
+        int sy = params.getSourceY() == null ? 0 : Math.min(params.getSourceY(), image.getHeight());
+        int sw = params.getSourceWidth() == null ? image.getWidth() - sx
+                : Math.min(Math.abs(params.getSourceWidth()), image.getWidth() - sx);
+        int sh = params.getSourceHeight() == null ? image.getHeight() - sy
+                : Math.min(Math.abs(params.getSourceHeight()), image.getHeight() - sy);
+        if (sw <= 0 || sh <= 0) {
+            throw new IllegalArgumentException("Viewport source region is outside of the image");
+        }
+
+        int width = sw;
+        int height = sh;
+        if (params.getViewportWidth() > 0) {
+            // Keep the aspect ratio of the source region
+            double scale = Math.min((double) params.getViewportWidth() / sw, (double) params.getViewportHeight() / sh);
+            width = Math.max(1, (int) Math.round(sw * scale));
+            height = Math.max(1, (int) Math.round(sh * scale));
+        }
+
+        boolean flipX = params.getSourceWidth() != null && params.getSourceWidth() < 0;
+        boolean flipY = params.getSourceHeight() != null && params.getSourceHeight() < 0;
+        int type = image.getColorModel().getNumColorComponents() == 1 ? BufferedImage.TYPE_BYTE_GRAY
+                : BufferedImage.TYPE_INT_RGB;
+        BufferedImage scaled = new BufferedImage(width, height, type);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, flipX ? width : 0, flipY ? height : 0, flipX ? 0 : width, flipY ? 0 : height, sx, sy,
+                    sx + sw, sy + sh, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    private static byte[] encode(BufferedImage image, RenderParameters params) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (MediaTypes.IMAGE_PNG_TYPE.equals(params.getMediaType())) {
+            ImageIO.write(image, "png", out);
+            return out.toByteArray();
+        }
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+            ImageWriteParam writeParam = writer.getDefaultWriteParam();
+            if (params.getQuality() > 0) {
+                writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                writeParam.setCompressionQuality(params.getQuality() / 100f);
+            }
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), writeParam);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    static String getCacheKey(String objectKey, int frame, RenderParameters params) {
+        return objectKey + "/" + frame + "/" + params;
+    }
+}
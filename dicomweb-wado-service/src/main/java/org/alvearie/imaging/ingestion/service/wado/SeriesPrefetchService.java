@@ -0,0 +1,206 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.alvearie.imaging.ingestion.service.s3.ObjectCache;
+import org.alvearie.imaging.ingestion.service.s3.StoreService;
+import org.alvearie.imaging.ingestion.service.s3.StoredObject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Warms the object cache with the instances of a series once its metadata has
+ * been served, as viewers retrieve the instances of a series right after its
+ * metadata. Prefetching runs on a small bounded pool and stops while the bytes
+ * prefetched but not yet retrieved exceed the configured budget. Prefetched
+ * objects count against the budget until they are retrieved or expire.
+ */
+@ApplicationScoped
+public class SeriesPrefetchService {
+    private static final Logger LOG = Logger.getLogger(SeriesPrefetchService.class);
+
+    static final String METRIC_NAME = "wado.prefetch.objects";
+
+    @ConfigProperty(name = "wado.prefetch.enabled", defaultValue = "false")
+    boolean enabled;
+
+    @ConfigProperty(name = "wado.prefetch.threads", defaultValue = "4")
+    int threads;
+
+    @ConfigProperty(name = "wado.prefetch.queue-size", defaultValue = "1024")
+    int queueSize;
+
+    @ConfigProperty(name = "wado.prefetch.max-bytes", defaultValue = "1073741824")
+    long maxBytes;
+
+    @ConfigProperty(name = "wado.prefetch.expire-after", defaultValue = "PT5M")
+    Duration expireAfter;
+
+    @Inject
+    StoreService storeService;
+
+    @Inject
+    ObjectCache objectCache;
+
+    private Executor executor;
+    private Cache<String, Long> prefetched;
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private final AtomicLong pendingBytes = new AtomicLong();
+
+    private Counter fetchedCounter;
+    private Counter usedCounter;
+    private Counter unusedCounter;
+    private Counter skippedCounter;
+    private Counter failedCounter;
+
+    @PostConstruct
+    void init() {
+        if (!enabled || !objectCache.isEnabled()) {
+            LOG.info("Series prefetch disabled");
+            enabled = false;
+            return;
+        }
+        init(new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(queueSize)));
+        LOG.infof("Prefetching series on %d threads, up to %d bytes", threads, maxBytes);
+    }
+
+    void init(Executor executor) {
+        this.executor = executor;
+        prefetched = Caffeine.newBuilder().expireAfterWrite(expireAfter).executor(Runnable::run)
+                .removalListener((String key, Long length, RemovalCause cause) -> {
+                    pendingBytes.addAndGet(-length);
+                    if (cause == RemovalCause.EXPLICIT) {
+                        usedCounter.increment();
+                    } else if (cause != RemovalCause.REPLACED) {
+                        unusedCounter.increment();
+                    }
+                }).build();
+        fetchedCounter = Metrics.counter(METRIC_NAME, "result", "fetched");
+        usedCounter = Metrics.counter(METRIC_NAME, "result", "used");
+        unusedCounter = Metrics.counter(METRIC_NAME, "result", "unused");
+        skippedCounter = Metrics.counter(METRIC_NAME, "result", "skipped");
+        failedCounter = Metrics.counter(METRIC_NAME, "result", "failed");
+        Metrics.gauge("wado.prefetch.pending.bytes", pendingBytes);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdownNow();
+        }
+    }
+
+    /**
+     * Starts fetching the objects into the cache unless they were prefetched
+     * already.
+     */
+    public void prefetch(List<String> objectKeys) {
+        if (!enabled) {
+            return;
+        }
+        for (String objectKey : objectKeys) {
+            if (prefetched.getIfPresent(objectKey) != null || !inFlight.add(objectKey)) {
+                continue;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        fetch(objectKey);
+                    } finally {
+                        inFlight.remove(objectKey);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                inFlight.remove(objectKey);
+                skippedCounter.increment();
+            }
+        }
+    }
+
+    /**
+     * Records that the objects have been retrieved, releasing the budget held by
+     * those that were prefetched.
+     */
+    public void retrieved(List<String> objectKeys) {
+        if (enabled) {
+            prefetched.invalidateAll(objectKeys);
+        }
+    }
+
+    /**
+     * Reserves the length of the object from the budget before fetching it, so
+     * that concurrent fetches cannot overrun the budget, and releases it if the
+     * fetch fails.
+     */
+    private void fetch(String objectKey) {
+        long length;
+        try {
+            length = storeService.retrieveLength(objectKey);
+        } catch (IOException e) {
+            LOG.debugf("Failed to prefetch %s: %s", objectKey, e.getMessage());
+            failedCounter.increment();
+            return;
+        }
+        if (!reserve(length)) {
+            skippedCounter.increment();
+            return;
+        }
+        boolean fetched = false;
+        try (StoredObject object = storeService.retrieve(objectKey)) {
+            // Reading the object completely caches it
+            object.transferTo(OutputStream.nullOutputStream());
+            // The budget is released once the entry is removed
+            prefetched.put(objectKey, length);
+            fetched = true;
+            fetchedCounter.increment();
+        } catch (IOException e) {
+            LOG.debugf("Failed to prefetch %s: %s", objectKey, e.getMessage());
+            failedCounter.increment();
+        } finally {
+            if (!fetched) {
+                pendingBytes.addAndGet(-length);
+            }
+        }
+    }
+
+    private boolean reserve(long length) {
+        long pending;
+        do {
+            pending = pendingBytes.get();
+            if (pending + length > maxBytes) {
+                return false;
+            }
+        } while (!pendingBytes.compareAndSet(pending, pending + length));
+        return true;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.alvearie.imaging.ingestion.model.result.DicomEntityResult;
+import org.alvearie.imaging.ingestion.service.s3.StoreService;
+import org.alvearie.imaging.ingestion.service.s3.StoredObject;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/**
+ * Generates the thumbnail and a low resolution preview of each series after
+ * its instances are ingested, and stores them next to the representative
+ * instance of the series. Thumbnail requests with the default parameters are
+ * then served from the stored images instead of rendering the instance.
+ * Generation waits until no instance of the series has been ingested for the
+ * configured delay, so a series is rendered once rather than per instance.
+ * The instances known to be representatives, and those known not to be, are
+ * recorded so that other instances are rendered without looking up a stored
+ * image that does not exist.
+ */
+@ApplicationScoped
+public class ThumbnailService {
+    private static final Logger LOG = Logger.getLogger(ThumbnailService.class);
+
+    static final String METRIC_NAME = "wado.thumbnail.stored";
+    static final String THUMBNAIL_SUFFIX = ".thumbnail.jpg";
+    static final String PREVIEW_SUFFIX = ".preview.jpg";
+
+    @ConfigProperty(name = "provider.name")
+    String source;
+
+    @ConfigProperty(name = "wado.thumbnail.enabled", defaultValue = "false")
+    boolean enabled;
+
+    @ConfigProperty(name = "wado.thumbnail.delay", defaultValue = "PT30S")
+    Duration delay;
+
+    @ConfigProperty(name = "wado.thumbnail.preview.size", defaultValue = "512")
+    int previewSize;
+
+    @ConfigProperty(name = "wado.thumbnail.representatives.size", defaultValue = "100000")
+    long representativesSize;
+
+    @Inject
+    StoreService storeService;
+
+    @Inject
+    RenderService renderService;
+
+    @Inject
+    DicomQueryService queryService;
+
+    private ScheduledExecutorService scheduler;
+    private final ConcurrentMap<String, ScheduledFuture<?>> pending = new ConcurrentHashMap<>();
+    private Cache<String, Boolean> representatives;
+
+    private Counter generatedCounter;
+    private Counter failedCounter;
+    private Counter servedCounter;
+    private Counter missingCounter;
+
+    @PostConstruct
+    void init() {
+        if (!enabled) {
+            LOG.info("Thumbnail generation disabled");
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        representatives = Caffeine.newBuilder().maximumSize(representativesSize).build();
+        generatedCounter = Metrics.counter(METRIC_NAME, "result", "generated");
+        failedCounter = Metrics.counter(METRIC_NAME, "result", "failed");
+        servedCounter = Metrics.counter(METRIC_NAME, "result", "served");
+        missingCounter = Metrics.counter(METRIC_NAME, "result", "missing");
+        LOG.infof("Generating series thumbnails %s after ingest", delay);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Schedules the generation of the thumbnail and preview of the series,
+     * postponing a generation already scheduled for it.
+     */
+    public void seriesUpdated(String studyUID, String seriesUID) {
+        if (!enabled) {
+            return;
+        }
+        pending.compute(seriesUID, (key, scheduled) -> {
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            return scheduler.schedule(() -> {
+                pending.remove(key);
+                generate(studyUID, seriesUID);
+            }, delay.toMillis(), TimeUnit.MILLISECONDS);
+        });
+    }
+
+    /**
+     * @return the stored thumbnail or preview for the rendering, or null if it
+     *         has to be rendered
+     */
+    public byte[] load(String objectKey, int frame, RenderParameters params) throws IOException {
+        String objectName = getObjectName(objectKey, frame, params);
+        if (objectName == null || Boolean.FALSE.equals(representatives.getIfPresent(objectKey))) {
+            return null;
+        }
+        try (StoredObject object = storeService.retrieve(objectName)) {
+            servedCounter.increment();
+            representatives.put(objectKey, true);
+            return object.getInputStream().readAllBytes();
+        } catch (FileNotFoundException e) {
+            missingCounter.increment();
+            // Only a representative has a partially stored rendering
+            representatives.asMap().putIfAbsent(objectKey, false);
+            return null;
+        }
+    }
+
+    void generate(String studyUID, String seriesUID) {
+        try {
+            List<DicomEntityResult> results = queryService.getResultsAsync(studyUID, seriesUID, source)
+                    .toCompletableFuture().join();
+            if (results == null || results.isEmpty()) {
+                return;
+            }
+            String objectKey = getRepresentative(results).getResource().getObjectName();
+            for (RenderParameters params : List.of(getThumbnailParameters(), getPreviewParameters())) {
+                // Stored images are returned as they are
+                byte[] image = renderService.render(objectKey, 1, params);
+                storeService.store(getObjectName(objectKey, 1, params), image);
+            }
+            for (DicomEntityResult result : results) {
+                String instanceKey = result.getResource().getObjectName();
+                representatives.put(instanceKey, instanceKey.equals(objectKey));
+            }
+            generatedCounter.increment();
+            LOG.debugf("Stored thumbnail of series %s from %s", seriesUID, objectKey);
+        } catch (IOException | RuntimeException e) {
+            LOG.warnf("Failed to generate thumbnail of series %s: %s", seriesUID, e.getMessage());
+            failedCounter.increment();
+        }
+    }
+
+    /**
+     * @return the instance a study or series thumbnail is rendered from
+     */
+    static DicomEntityResult getRepresentative(List<DicomEntityResult> results) {
+        return results.get(results.size() / 2);
+    }
+
+    private RenderParameters getThumbnailParameters() {
+        return RenderParameters.thumbnail(null, null, renderService.getThumbnailSize());
+    }
+
+    private RenderParameters getPreviewParameters() {
+        return RenderParameters.thumbnail(null, null, previewSize);
+    }
+
+    private String getObjectName(String objectKey, int frame, RenderParameters params) {
+        if (!enabled || frame != 1) {
+            return null;
+        }
+        String rendering = params.toString();
+        if (rendering.equals(getThumbnailParameters().toString())) {
+            return objectKey + THUMBNAIL_SUFFIX;
+        }
+        if (rendering.equals(getPreviewParameters().toString())) {
+            return objectKey + PREVIEW_SUFFIX;
+        }
+        return null;
+    }
+}
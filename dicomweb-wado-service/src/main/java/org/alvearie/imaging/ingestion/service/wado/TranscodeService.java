@@ -0,0 +1,101 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.alvearie.imaging.ingestion.service.s3.StoreService;
+import org.alvearie.imaging.ingestion.service.s3.StoredObject;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.imageio.codec.ImageWriterFactory;
+import org.dcm4che3.imageio.codec.Transcoder;
+import org.dcm4che3.imageio.codec.TransferSyntaxType;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+/**
+ * Transcodes stored instances to the transfer syntax requested by a retrieve, in
+ * a {@link ComputedCache}.
+ */
+@ApplicationScoped
+public class TranscodeService {
+    private static final Logger LOG = Logger.getLogger(TranscodeService.class);
+
+    static final String METRIC_NAME = "wado.transcode.cache";
+
+    @ConfigProperty(name = "wado.transcode.threads", defaultValue = "0")
+    int threads;
+
+    @ConfigProperty(name = "wado.transcode.cache.max-bytes", defaultValue = "268435456")
+    long cacheMaxBytes;
+
+    @Inject
+    StoreService storeService;
+
+    private ComputedCache cache;
+
+    @PostConstruct
+    void init() {
+        cache = new ComputedCache(METRIC_NAME, threads, cacheMaxBytes);
+        LOG.infof("Transcoding on %d threads, caching %d bytes", cache.getPoolSize(), cacheMaxBytes);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        cache.shutdown();
+    }
+
+    /**
+     * Starts transcoding the object unless the variant is already cached or being
+     * transcoded.
+     */
+    public void prefetch(String objectKey, String transferSyntaxUID) {
+        cache.getAsync(getCacheKey(objectKey, transferSyntaxUID), () -> doTranscode(objectKey, transferSyntaxUID));
+    }
+
+    /**
+     * @return true if instances can be transcoded to the transfer syntax
+     */
+    public boolean isSupported(String transferSyntaxUID) {
+        if ("?".equals(UID.nameOf(transferSyntaxUID))) {
+            return false;
+        }
+        return TransferSyntaxType.forUID(transferSyntaxUID) == TransferSyntaxType.NATIVE
+                || ImageWriterFactory.getImageWriterParam(transferSyntaxUID) != null;
+    }
+
+    /**
+     * @return the object transcoded to the given transfer syntax, including its
+     *         file meta information
+     */
+    public byte[] transcode(String objectKey, String transferSyntaxUID) throws IOException {
+        return cache.get(getCacheKey(objectKey, transferSyntaxUID), () -> doTranscode(objectKey, transferSyntaxUID),
+                String.format("the transcoding of %s to %s", objectKey, transferSyntaxUID));
+    }
+
+    private byte[] doTranscode(String objectKey, String transferSyntaxUID) throws IOException {
+        long start = System.currentTimeMillis();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (StoredObject object = storeService.retrieve(objectKey);
+                Transcoder transcoder = new Transcoder(object.getInputStream())) {
+            transcoder.setIncludeFileMetaInformation(true);
+            transcoder.setDestinationTransferSyntax(transferSyntaxUID);
+            transcoder.transcode((t, dataset) -> out);
+        }
+        LOG.debugf("Transcoded %s to %s in %d ms", objectKey, transferSyntaxUID, System.currentTimeMillis() - start);
+        return out.toByteArray();
+    }
+
+    static String getCacheKey(String objectKey, String transferSyntaxUID) {
+        return objectKey + "/" + transferSyntaxUID;
+    }
+}
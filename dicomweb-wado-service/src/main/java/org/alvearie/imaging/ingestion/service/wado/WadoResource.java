@@ -7,10 +7,29 @@ package org.alvearie.imaging.ingestion.service.wado;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.EOFException;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
 
 import javax.enterprise.context.RequestScoped;
 import javax.inject.Inject;
@@ -24,34 +43,41 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.CompletionCallback;
 import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.stream.StreamResult;
 
 import org.alvearie.imaging.ingestion.model.result.DicomAttribute;
 import org.alvearie.imaging.ingestion.model.result.DicomEntityResult;
+import org.alvearie.imaging.ingestion.service.s3.FrameIndex;
+import org.alvearie.imaging.ingestion.service.s3.FrameIndexBuilder;
+import org.alvearie.imaging.ingestion.service.s3.MetadataSidecar;
 import org.alvearie.imaging.ingestion.service.s3.StoreService;
+import org.alvearie.imaging.ingestion.service.s3.StoredObject;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.BulkData;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
-import org.dcm4che3.imageio.codec.ImageDescriptor;
 import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.io.SAXTransformer;
+import org.dcm4che3.json.JSONReader;
 import org.dcm4che3.json.JSONWriter;
-import org.dcm4che3.util.StreamUtils;
 import org.dcm4che3.util.StringUtils;
 import org.dcm4che3.ws.rs.MediaTypes;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
-import org.eclipse.microprofile.rest.client.inject.RestClient;
 import org.jboss.logging.Logger;
 import org.jboss.resteasy.annotations.GZIP;
-import org.jboss.resteasy.plugins.providers.multipart.MultipartRelatedOutput;
+import org.jboss.resteasy.core.ResteasyContext;
+import org.xml.sax.SAXException;
 
 @RequestScoped
 @Path("/wado-rs")
@@ -61,12 +87,16 @@ public class WadoResource {
 
     public final static int CACHE_DURATION = 3600 * 24;
 
+    static final MediaType MULTIPART_RELATED_OCTET_STREAM_TYPE = new MediaType("multipart", "related",
+            Collections.singletonMap("type", MediaType.APPLICATION_OCTET_STREAM));
+    static final MediaType MULTIPART_BYTERANGES_TYPE = new MediaType("multipart", "byteranges");
+    static final String PIXEL_DATA_PATH = "7FE00010";
+
     @ConfigProperty(name = "provider.name")
     String source;
 
     @Inject
-    @RestClient
-    DicomQueryClient queryClient;
+    DicomQueryService queryService;
 
     @Context
     private HttpServletRequest request;
@@ -76,16 +106,37 @@ public class WadoResource {
 
     @Inject
     StoreService storeService;
-    
+
+    @Inject
+    MetadataSnapshotService snapshotService;
+
+    @Inject
+    InstanceFetchService fetchService;
+
+    @Inject
+    TranscodeService transcodeService;
+
+    @Inject
+    SeriesPrefetchService prefetchService;
+
+    @Inject
+    RenderService renderService;
+
     int[] frameList;
-    Date lastModified;
+    String transferSyntax;
+    String attributePath;
+    IncludeFields includeFields;
+    boolean singlePart;
+    RenderParameters renderParameters;
+    String requestUrl;
     boolean clientUseCache = false;
 
     @GET
     @Path("/studies/{studyUID}")
-    @Produces(MediaTypes.MULTIPART_RELATED)
+    @Produces({ MediaTypes.MULTIPART_RELATED, MediaTypes.APPLICATION_ZIP })
     public void retrieveStudy(@PathParam("studyUID") String studyUID, @Suspended AsyncResponse ar) throws IOException {
-        retrieve(queryClient.getResults(studyUID, source), Output.DICOM, ar);
+        Output output = getRetrieveOutputType();
+        whenQueried(queryService.getResultsAsync(studyUID, source), ar, results -> retrieve(results, output, ar));
     }
 
     @GET
@@ -93,7 +144,15 @@ public class WadoResource {
     @Produces({ MediaTypes.APPLICATION_DICOM_JSON, MediaTypes.MULTIPART_RELATED_APPLICATION_DICOM_XML })
     public void retrieveStudyMetadata(@PathParam("studyUID") String studyUID,
             @QueryParam("includefields") String includefields, @Suspended AsyncResponse ar) {
-        retrieve(queryClient.getResults(studyUID, source), getMetadataOutputType(), ar);
+        if (!parseIncludeFields(includefields, ar)) {
+            return;
+        }
+        Output output = getMetadataOutputType();
+        whenQueried(queryService.getResultsAsync(studyUID, source), ar, results -> {
+            if (!retrieveSnapshot(studyUID, null, results, output, ar)) {
+                retrieve(results, output, ar);
+            }
+        });
     }
 
     @GET
@@ -103,16 +162,32 @@ public class WadoResource {
             @QueryParam("annotation") String annotation, @QueryParam("quality") int quality,
             @QueryParam("viewport") String viewportSpec, @QueryParam("window") String window,
             @Suspended AsyncResponse ar) {
-        Response.ResponseBuilder responseBuilder = Response.status(Response.Status.NOT_IMPLEMENTED);
-        ar.resume(responseBuilder.build());
+        if (!parseRenderParameters(quality, viewportSpec, window, ar)) {
+            return;
+        }
+        whenQueried(queryService.getResultsAsync(studyUID, source), ar,
+                results -> retrieve(results, Output.RENDER_MULTIPART, ar));
+    }
+
+    @GET
+    @Path("/studies/{studyUID}/thumbnail")
+    public void retrieveStudyThumbnail(@PathParam("studyUID") String studyUID,
+            @QueryParam("viewport") String viewportSpec, @Suspended AsyncResponse ar) {
+        if (!parseThumbnailParameters(viewportSpec, ar)) {
+            return;
+        }
+        whenQueried(queryService.getResultsAsync(studyUID, source), ar,
+                results -> retrieve(results, Output.THUMBNAIL, ar));
     }
 
     @GET
     @Path("/studies/{studyUID}/series/{seriesUID}")
-    @Produces(MediaTypes.MULTIPART_RELATED)
+    @Produces({ MediaTypes.MULTIPART_RELATED, MediaTypes.APPLICATION_ZIP })
     public void retrieveSeries(@PathParam("studyUID") String studyUID, @PathParam("seriesUID") String seriesUID,
             @Suspended AsyncResponse ar) {
-        retrieve(queryClient.getResults(studyUID, seriesUID, source), Output.DICOM, ar);
+        Output output = getRetrieveOutputType();
+        whenQueried(queryService.getResultsAsync(studyUID, seriesUID, source), ar,
+                results -> retrieve(results, output, ar));
     }
 
     @GET
@@ -120,7 +195,19 @@ public class WadoResource {
     @Produces({ MediaTypes.APPLICATION_DICOM_JSON, MediaTypes.MULTIPART_RELATED_APPLICATION_DICOM_XML })
     public void retrieveSeriesMetadata(@PathParam("studyUID") String studyUID, @PathParam("seriesUID") String seriesUID,
             @QueryParam("includefields") String includefields, @Suspended AsyncResponse ar) {
-        retrieve(queryClient.getResults(studyUID, seriesUID, source), getMetadataOutputType(), ar);
+        if (!parseIncludeFields(includefields, ar)) {
+            return;
+        }
+        Output output = getMetadataOutputType();
+        whenQueried(queryService.getResultsAsync(studyUID, seriesUID, source), ar, results -> {
+            if (!retrieveSnapshot(studyUID, seriesUID, results, output, ar)) {
+                retrieve(results, output, ar);
+            }
+            // Viewers retrieve the instances of the series next
+            if (results != null) {
+                prefetchService.prefetch(getObjectKeys(results));
+            }
+        });
     }
 
     @GET
@@ -129,15 +216,32 @@ public class WadoResource {
             @QueryParam("annotation") String annotation, @QueryParam("quality") int quality,
             @QueryParam("viewport") String viewportSpec, @QueryParam("window") String window,
             @Suspended AsyncResponse ar) {
-        Response.ResponseBuilder responseBuilder = Response.status(Response.Status.NOT_IMPLEMENTED);
-        ar.resume(responseBuilder.build());
+        if (!parseRenderParameters(quality, viewportSpec, window, ar)) {
+            return;
+        }
+        whenQueried(queryService.getResultsAsync(studyUID, seriesUID, source), ar,
+                results -> retrieve(results, Output.RENDER_MULTIPART, ar));
+    }
+
+    @GET
+    @Path("/studies/{studyUID}/series/{seriesUID}/thumbnail")
+    public void retrieveSeriesThumbnail(@PathParam("studyUID") String studyUID,
+            @PathParam("seriesUID") String seriesUID, @QueryParam("viewport") String viewportSpec,
+            @Suspended AsyncResponse ar) {
+        if (!parseThumbnailParameters(viewportSpec, ar)) {
+            return;
+        }
+        whenQueried(queryService.getResultsAsync(studyUID, seriesUID, source), ar,
+                results -> retrieve(results, Output.THUMBNAIL, ar));
     }
 
     @GET
     @Path("/studies/{studyUID}/series/{seriesUID}/instances/{objectUID}")
     public void retrieveInstance(@PathParam("studyUID") String studyUID, @PathParam("seriesUID") String seriesUID,
             @PathParam("objectUID") String objectUID, @Suspended AsyncResponse ar) {
-        retrieve(queryClient.getResults(studyUID, seriesUID, objectUID, source), Output.DICOM, ar);
+        Output output = getRetrieveOutputType();
+        whenQueried(queryService.getResultsAsync(studyUID, seriesUID, objectUID, source), ar,
+                results -> retrieve(results, output, ar));
     }
 
     @GET
@@ -145,8 +249,38 @@ public class WadoResource {
     @Produces({ MediaTypes.APPLICATION_DICOM_JSON, MediaTypes.MULTIPART_RELATED_APPLICATION_DICOM_XML })
     public void retrieveInstanceMetadata(@PathParam("studyUID") String studyUID,
             @PathParam("seriesUID") String seriesUID, @PathParam("objectUID") String objectUID,
+            @QueryParam("includefields") String includefields, @Suspended AsyncResponse ar) {
+        if (!parseIncludeFields(includefields, ar)) {
+            return;
+        }
+        Output output = getMetadataOutputType();
+        whenQueried(queryService.getResultsAsync(studyUID, seriesUID, objectUID, source), ar,
+                results -> retrieve(results, output, ar));
+    }
+
+    @GET
+    @Path("/studies/{studyUID}/series/{seriesUID}/instances/{objectUID}/bulkdata")
+    public void retrieveBulkdata(@PathParam("studyUID") String studyUID, @PathParam("seriesUID") String seriesUID,
+            @PathParam("objectUID") String objectUID, @Suspended AsyncResponse ar) {
+        this.singlePart = acceptsSinglePart();
+        whenQueried(queryService.getResultsAsync(studyUID, seriesUID, objectUID, source), ar,
+                results -> retrieve(results, Output.BULKDATA, ar));
+    }
+
+    @GET
+    @Path("/studies/{studyUID}/series/{seriesUID}/instances/{objectUID}/bulkdata/{attributePath}")
+    public void retrieveBulkdataPath(@PathParam("studyUID") String studyUID, @PathParam("seriesUID") String seriesUID,
+            @PathParam("objectUID") String objectUID, @PathParam("attributePath") String attributePath,
             @Suspended AsyncResponse ar) {
-        retrieve(queryClient.getResults(studyUID, seriesUID, objectUID, source), getMetadataOutputType(), ar);
+        // Pixel data is the only attribute kept as bulk data
+        if (!PIXEL_DATA_PATH.equalsIgnoreCase(attributePath)) {
+            ar.resume(Response.status(Response.Status.NOT_FOUND).build());
+            return;
+        }
+        this.attributePath = attributePath;
+        this.singlePart = acceptsSinglePart();
+        whenQueried(queryService.getResultsAsync(studyUID, seriesUID, objectUID, source), ar,
+                results -> retrieve(results, Output.BULKDATA_PATH, ar));
     }
 
     @GET
@@ -155,7 +289,8 @@ public class WadoResource {
             @PathParam("objectUID") String objectUID, @PathParam("frameList") String frameList,
             @Suspended AsyncResponse ar) {
         this.frameList = createFrameListFromPathParam(frameList);
-        retrieve(queryClient.getResults(studyUID, seriesUID, objectUID, source), Output.BULKDATA_FRAME, ar);
+        whenQueried(queryService.getResultsAsync(studyUID, seriesUID, objectUID, source), ar,
+                results -> retrieve(results, Output.BULKDATA_FRAME, ar));
     }
 
     @GET
@@ -165,18 +300,28 @@ public class WadoResource {
             @QueryParam("annotation") String annotation, @QueryParam("quality") int quality,
             @QueryParam("viewport") String viewportSpec, @QueryParam("window") String window,
             @Suspended AsyncResponse ar) {
-        Response.ResponseBuilder responseBuilder = Response.status(Response.Status.NOT_IMPLEMENTED);
-        ar.resume(responseBuilder.build());
+        if (!parseRenderParameters(quality, viewportSpec, window, ar)) {
+            return;
+        }
+        this.frameList = createFrameListFromPathParam(frameList);
+        Output output = this.frameList.length == 1 ? Output.RENDER_FRAME : Output.RENDER_FRAME_MULTIPART;
+        whenQueried(queryService.getResultsAsync(studyUID, seriesUID, objectUID, source), ar,
+                results -> retrieve(results, output, ar));
     }
 
+    @GET
     @Path("/studies/{studyUID}/series/{seriesUID}/instances/{objectUID}/frames/{frameList}/thumbnail")
     public void retrieveFrameThumbnail(@PathParam("studyUID") String studyUID, @PathParam("seriesUID") String seriesUID,
             @PathParam("objectUID") String objectUID, @PathParam("frameList") String frameList,
             @QueryParam("annotation") String annotation, @QueryParam("quality") int quality,
             @QueryParam("viewport") String viewportSpec, @QueryParam("window") String window,
             @Suspended AsyncResponse ar) {
-        Response.ResponseBuilder responseBuilder = Response.status(Response.Status.NOT_IMPLEMENTED);
-        ar.resume(responseBuilder.build());
+        if (!parseThumbnailParameters(viewportSpec, ar)) {
+            return;
+        }
+        this.frameList = createFrameListFromPathParam(frameList);
+        whenQueried(queryService.getResultsAsync(studyUID, seriesUID, objectUID, source), ar,
+                results -> retrieve(results, Output.THUMBNAIL, ar));
     }
 
     @GET
@@ -186,8 +331,11 @@ public class WadoResource {
             @QueryParam("annotation") String annotation, @QueryParam("quality") int quality,
             @QueryParam("viewport") String viewportSpec, @QueryParam("window") String window,
             @Suspended AsyncResponse ar) {
-        Response.ResponseBuilder responseBuilder = Response.status(Response.Status.NOT_IMPLEMENTED);
-        ar.resume(responseBuilder.build());
+        if (!parseRenderParameters(quality, viewportSpec, window, ar)) {
+            return;
+        }
+        whenQueried(queryService.getResultsAsync(studyUID, seriesUID, objectUID, source), ar,
+                results -> retrieve(results, Output.RENDER, ar));
     }
 
     @GET
@@ -195,8 +343,11 @@ public class WadoResource {
     public void retrieveInstanceThumbnail(@PathParam("studyUID") String studyUID,
             @PathParam("seriesUID") String seriesUID, @PathParam("objectUID") String objectUID,
             @QueryParam("viewport") String viewportSpec, @Suspended AsyncResponse ar) {
-        Response.ResponseBuilder responseBuilder = Response.status(Response.Status.NOT_IMPLEMENTED);
-        ar.resume(responseBuilder.build());
+        if (!parseThumbnailParameters(viewportSpec, ar)) {
+            return;
+        }
+        whenQueried(queryService.getResultsAsync(studyUID, seriesUID, objectUID, source), ar,
+                results -> retrieve(results, Output.THUMBNAIL, ar));
     }
 
     private enum Output {
@@ -204,27 +355,52 @@ public class WadoResource {
 
             @Override
             public Object buildResponse(WadoResource service, List<DicomEntityResult> results, AsyncResponse ar) {
-                try {
-                    Date lastModified = null;
-                    MultipartRelatedOutput output = new MultipartRelatedOutput();
-    
-                    for (DicomEntityResult rslt : results) {
-                        if (lastModified == null || lastModified.toInstant().isBefore(rslt.getLastModified().toInstant())) {
-                            lastModified = Date.from(rslt.getLastModified().toInstant());
-                        }
-                        String tsuid = service.getTransferSyntaxUID(rslt);
-                        if (tsuid == null) {
-                            tsuid = UID.ExplicitVRLittleEndian;
-                        }
-                        output.addPart(service.getDicom(rslt.getResource().getObjectName()),
-                                MediaTypes.forTransferSyntax(tsuid));
+                MultipartStreamingOutput output = new MultipartStreamingOutput();
+                // Instances already in the requested transfer syntax are streamed as
+                // stored, the others are transcoded
+                List<String> storedKeys = new ArrayList<>();
+                List<String> transcodedKeys = new ArrayList<>();
+                List<MediaType> mediaTypes = new ArrayList<>();
+                for (DicomEntityResult rslt : results) {
+                    String tsuid = service.getTransferSyntaxUID(rslt);
+                    if (tsuid == null) {
+                        tsuid = UID.ExplicitVRLittleEndian;
+                    }
+                    if (service.transferSyntax == null || service.transferSyntax.equals(tsuid)) {
+                        storedKeys.add(rslt.getResource().getObjectName());
+                        transcodedKeys.add(null);
+                        mediaTypes.add(MediaTypes.forTransferSyntax(tsuid));
+                    } else {
+                        transcodedKeys.add(rslt.getResource().getObjectName());
+                        mediaTypes.add(MediaTypes.forTransferSyntax(service.transferSyntax));
+                    }
+                }
+                InstancePrefetcher prefetcher = service.fetchService.newPrefetcher(storedKeys);
+                output.addResource(prefetcher);
+
+                int stored = 0;
+                for (int i = 0; i < results.size(); i++) {
+                    int index = i;
+                    if (transcodedKeys.get(i) == null) {
+                        int storedIndex = stored++;
+                        output.addPart(mediaTypes.get(i), out -> writeDicom(prefetcher.take(storedIndex), out));
+                    } else {
+                        output.addPart(mediaTypes.get(i), out -> writeTranscoded(service, transcodedKeys, index, out));
                     }
-                    service.lastModified = lastModified;
-                    return output;
-                } catch (IOException e) {
-                    LOG.error(e);
                 }
-                return null;
+                return output;
+            }
+
+            private void writeTranscoded(WadoResource service, List<String> transcodedKeys, int index,
+                    OutputStream out) throws IOException {
+                // Start on the next transcoded instance while this one is written
+                for (int i = index + 1; i < transcodedKeys.size(); i++) {
+                    if (transcodedKeys.get(i) != null) {
+                        service.transcodeService.prefetch(transcodedKeys.get(i), service.transferSyntax);
+                        break;
+                    }
+                }
+                out.write(service.transcodeService.transcode(transcodedKeys.get(index), service.transferSyntax));
             }
         },
 
@@ -232,47 +408,40 @@ public class WadoResource {
 
             @Override
             public Object buildResponse(WadoResource service, List<DicomEntityResult> results, AsyncResponse ar) {
-
-                try {
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-                    JsonGenerator gen = Json.createGenerator(baos);
-                    JSONWriter writer = new JSONWriter(gen);
-                    gen.writeStartArray();
-                    for (DicomEntityResult rslt : results) {
-                        writer.write(service.loadMetadata(rslt.getResource().getObjectName()));
+                // Resolved while the request is current, the body is written later
+                service.getRequestUrl();
+                StreamingOutput output = out -> {
+                    out.write('[');
+                    for (int i = 0; i < results.size(); i++) {
+                        if (i > 0) {
+                            out.write(',');
+                        }
+                        service.writeMetadataJson(results.get(i).getResource().getObjectName(), out);
                     }
-                    gen.writeEnd();
-                    gen.flush();
-
-                    Date lastModified = new Date();
-                    service.lastModified = lastModified;
-
-                    return baos.toByteArray();
-                } catch (IOException e) {
-                    LOG.error(e);
-                }
-                return null;
+                    out.write(']');
+                    out.flush();
+                };
+                return output;
             }
         },
 
         METADATA_XML(MediaTypes.MULTIPART_RELATED_APPLICATION_DICOM_XML_TYPE, -1) {
             @Override
             public Object buildResponse(WadoResource service, List<DicomEntityResult> results, AsyncResponse ar) {
-                MultipartRelatedOutput output = new MultipartRelatedOutput();
-
+                // Resolved while the request is current, the parts are written later
+                service.getRequestUrl();
+                MultipartStreamingOutput output = new MultipartStreamingOutput();
                 for (DicomEntityResult rslt : results) {
-                    try {
-                        ByteArrayOutputStream out = new ByteArrayOutputStream();
-                        Attributes metadata = service.loadMetadata(rslt.getResource().getObjectName());
-                        SAXTransformer.getSAXWriter(new StreamResult(out)).write(metadata);
-                        output.addPart(out.toByteArray(), MediaTypes.APPLICATION_DICOM_XML_TYPE);
-                    } catch (Exception e) {
-                        throw new WebApplicationException("Error retrieving metadata", Response.Status.NOT_FOUND);
-                    }
+                    String objectKey = rslt.getResource().getObjectName();
+                    output.addPart(MediaTypes.APPLICATION_DICOM_XML_TYPE, out -> {
+                        Attributes metadata = service.loadMetadata(objectKey);
+                        try {
+                            SAXTransformer.getSAXWriter(new StreamResult(out)).write(metadata);
+                        } catch (TransformerConfigurationException | SAXException e) {
+                            throw new IOException("Failed to write metadata of " + objectKey, e);
+                        }
+                    });
                 }
-                Date lastModified = new Date();
-                service.lastModified = lastModified;
                 return output;
             }
         },
@@ -284,59 +453,178 @@ public class WadoResource {
                 }
 
                 DicomEntityResult result = results.get(0);
-                Date lastModified = Date.from(result.getLastModified().toInstant());
+                String objectKey = result.getResource().getObjectName();
 
-                MultipartRelatedOutput output = new MultipartRelatedOutput();
-                try {
-                    addDicomFramesPart(service, output, result.getResource().getObjectName(), service.frameList);
-                } catch (IOException e) {
-                    LOG.error(e);
+                FrameIndex frameIndex = service.loadFrameIndex(objectKey);
+                if (frameIndex == null) {
+                    return null;
                 }
-                service.lastModified = lastModified;
-                return output;
+                return buildIndexedFramesOutput(service, objectKey, frameIndex, service.frameList);
             }
 
-            private void addDicomFramesPart(WadoResource service, MultipartRelatedOutput output, String objectKey,
-                    int[] frameList) throws IOException {
-                ByteArrayOutputStream baos = service.getDicomStream(objectKey);
-                DicomInputStream dis = new DicomInputStream(new ByteArrayInputStream(baos.toByteArray()));
-                ImageDescriptor imgDesc = new ImageDescriptor(dis.readDatasetUntilPixelData());
-                int frameLength = imgDesc.getFrameLength();
-                if (dis.tag() != Tag.PixelData) {
-                    throw new IOException("Missing pixel data in requested object");
+            /**
+             * Reads the fragments of the requested frames with a bounded number of ranges
+             * outstanding. The response is resumed once the first frame has been opened,
+             * and each frame is written as its fragments are read.
+             */
+            private Object buildIndexedFramesOutput(WadoResource service, String objectKey, FrameIndex frameIndex,
+                    int[] frameList) {
+                for (int frame : frameList) {
+                    if (frame > frameIndex.getNumberOfFrames()) {
+                        LOG.warnf("Requested frame %d of %s with %d frames", frame, objectKey,
+                                frameIndex.getNumberOfFrames());
+                        return null;
+                    }
                 }
 
-                int frame = 1;
-                for (int nextFrame : frameList) {
-                    while (frame < nextFrame) {
-                        dis.skip(frameLength);
-                        frame++;
+                FragmentPrefetcher prefetcher = service.fetchService.newFragmentPrefetcher(objectKey, frameIndex,
+                        frameList);
+                MultipartStreamingOutput output = new MultipartStreamingOutput();
+                output.addResource(prefetcher);
+                MediaType mediaType = getFrameMediaType(frameIndex);
+                for (int i = 0; i < frameList.length; i++) {
+                    int index = i;
+                    output.addPart(mediaType, out -> prefetcher.writeFrame(index, out));
+                }
+                return prefetcher.start().handle((v, error) -> {
+                    if (error != null) {
+                        prefetcher.close();
+                        throw error instanceof CompletionException ? (CompletionException) error
+                                : new CompletionException(error);
                     }
-                    long offset = dis.getPosition();
-                    LOG.info(String.format("Extracting frame %d (%d bytes)from inputstream at position %d", frame,
-                            frameLength, offset));
-                    ByteArrayOutputStream out = new ByteArrayOutputStream();
-                    try {
-                        StreamUtils.copy(dis, out, frameLength);
-                    } catch (EOFException e) {
-                        LOG.error(String.format(
-                                "Error loading data frame, more data expected. Current offset %d. Expected length of at least %d",
-                                dis.getPosition(), offset + frameLength));
-                        throw e;
+                    return output;
+                });
+            }
+        },
+        BULKDATA(MULTIPART_RELATED_OCTET_STREAM_TYPE, 3600 * 24) {
+            @Override
+            public Object buildResponse(WadoResource service, List<DicomEntityResult> results, AsyncResponse ar) {
+                if (results.size() != 1) {
+                    return null;
+                }
+
+                String objectKey = results.get(0).getResource().getObjectName();
+                FrameIndex frameIndex = service.loadFrameIndex(objectKey);
+                if (frameIndex == null) {
+                    return null;
+                }
+                return buildPixelDataOutput(service.storeService, objectKey, frameIndex, service.singlePart);
+            }
+
+            private Object buildPixelDataOutput(StoreService storeService, String objectKey, FrameIndex frameIndex,
+                    boolean singlePart) {
+                MultipartStreamingOutput output = new MultipartStreamingOutput();
+                if (frameIndex.isEncapsulated()) {
+                    MediaType mediaType = getFrameMediaType(frameIndex);
+                    for (int i = 1; i <= frameIndex.getNumberOfFrames(); i++) {
+                        int frame = i;
+                        output.addPart(mediaType, out -> writeFrame(storeService, objectKey, frameIndex, frame, out));
+                    }
+                } else {
+                    long length = 0;
+                    for (int i = 1; i <= frameIndex.getNumberOfFrames(); i++) {
+                        length += frameIndex.getFrameLength(i);
                     }
-                    frame++;
+                    if (singlePart) {
+                        // Served as is, so it can be retrieved in ranges
+                        return RangedObject.of(objectKey, frameIndex.getPixelDataOffset(), length);
+                    }
+                    long pixelDataLength = length;
+                    output.addPart(MediaType.APPLICATION_OCTET_STREAM_TYPE, out -> {
+                        try (StoredObject pixelData = storeService.retrieve(objectKey, frameIndex.getPixelDataOffset(),
+                                pixelDataLength)) {
+                            pixelData.transferTo(out);
+                        }
+                    });
+                }
+                return output;
+            }
+        },
+        BULKDATA_PATH(MULTIPART_RELATED_OCTET_STREAM_TYPE, 3600 * 24) {
+            @Override
+            public Object buildResponse(WadoResource service, List<DicomEntityResult> results, AsyncResponse ar) {
+                return BULKDATA.buildResponse(service, results, ar);
+            }
+        },
+        // The stored instance as is, which can be retrieved in ranges
+        OCTET_STREAM(MediaType.APPLICATION_OCTET_STREAM_TYPE, 3600 * 24) {
+            @Override
+            public Object buildResponse(WadoResource service, List<DicomEntityResult> results, AsyncResponse ar) {
+                if (results.size() != 1) {
+                    return null;
+                }
+                return RangedObject.of(results.get(0).getResource().getObjectName());
+            }
+        },
+        ZIP(MediaTypes.APPLICATION_ZIP_TYPE, 3600 * 24) {
+            @Override
+            public Object buildResponse(WadoResource service, List<DicomEntityResult> results, AsyncResponse ar) {
+                ZipStreamingOutput output = new ZipStreamingOutput();
+                InstancePrefetcher prefetcher = service.fetchService.newPrefetcher(getObjectKeys(results));
+                output.addResource(prefetcher);
 
-                    output.addPart(out.toByteArray(), MediaType.APPLICATION_OCTET_STREAM_TYPE);
+                for (int i = 0; i < results.size(); i++) {
+                    int index = i;
+                    output.addEntry(service.getZipEntryName(results.get(i), i),
+                            out -> writeDicom(prefetcher.take(index), out));
                 }
+                return output;
+            }
+        },
+
+        // The first frame of each instance
+        RENDER_MULTIPART(MediaTypes.MULTIPART_RELATED_TYPE, 3600 * 24) {
+
+            @Override
+            public Object buildResponse(WadoResource service, List<DicomEntityResult> results, AsyncResponse ar) {
+                List<String> objectKeys = getObjectKeys(results);
+                int[] frames = new int[objectKeys.size()];
+                Arrays.fill(frames, 1);
+                return buildRenderedOutput(service, objectKeys, frames);
+            }
+        },
+
+        RENDER_FRAME_MULTIPART(MediaTypes.MULTIPART_RELATED_TYPE, 3600 * 24) {
+
+            @Override
+            public Object buildResponse(WadoResource service, List<DicomEntityResult> results, AsyncResponse ar) {
+                String objectKey = results.get(0).getResource().getObjectName();
+                return buildRenderedOutput(service, Collections.nCopies(service.frameList.length, objectKey),
+                        service.frameList);
+            }
+        },
+
+        // The first frame of the instance
+        RENDER(MediaTypes.IMAGE_JPEG_TYPE, 3600 * 24) {
+
+            @Override
+            public Object buildResponse(WadoResource service, List<DicomEntityResult> results, AsyncResponse ar) {
+                return service.renderService.renderAsync(results.get(0).getResource().getObjectName(), 1,
+                        service.renderParameters);
+            }
+        },
+
+        RENDER_FRAME(MediaTypes.IMAGE_JPEG_TYPE, 3600 * 24) {
+
+            @Override
+            public Object buildResponse(WadoResource service, List<DicomEntityResult> results, AsyncResponse ar) {
+                return service.renderService.renderAsync(results.get(0).getResource().getObjectName(),
+                        service.frameList[0], service.renderParameters);
             }
         },
-        ZIP(null, -1), BULKDATA(null, 3600 * 24), BULKDATA_PATH(null, 3600 * 24),
 
-        // Do not support any rendering
-        RENDER_MULTIPART(MediaTypes.MULTIPART_RELATED_APPLICATION_DICOM_TYPE, 3600 * 24),
-        RENDER_FRAME_MULTIPART(MediaTypes.MULTIPART_RELATED_APPLICATION_DICOM_TYPE, 3600 * 24),
-        RENDER(MediaTypes.IMAGE_JPEG_TYPE, 3600 * 24), RENDER_FRAME(MediaTypes.IMAGE_JPEG_TYPE, 3600 * 24),
-        THUMBNAIL(MediaTypes.IMAGE_JPEG_TYPE, 3600 * 24);
+        // The requested frame, or the first frame of the middle instance of a study
+        // or series
+        THUMBNAIL(MediaTypes.IMAGE_JPEG_TYPE, 3600 * 24) {
+
+            @Override
+            public Object buildResponse(WadoResource service, List<DicomEntityResult> results, AsyncResponse ar) {
+                DicomEntityResult rslt = ThumbnailService.getRepresentative(results);
+                int frame = service.frameList == null ? 1 : service.frameList[0];
+                return service.renderService.renderAsync(rslt.getResource().getObjectName(), frame,
+                        service.renderParameters);
+            }
+        };
 
         MediaType mediaType;
         int cacheDuration;
@@ -354,6 +642,42 @@ public class WadoResource {
             return mediaType;
         }
 
+        /**
+         * @return the media type of the response, rendered images are returned in
+         *         the requested image type
+         */
+        public MediaType getMediaType(WadoResource service) {
+            if (service.renderParameters == null) {
+                return mediaType;
+            }
+            if (MediaTypes.MULTIPART_RELATED_TYPE.equals(mediaType)) {
+                return new MediaType(mediaType.getType(), mediaType.getSubtype(),
+                        Collections.singletonMap("type", service.renderParameters.getMediaType().toString()));
+            }
+            return service.renderParameters.getMediaType();
+        }
+
+        /**
+         * Renders the frames on the render pool while the response is written,
+         * staying one frame ahead of the writer.
+         */
+        private static MultipartStreamingOutput buildRenderedOutput(WadoResource service, List<String> objectKeys,
+                int[] frames) {
+            RenderParameters params = service.renderParameters;
+            RenderService renderService = service.renderService;
+            MultipartStreamingOutput output = new MultipartStreamingOutput();
+            for (int i = 0; i < objectKeys.size(); i++) {
+                int index = i;
+                output.addPart(params.getMediaType(), out -> {
+                    if (index + 1 < objectKeys.size()) {
+                        renderService.prefetch(objectKeys.get(index + 1), frames[index + 1], params);
+                    }
+                    out.write(renderService.render(objectKeys.get(index), frames[index], params));
+                });
+            }
+            return output;
+        }
+
         public int getCacheDuration() {
             return cacheDuration;
         }
@@ -366,27 +690,321 @@ public class WadoResource {
             return;
         }
         LOG.info(String.format("Found %d instances", results.size()));
+        if (transferSyntax != null && !transcodeService.isSupported(transferSyntax)) {
+            LOG.warnf("Unsupported transfer syntax %s requested", transferSyntax);
+            ar.resume(Response.status(Response.Status.NOT_ACCEPTABLE).build());
+            return;
+        }
+
+        // Evaluated from the query results alone, so a cached representation is
+        // confirmed without reading from storage
+        Date lastModified = getLastModified(results);
+        EntityTag entityTag = getEntityTag(results, output);
+        Response.ResponseBuilder responseBuilder = req.evaluatePreconditions(lastModified, entityTag);
+        if (responseBuilder == null) {
+            if (output != Output.METADATA_JSON && output != Output.METADATA_XML) {
+                prefetchService.retrieved(getObjectKeys(results));
+            }
+            Object response = output.buildResponse(this, results, ar);
+            if (response instanceof CompletionStage) {
+                // Resumed once the response has been read from storage, on the
+                // continuation pool rather than a thread of the storage client
+                Map<Class<?>, Object> contextData = ResteasyContext.getContextDataMap();
+                ((CompletionStage<?>) response).whenCompleteAsync((entity, error) -> {
+                    ResteasyContext.pushContextDataMap(contextData);
+                    try {
+                        resume(output, entity, error, lastModified, entityTag, ar);
+                    } catch (RuntimeException e) {
+                        if (entity instanceof Closeable) {
+                            closeQuietly((Closeable) entity);
+                        }
+                        ar.resume(e);
+                    } finally {
+                        ResteasyContext.removeContextDataLevel();
+                    }
+                }, fetchService.getContinuationExecutor());
+                return;
+            }
+            responseBuilder = buildResponse(output, response, lastModified, entityTag);
+        }
+        resume(responseBuilder.build(), ar);
+    }
+
+    /**
+     * Resumes the request with the response, closing the resources its body
+     * holds once the response completes, or at once if the request is no longer
+     * waiting for it, so they are released even if the body is never written.
+     */
+    private static void resume(Response response, AsyncResponse ar) {
+        Object entity = response.getEntity();
+        if (entity instanceof Closeable) {
+            Closeable resources = (Closeable) entity;
+            ar.register((CompletionCallback) error -> closeQuietly(resources));
+            if (!ar.resume(response)) {
+                closeQuietly(resources);
+            }
+        } else {
+            ar.resume(response);
+        }
+    }
+
+    private static void closeQuietly(Closeable resources) {
+        try {
+            resources.close();
+        } catch (IOException e) {
+            LOG.debug("Failed closing " + resources, e);
+        }
+    }
+
+    private void resume(Output output, Object entity, Throwable error, Date lastModified, EntityTag entityTag,
+            AsyncResponse ar) {
+        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+        if (cause instanceof UncheckedIOException) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof FileNotFoundException) {
+            ar.resume(Response.status(Response.Status.NOT_FOUND).build());
+        } else if (cause instanceof IllegalArgumentException) {
+            LOG.warn(cause.getMessage());
+            ar.resume(Response.status(Response.Status.BAD_REQUEST).build());
+        } else if (cause != null) {
+            LOG.error("Failed to read " + output + " from storage", cause);
+            ar.resume(cause);
+        } else {
+            resume(buildResponse(output, entity, lastModified, entityTag).build(), ar);
+        }
+    }
 
-        Object response = output.buildResponse(this, results, ar);
-        Response.ResponseBuilder responseBuilder = null;
+    private Response.ResponseBuilder buildResponse(Output output, Object response, Date lastModified,
+            EntityTag entityTag) {
         if (response == null) {
-            responseBuilder = Response.status(Response.Status.BAD_REQUEST);
+            return Response.status(Response.Status.BAD_REQUEST);
+        }
+        CacheControl cc = getCacheControl(output);
+        if (response instanceof RangedObject) {
+            return buildRangedResponse((RangedObject) response, lastModified, entityTag).cacheControl(cc);
+        }
+        MediaType mediaType = output.getMediaType(this);
+        if (response instanceof MultipartStreamingOutput) {
+            mediaType = ((MultipartStreamingOutput) response).getMediaType(mediaType);
+        }
+        return Response.status(Response.Status.OK).entity(response).type(mediaType).cacheControl(cc)
+                .lastModified(lastModified).tag(entityTag);
+    }
+
+    /**
+     * Serves the requested ranges of the object, or all of it if no ranges were
+     * requested or the If-Range condition does not hold. Ranged responses are not
+     * compressed, as the ranges are offsets into the stored bytes.
+     */
+    private Response.ResponseBuilder buildRangedResponse(RangedObject object, Date lastModified,
+            EntityTag entityTag) {
+        long length;
+        try {
+            length = object.getLength(storeService);
+        } catch (FileNotFoundException e) {
+            return Response.status(Response.Status.NOT_FOUND);
+        } catch (IOException e) {
+            LOG.error("Failed to look up the length of " + object.getObjectKey(), e);
+            return Response.serverError();
+        }
+
+        List<ByteRange> ranges = null;
+        if (isIfRangeMatched(lastModified, entityTag)) {
+            ranges = ByteRange.parse(request.getHeader(HttpHeaders.RANGE), length);
+        }
+        Response.ResponseBuilder responseBuilder;
+        if (ranges == null) {
+            StreamingOutput output = out -> object.write(storeService, 0, length, length, out);
+            responseBuilder = Response.ok(output, MediaType.APPLICATION_OCTET_STREAM_TYPE)
+                    .header(HttpHeaders.CONTENT_LENGTH, length);
+        } else if (ranges.isEmpty()) {
+            return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+        } else if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            StreamingOutput output = out -> object.write(storeService, range.getFirst(), range.getLength(), length,
+                    out);
+            responseBuilder = Response.status(Response.Status.PARTIAL_CONTENT).entity(output)
+                    .type(MediaType.APPLICATION_OCTET_STREAM_TYPE)
+                    .header(HttpHeaders.CONTENT_RANGE, range.toContentRange(length))
+                    .header(HttpHeaders.CONTENT_LENGTH, range.getLength());
         } else {
-            if (lastModified != null) {
-                responseBuilder = req.evaluatePreconditions(lastModified,
-                        new EntityTag(String.valueOf(lastModified.hashCode())));
+            MultipartStreamingOutput output = new MultipartStreamingOutput();
+            for (ByteRange range : ranges) {
+                output.addPart(MediaType.APPLICATION_OCTET_STREAM_TYPE,
+                        Collections.singletonMap(HttpHeaders.CONTENT_RANGE, range.toContentRange(length)),
+                        out -> object.write(storeService, range.getFirst(), range.getLength(), length, out));
+            }
+            responseBuilder = Response.status(Response.Status.PARTIAL_CONTENT).entity(output)
+                    .type(output.getMediaType(MULTIPART_BYTERANGES_TYPE));
+        }
+        return responseBuilder.header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .header(HttpHeaders.CONTENT_ENCODING, "identity").lastModified(lastModified).tag(entityTag);
+    }
+
+    /**
+     * @return true if the ranges of the request apply to the current
+     *         representation
+     */
+    private boolean isIfRangeMatched(Date lastModified, EntityTag entityTag) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals("\"" + entityTag.getValue() + "\"");
+        }
+        try {
+            return ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond() == lastModified
+                    .toInstant().getEpochSecond();
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Continues a request once its query completes, without holding the request
+     * thread while waiting. The JAX-RS context of the request is made available to
+     * the continuation, which runs on the bounded continuation pool rather than on
+     * a thread of the query client, since it reads from storage.
+     */
+    private void whenQueried(CompletionStage<List<DicomEntityResult>> query, AsyncResponse ar,
+            Consumer<List<DicomEntityResult>> continuation) {
+        Map<Class<?>, Object> contextData = ResteasyContext.getContextDataMap();
+        query.whenCompleteAsync((results, error) -> {
+            ResteasyContext.pushContextDataMap(contextData);
+            try {
+                if (error != null) {
+                    LOG.error("Query failed", error);
+                    ar.resume(error);
+                } else {
+                    continuation.accept(results);
+                }
+            } catch (RuntimeException e) {
+                ar.resume(e);
+            } finally {
+                ResteasyContext.removeContextDataLevel();
+            }
+        }, fetchService.getContinuationExecutor());
+    }
+
+    private static List<String> getObjectKeys(List<DicomEntityResult> results) {
+        List<String> objectKeys = new ArrayList<>(results.size());
+        for (DicomEntityResult rslt : results) {
+            objectKeys.add(rslt.getResource().getObjectName());
+        }
+        return objectKeys;
+    }
+
+    private Date getLastModified(List<DicomEntityResult> results) {
+        Instant lastModified = Instant.EPOCH;
+        for (DicomEntityResult rslt : results) {
+            if (rslt.getLastModified() != null && rslt.getLastModified().toInstant().isAfter(lastModified)) {
+                lastModified = rslt.getLastModified().toInstant();
+            }
+        }
+        return Date.from(lastModified);
+    }
+
+    /**
+     * @return a strong entity tag derived from the content addressed names of
+     *         the retrieved objects, the study revision and the representation
+     */
+    private EntityTag getEntityTag(List<DicomEntityResult> results, Output output) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(output.name().getBytes(StandardCharsets.UTF_8));
+        for (DicomEntityResult rslt : results) {
+            digest.update((byte) 0);
+            digest.update(rslt.getResource().getObjectName().getBytes(StandardCharsets.UTF_8));
+        }
+        Integer revision = results.get(0).getRevision();
+        if (revision != null) {
+            digest.update((byte) 0);
+            digest.update(revision.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        if (transferSyntax != null) {
+            digest.update((byte) 0);
+            digest.update(transferSyntax.getBytes(StandardCharsets.UTF_8));
+        }
+        if (singlePart) {
+            digest.update((byte) 0);
+            digest.update(MediaType.APPLICATION_OCTET_STREAM.getBytes(StandardCharsets.UTF_8));
+        }
+        if (includeFields != null) {
+            digest.update((byte) 0);
+            digest.update(includeFields.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        if (renderParameters != null) {
+            digest.update((byte) 0);
+            digest.update(renderParameters.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        if (frameList != null) {
+            digest.update((byte) 0);
+            digest.update(Arrays.toString(frameList).getBytes(StandardCharsets.UTF_8));
+        }
+        return new EntityTag(String.format("%064x", new BigInteger(1, digest.digest())));
+    }
+
+    /**
+     * Serves the JSON metadata of a study or series from the snapshot of its
+     * current revision. A missing snapshot is built in the background while the
+     * metadata is served instance by instance.
+     * 
+     * @return false if the results have to be served instance by instance
+     */
+    private boolean retrieveSnapshot(String studyUID, String seriesUID, List<DicomEntityResult> results,
+            Output output, AsyncResponse ar) {
+        if (output != Output.METADATA_JSON || results == null || results.isEmpty()
+                || results.get(0).getRevision() == null) {
+            return false;
+        }
+
+        // Tagged like the same metadata served instance by instance, so either
+        // revalidates the other
+        int revision = results.get(0).getRevision();
+        Date lastModified = getLastModified(results);
+        EntityTag entityTag = getEntityTag(results, output);
+        Response.ResponseBuilder responseBuilder = req.evaluatePreconditions(lastModified, entityTag);
+        if (responseBuilder == null) {
+            byte[] snapshot = null;
+            try {
+                snapshot = snapshotService.load(studyUID, seriesUID, revision);
+            } catch (IOException e) {
+                LOG.warn("Failed to load metadata snapshot for " + studyUID, e);
+                return false;
             }
-            if (responseBuilder == null) {
-                CacheControl cc = new CacheControl();
-                cc.setNoCache(true);
-                cc.setPrivate(true);
-                cc.setMustRevalidate(true);
-                cc.setMaxAge(output.getCacheDuration());
-                responseBuilder = Response.status(Response.Status.OK).entity(response).type(output.getMediaType())
-                        .cacheControl(cc).lastModified(lastModified).tag(String.valueOf(lastModified.hashCode()));
+            if (snapshot == null) {
+                snapshotService.buildAsync(studyUID, seriesUID, revision, results);
+                return false;
             }
+            String baseUrl = determineBaseUrl();
+            Object entity;
+            if (includeFields == null) {
+                byte[] document = snapshot;
+                entity = (StreamingOutput) out -> MetadataSidecar.write(document, baseUrl, out);
+            } else {
+                entity = selectJson(snapshot);
+            }
+            responseBuilder = Response.status(Response.Status.OK).entity(entity).type(output.getMediaType())
+                    .cacheControl(getCacheControl(output)).lastModified(lastModified).tag(entityTag);
         }
         ar.resume(responseBuilder.build());
+        return true;
+    }
+
+    private CacheControl getCacheControl(Output output) {
+        CacheControl cc = new CacheControl();
+        cc.setNoCache(true);
+        cc.setPrivate(true);
+        cc.setMustRevalidate(true);
+        cc.setMaxAge(output.getCacheDuration());
+        return cc;
     }
 
     public int[] createFrameListFromPathParam(String frameList) {
@@ -404,29 +1022,206 @@ public class WadoResource {
         return frames;
     }
 
-    private Object getDicom(String objectKey) throws IOException {
-        ByteArrayOutputStream baos = storeService.retrieve(objectKey);
-        return baos.toByteArray();
+    private static void writeDicom(StoredObject object, OutputStream out) throws IOException {
+        try (object) {
+            LOG.debugf("Streaming %s (%d bytes)", object.getObjectKey(), object.getLength());
+            object.transferTo(out);
+        }
     }
 
-    private ByteArrayOutputStream getDicomStream(String objectKey) throws IOException {
-        return storeService.retrieve(objectKey);
+    private static void writeFrame(StoreService storeService, String objectKey, FrameIndex frameIndex, int frame,
+            OutputStream out) throws IOException {
+        long[] offsets = frameIndex.getFragmentOffsets(frame);
+        int[] lengths = frameIndex.getFragmentLengths(frame);
+        LOG.debugf("Extracting frame %d (%d bytes) of %s from %d fragments", frame, frameIndex.getFrameLength(frame),
+                objectKey, offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+            try (StoredObject fragment = storeService.retrieve(objectKey, offsets[i], lengths[i])) {
+                fragment.transferTo(out);
+            }
+        }
+    }
+
+    private static MediaType getFrameMediaType(FrameIndex frameIndex) {
+        if (frameIndex.isEncapsulated()) {
+            return new MediaType("application", "octet-stream",
+                    Collections.singletonMap("transfer-syntax", frameIndex.getTransferSyntaxUID()));
+        }
+        return MediaType.APPLICATION_OCTET_STREAM_TYPE;
+    }
+
+    /**
+     * Loads the frame index stored for the object. Objects stored without one
+     * are indexed on first access, and the index is stored so later requests read
+     * only the frames they ask for.
+     * 
+     * @return the frame index, or null if the object has no pixel data or its
+     *         frames can not be located
+     */
+    private FrameIndex loadFrameIndex(String objectKey) {
+        try {
+            FrameIndex frameIndex = storeService.retrieveFrameIndex(objectKey);
+            if (frameIndex != null) {
+                return frameIndex;
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to load frame index for " + objectKey, e);
+        }
+
+        FrameIndex frameIndex;
+        try (StoredObject object = storeService.retrieve(objectKey);
+                DicomInputStream dis = new DicomInputStream(object.getInputStream())) {
+            frameIndex = new FrameIndexBuilder().build(dis);
+        } catch (IOException e) {
+            LOG.warn("Failed to index frames of " + objectKey, e);
+            return null;
+        }
+        if (frameIndex != null) {
+            try {
+                storeService.store(objectKey + FrameIndex.OBJECT_SUFFIX, frameIndex.toBytes());
+            } catch (IOException e) {
+                LOG.warn("Failed to store frame index for " + objectKey, e);
+            }
+        }
+        return frameIndex;
+    }
+
+    private void writeMetadataJson(String objectKey, OutputStream out) throws IOException {
+        byte[] sidecar = loadMetadataSidecar(objectKey);
+        if (sidecar != null && includeFields == null) {
+            MetadataSidecar.write(sidecar, determineBaseUrl(), out);
+            return;
+        }
+
+        JsonGenerator gen = Json.createGenerator(out);
+        new JSONWriter(gen).write(sidecar != null ? readJson(sidecar) : parseMetadata(objectKey));
+        gen.flush();
     }
 
     private Attributes loadMetadata(String objectKey) throws IOException {
-        ByteArrayOutputStream baos = getDicomStream(objectKey);
-        try (DicomInputStream dis = new DicomInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
-            Attributes metadata = dis.readDatasetUntilPixelData();
+        byte[] sidecar = loadMetadataSidecar(objectKey);
+        if (sidecar != null) {
+            return readJson(sidecar);
+        }
+        return parseMetadata(objectKey);
+    }
+
+    /**
+     * @return the dataset of the metadata sidecar with its bulk data URIs resolved
+     *         against this request, limited to the requested includefields
+     */
+    private Attributes readJson(byte[] json) {
+        Attributes metadata = new JSONReader(Json.createParser(new ByteArrayInputStream(json))).readDataset(null);
+        MetadataSidecar.resolve(metadata, determineBaseUrl());
+        return includeFields == null ? metadata : includeFields.select(metadata);
+    }
+
+    /**
+     * @return the JSON array of the datasets of a metadata snapshot, resolved
+     *         against this request and limited to the requested includefields
+     */
+    private byte[] selectJson(byte[] json) {
+        String baseUrl = determineBaseUrl();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator gen = Json.createGenerator(out);
+        JSONWriter writer = new JSONWriter(gen);
+        gen.writeStartArray();
+        new JSONReader(Json.createParser(new ByteArrayInputStream(json))).readDatasets(
+                (fmi, dataset) -> writer.write(includeFields.select(MetadataSidecar.resolve(dataset, baseUrl))));
+        gen.writeEnd();
+        gen.flush();
+        return out.toByteArray();
+    }
+
+    /**
+     * @return false if the includefields are not valid and the request has been
+     *         answered
+     */
+    private boolean parseIncludeFields(String includefields, AsyncResponse ar) {
+        try {
+            includeFields = IncludeFields.parse(includefields);
+            return true;
+        } catch (IllegalArgumentException e) {
+            LOG.warn(e.getMessage());
+            ar.resume(Response.status(Response.Status.BAD_REQUEST).build());
+            return false;
+        }
+    }
+
+    private boolean parseRenderParameters(int quality, String viewport, String window, AsyncResponse ar) {
+        try {
+            return acceptRenderParameters(
+                    RenderParameters.parse(request.getHeader("Accept"), quality, viewport, window), ar);
+        } catch (IllegalArgumentException e) {
+            LOG.warn(e.getMessage());
+            ar.resume(Response.status(Response.Status.BAD_REQUEST).build());
+            return false;
+        }
+    }
+
+    private boolean parseThumbnailParameters(String viewport, AsyncResponse ar) {
+        try {
+            return acceptRenderParameters(RenderParameters.thumbnail(request.getHeader("Accept"), viewport,
+                    renderService.getThumbnailSize()), ar);
+        } catch (IllegalArgumentException e) {
+            LOG.warn(e.getMessage());
+            ar.resume(Response.status(Response.Status.BAD_REQUEST).build());
+            return false;
+        }
+    }
+
+    private boolean acceptRenderParameters(RenderParameters params, AsyncResponse ar) {
+        if (params == null) {
+            ar.resume(Response.status(Response.Status.NOT_ACCEPTABLE).build());
+            return false;
+        }
+        renderParameters = params;
+        return true;
+    }
+
+    /**
+     * @return the metadata stored at ingest, with its bulk data URIs relative to
+     *         the base URI template, or null if the object has to be parsed
+     */
+    private byte[] loadMetadataSidecar(String objectKey) {
+        try {
+            return storeService.retrieveMetadata(objectKey);
+        } catch (IOException e) {
+            LOG.warn("Failed to load metadata for " + objectKey, e);
+        }
+        return null;
+    }
+
+    private Attributes parseMetadata(String objectKey) throws IOException {
+        try (StoredObject object = storeService.retrieve(objectKey);
+                DicomInputStream dis = new DicomInputStream(object.getInputStream())) {
+            Attributes metadata = includeFields == null ? dis.readDatasetUntilPixelData() : includeFields.read(dis);
             String url = determineUrl(metadata);
-            if (dis.tag() == Tag.PixelData) {
+            if (dis.tag() == Tag.PixelData && (includeFields == null || includeFields.includes(Tag.PixelData))) {
                 metadata.setValue(Tag.PixelData, dis.vr(), new BulkData(null, url, dis.bigEndian()));
             }
             return metadata;
         }
     }
 
+    /**
+     * @return the URL of this request, kept for writers that run after the
+     *         request context is gone
+     */
+    private String getRequestUrl() {
+        if (requestUrl == null) {
+            requestUrl = request.getRequestURL().toString();
+        }
+        return requestUrl;
+    }
+
+    private String determineBaseUrl() {
+        String url = getRequestUrl();
+        return url.substring(0, url.lastIndexOf("/studies/"));
+    }
+
     private String determineUrl(Attributes attr) {
-        StringBuffer sb = new StringBuffer(request.getRequestURL().toString());
+        StringBuffer sb = new StringBuffer(getRequestUrl());
         sb.setLength(sb.lastIndexOf("/metadata"));
         if (sb.lastIndexOf("/instances/") < 0) {
             if (sb.lastIndexOf("/series/") < 0) {
@@ -434,7 +1229,7 @@ public class WadoResource {
             }
             sb.append("/instances/").append(attr.getString(Tag.SOPInstanceUID));
         }
-        return sb.toString();
+        return sb.append("/bulkdata/").append(PIXEL_DATA_PATH).toString();
     }
 
     private String getTransferSyntaxUID(DicomEntityResult inst) {
@@ -449,6 +1244,54 @@ public class WadoResource {
         return null;
     }
 
+    /**
+     * @return the name of the instance in a zip archive, grouped by series
+     */
+    private String getZipEntryName(DicomEntityResult inst, int index) {
+        String seriesUID = getDicomAttributeValue(inst, Tag.SeriesInstanceUID);
+        String instanceUID = getDicomAttributeValue(inst, Tag.SOPInstanceUID);
+        if (instanceUID == null) {
+            instanceUID = String.format("%06d", index + 1);
+        }
+        return seriesUID == null ? instanceUID + ".dcm" : seriesUID + "/" + instanceUID + ".dcm";
+    }
+
+    private Output getRetrieveOutputType() {
+        String accept = request.getHeader("Accept");
+        if (accept != null) {
+            for (String type : accept.split(",")) {
+                MediaType mediaType = MediaType.valueOf(type.trim());
+                if (MediaTypes.equalsIgnoreParameters(MediaTypes.APPLICATION_ZIP_TYPE, mediaType)) {
+                    return Output.ZIP;
+                }
+                if (MediaTypes.equalsIgnoreParameters(MediaType.APPLICATION_OCTET_STREAM_TYPE, mediaType)) {
+                    return Output.OCTET_STREAM;
+                }
+                if (mediaType.isCompatible(MediaTypes.MULTIPART_RELATED_TYPE)) {
+                    String tsuid = mediaType.getParameters().get("transfer-syntax");
+                    if (tsuid != null && !"*".equals(tsuid)) {
+                        transferSyntax = tsuid;
+                    }
+                    return Output.DICOM;
+                }
+            }
+        }
+        return Output.DICOM;
+    }
+
+    /**
+     * @return true if bulk data is requested as a single application/octet-stream
+     *         part rather than a multipart response
+     */
+    private boolean acceptsSinglePart() {
+        String accept = request.getHeader("Accept");
+        if (accept == null) {
+            return false;
+        }
+        MediaType mediaType = MediaType.valueOf(accept.split(",")[0].trim());
+        return MediaTypes.equalsIgnoreParameters(MediaType.APPLICATION_OCTET_STREAM_TYPE, mediaType);
+    }
+
     private Output getMetadataOutputType() {
         MediaType accept = MediaType.valueOf(request.getHeader("Accept"));
 
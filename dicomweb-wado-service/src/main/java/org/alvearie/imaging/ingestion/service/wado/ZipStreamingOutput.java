@@ -0,0 +1,226 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.alvearie.imaging.ingestion.service.wado.MultipartStreamingOutput.PartWriter;
+
+/**
+ * Zip archive response body whose entries are written directly to the response
+ * stream. Entries are stored without compression and their CRC and sizes follow
+ * the data in a data descriptor, so nothing is staged before it is sent. Every
+ * entry is a ZIP64 entry, in its local header as well as in the central
+ * directory, so archives may exceed 4 GB and 65535 entries.
+ */
+public class ZipStreamingOutput implements StreamingOutput, Closeable {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int VERSION_ZIP64 = 45;
+    // Sizes in data descriptor, UTF-8 names
+    private static final int FLAGS = 0x0808;
+    private static final int METHOD_STORED = 0;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    private static class Entry {
+        private final String name;
+        private final PartWriter writer;
+
+        private Entry(String name, PartWriter writer) {
+            this.name = name;
+            this.writer = writer;
+        }
+    }
+
+    private static class WrittenEntry {
+        private final byte[] name;
+        private final long offset;
+        private final long crc;
+        private final long size;
+
+        private WrittenEntry(byte[] name, long offset, long crc, long size) {
+            this.name = name;
+            this.offset = offset;
+            this.crc = crc;
+            this.size = size;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final List<Closeable> resources = new ArrayList<>();
+
+    public void addEntry(String name, PartWriter writer) {
+        entries.add(new Entry(name, writer));
+    }
+
+    /**
+     * Adds a resource used by the entry writers, closed once the archive has been
+     * written, writing it failed or the response was abandoned.
+     */
+    public void addResource(Closeable resource) {
+        resources.add(resource);
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException, WebApplicationException {
+        try {
+            CountingOutputStream out = new CountingOutputStream(output);
+            int dosTime = toDosTime(LocalDateTime.now());
+            List<WrittenEntry> written = new ArrayList<>(entries.size());
+            for (Entry entry : entries) {
+                written.add(writeEntry(out, entry, dosTime));
+            }
+            writeCentralDirectory(out, written, dosTime);
+            out.flush();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Closes the resources of the entry writers, also when the archive is not
+     * written because the response was abandoned.
+     */
+    @Override
+    public void close() {
+        MultipartStreamingOutput.closeAll(resources);
+    }
+
+    private WrittenEntry writeEntry(CountingOutputStream out, Entry entry, int dosTime) throws IOException {
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        long offset = out.count;
+
+        // Sizes are unknown until the entry is written, the ZIP64 extra field
+        // tells readers the data descriptor holds 8 byte sizes
+        ByteBuffer header = newBuffer(30 + name.length + 20);
+        header.putInt(LOCAL_HEADER_SIGNATURE).putShort((short) VERSION_ZIP64).putShort((short) FLAGS)
+                .putShort((short) METHOD_STORED).putInt(dosTime).putInt(0).putInt((int) ZIP64_MAGIC)
+                .putInt((int) ZIP64_MAGIC).putShort((short) name.length).putShort((short) 20).put(name);
+        header.putShort((short) ZIP64_EXTRA_ID).putShort((short) 16).putLong(0).putLong(0);
+        out.write(header.array());
+
+        CRC32 crc = new CRC32();
+        long start = out.count;
+        entry.writer.writeTo(new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                crc.update(b);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                crc.update(b, off, len);
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                // The archive stays open for the following entries
+                flush();
+            }
+        });
+        long size = out.count - start;
+
+        ByteBuffer descriptor = newBuffer(24);
+        descriptor.putInt(DATA_DESCRIPTOR_SIGNATURE).putInt((int) crc.getValue()).putLong(size).putLong(size);
+        out.write(descriptor.array());
+        return new WrittenEntry(name, offset, crc.getValue(), size);
+    }
+
+    private void writeCentralDirectory(CountingOutputStream out, List<WrittenEntry> written, int dosTime)
+            throws IOException {
+        long start = out.count;
+        for (WrittenEntry entry : written) {
+            // The sizes are always in the ZIP64 extra field, as the local header
+            // announced, the offset only once it no longer fits
+            boolean zip64Offset = entry.offset >= ZIP64_MAGIC;
+            int extraLength = 4 + 16 + (zip64Offset ? 8 : 0);
+
+            ByteBuffer header = newBuffer(46 + entry.name.length + extraLength);
+            header.putInt(CENTRAL_HEADER_SIGNATURE).putShort((short) VERSION_ZIP64).putShort((short) VERSION_ZIP64)
+                    .putShort((short) FLAGS).putShort((short) METHOD_STORED).putInt(dosTime)
+                    .putInt((int) entry.crc).putInt((int) ZIP64_MAGIC).putInt((int) ZIP64_MAGIC)
+                    .putShort((short) entry.name.length).putShort((short) extraLength).putShort((short) 0)
+                    .putShort((short) 0).putShort((short) 0).putInt(0)
+                    .putInt((int) (zip64Offset ? ZIP64_MAGIC : entry.offset)).put(entry.name);
+            header.putShort((short) ZIP64_EXTRA_ID).putShort((short) (extraLength - 4)).putLong(entry.size)
+                    .putLong(entry.size);
+            if (zip64Offset) {
+                header.putLong(entry.offset);
+            }
+            out.write(header.array());
+        }
+        long size = out.count - start;
+
+        int count = written.size();
+        boolean zip64 = count >= ZIP64_MAGIC_COUNT || start >= ZIP64_MAGIC || size >= ZIP64_MAGIC;
+        if (zip64) {
+            long end = out.count;
+            ByteBuffer record = newBuffer(56 + 20);
+            record.putInt(ZIP64_END_SIGNATURE).putLong(44).putShort((short) VERSION_ZIP64)
+                    .putShort((short) VERSION_ZIP64).putInt(0).putInt(0).putLong(count).putLong(count).putLong(size)
+                    .putLong(start);
+            record.putInt(ZIP64_LOCATOR_SIGNATURE).putInt(0).putLong(end).putInt(1);
+            out.write(record.array());
+        }
+
+        ByteBuffer end = newBuffer(22);
+        end.putInt(END_SIGNATURE).putShort((short) 0).putShort((short) 0)
+                .putShort((short) (zip64 ? ZIP64_MAGIC_COUNT : count))
+                .putShort((short) (zip64 ? ZIP64_MAGIC_COUNT : count)).putInt((int) (zip64 ? ZIP64_MAGIC : size))
+                .putInt((int) (zip64 ? ZIP64_MAGIC : start)).putShort((short) 0);
+        out.write(end.array());
+    }
+
+    private static ByteBuffer newBuffer(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int toDosTime(LocalDateTime time) {
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+                | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ByteRangeTest {
+    @Test
+    public void testParse() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=0-99, 200-, -50", 1000);
+        Assertions.assertEquals(3, ranges.size());
+        Assertions.assertEquals("bytes 0-99/1000", ranges.get(0).toContentRange(1000));
+        Assertions.assertEquals("bytes 200-999/1000", ranges.get(1).toContentRange(1000));
+        Assertions.assertEquals("bytes 950-999/1000", ranges.get(2).toContentRange(1000));
+        Assertions.assertEquals(100, ranges.get(0).getLength());
+
+        // Ranges past the end are shortened or dropped
+        ranges = ByteRange.parse("bytes=900-1999,-2000,1000-", 1000);
+        Assertions.assertEquals(2, ranges.size());
+        Assertions.assertEquals("bytes 900-999/1000", ranges.get(0).toContentRange(1000));
+        Assertions.assertEquals("bytes 0-999/1000", ranges.get(1).toContentRange(1000));
+        Assertions.assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+    }
+
+    @Test
+    public void testParseInvalid() {
+        Assertions.assertNull(ByteRange.parse(null, 1000));
+        Assertions.assertNull(ByteRange.parse("items=0-1", 1000));
+        Assertions.assertNull(ByteRange.parse("bytes=5-1", 1000));
+        Assertions.assertNull(ByteRange.parse("bytes=a-1", 1000));
+        Assertions.assertNull(ByteRange.parse("bytes=10", 1000));
+        Assertions.assertNull(ByteRange.parse("bytes=" + "0-1,".repeat(ByteRange.MAX_RANGES + 1), 1000));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class ComputedCacheTest {
+    ComputedCache cache;
+
+    @BeforeEach
+    public void setup() {
+        cache = new ComputedCache("test.computed.cache", 2, 1024);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        cache.shutdown();
+    }
+
+    @Test
+    public void testSharedComputation() throws Exception {
+        AtomicInteger computations = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ComputedCache.Computation computation = () -> {
+            computations.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new byte[] { 1 };
+        };
+
+        CompletableFuture<byte[]> first = cache.getAsync("key", computation);
+        CompletableFuture<byte[]> second = cache.getAsync("key", computation);
+        release.countDown();
+        Assertions.assertArrayEquals(new byte[] { 1 }, first.get());
+        Assertions.assertArrayEquals(new byte[] { 1 }, second.get());
+        Assertions.assertArrayEquals(new byte[] { 1 }, cache.get("key", computation, "key"));
+        Assertions.assertEquals(1, computations.get());
+    }
+
+    @Test
+    public void testFailures() {
+        IOException e = Assertions.assertThrows(IOException.class, () -> cache.get("io", () -> {
+            throw new IOException("missing");
+        }, "io"));
+        Assertions.assertEquals("missing", e.getMessage());
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> cache.get("arg", () -> {
+            throw new IllegalArgumentException("no such frame");
+        }, "arg"));
+    }
+}
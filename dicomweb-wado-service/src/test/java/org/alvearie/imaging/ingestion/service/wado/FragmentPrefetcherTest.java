@@ -0,0 +1,64 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.alvearie.imaging.ingestion.service.s3.FrameIndex;
+import org.alvearie.imaging.ingestion.service.s3.StoreService;
+import org.alvearie.imaging.ingestion.service.s3.StoredObject;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class FragmentPrefetcherTest {
+    // Four frames, the second of two fragments
+    private final FrameIndex frameIndex = new FrameIndex("1.2.840.10008.1.2.4.50", true, 0,
+            new long[][] { { 0 }, { 10, 20 }, { 30 }, { 40 } }, new int[][] { { 1 }, { 1, 1 }, { 1 }, { 1 } });
+
+    @Test
+    public void testBoundedRanges() throws IOException {
+        StoreService storeService = Mockito.mock(StoreService.class);
+        Mockito.when(storeService.retrieveAsync(Mockito.anyString(), Mockito.anyLong(), Mockito.anyLong()))
+                .thenAnswer(i -> CompletableFuture.completedFuture(new StoredObject("a", 1,
+                        new ByteArrayInputStream(new byte[] { (byte) (long) i.getArgument(1) }))));
+
+        FragmentPrefetcher prefetcher = new FragmentPrefetcher(storeService, "a", frameIndex, new int[] { 2, 3, 4 },
+                2);
+        prefetcher.start().join();
+        Mockito.verify(storeService, Mockito.times(2)).retrieveAsync(Mockito.anyString(), Mockito.anyLong(),
+                Mockito.anyLong());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        prefetcher.writeFrame(0, out);
+        Assertions.assertArrayEquals(new byte[] { 10, 20 }, out.toByteArray());
+        // No more than two ranges ahead of the one written
+        Mockito.verify(storeService).retrieveAsync("a", 30, 1);
+        Mockito.verify(storeService, Mockito.never()).retrieveAsync("a", 40, 1);
+
+        out.reset();
+        prefetcher.writeFrame(1, out);
+        prefetcher.writeFrame(2, out);
+        Assertions.assertArrayEquals(new byte[] { 30, 40 }, out.toByteArray());
+        prefetcher.close();
+    }
+
+    @Test
+    public void testMissingObject() {
+        StoreService storeService = Mockito.mock(StoreService.class);
+        Mockito.when(storeService.retrieveAsync(Mockito.anyString(), Mockito.anyLong(), Mockito.anyLong()))
+                .thenReturn(CompletableFuture.failedFuture(new FileNotFoundException("a")));
+
+        FragmentPrefetcher prefetcher = new FragmentPrefetcher(storeService, "a", frameIndex, new int[] { 1 }, 2);
+        CompletionException e = Assertions.assertThrows(CompletionException.class, () -> prefetcher.start().join());
+        Assertions.assertTrue(e.getCause() instanceof FileNotFoundException);
+    }
+}
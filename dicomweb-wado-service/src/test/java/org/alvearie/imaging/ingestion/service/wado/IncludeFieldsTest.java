@@ -0,0 +1,67 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class IncludeFieldsTest {
+    @Test
+    public void testParse() {
+        Assertions.assertNull(IncludeFields.parse(null));
+        Assertions.assertNull(IncludeFields.parse("Rows,all"));
+
+        IncludeFields includeFields = IncludeFields.parse("Rows, 00280011,ReferencedSeriesSequence.SeriesInstanceUID");
+        Assertions.assertTrue(includeFields.includes(Tag.Rows));
+        Assertions.assertTrue(includeFields.includes(Tag.Columns));
+        Assertions.assertTrue(includeFields.includes(Tag.ReferencedSeriesSequence));
+        Assertions.assertTrue(includeFields.includes(Tag.SOPInstanceUID));
+        Assertions.assertFalse(includeFields.includes(Tag.PatientName));
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> IncludeFields.parse("NotAnAttribute"));
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        Attributes dataset = new Attributes();
+        dataset.setString(Tag.SOPClassUID, VR.UI, UID.CTImageStorage);
+        dataset.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3.4");
+        dataset.setString(Tag.PatientName, VR.PN, "Doe^John");
+        Sequence sequence = dataset.newSequence(Tag.ReferencedImageSequence, 1);
+        Attributes item = new Attributes();
+        item.setString(Tag.ReferencedSOPInstanceUID, VR.UI, "1.2.3.5");
+        sequence.add(item);
+        dataset.setInt(Tag.Rows, VR.US, 512);
+        dataset.setInt(Tag.Columns, VR.US, 512);
+        dataset.setBytes(Tag.PixelData, VR.OW, new byte[8]);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DicomOutputStream dos = new DicomOutputStream(out, UID.ExplicitVRLittleEndian)) {
+            dos.writeDataset(dataset.createFileMetaInformation(UID.ExplicitVRLittleEndian), dataset);
+        }
+
+        try (DicomInputStream dis = new DicomInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            Attributes metadata = IncludeFields.parse("Rows").read(dis);
+            Assertions.assertEquals(512, metadata.getInt(Tag.Rows, 0));
+            Assertions.assertEquals("1.2.3.4", metadata.getString(Tag.SOPInstanceUID));
+            Assertions.assertFalse(metadata.contains(Tag.PatientName));
+            Assertions.assertFalse(metadata.contains(Tag.ReferencedImageSequence));
+            // Parsing stops at the last selected attribute
+            Assertions.assertFalse(metadata.contains(Tag.Columns));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alvearie.imaging.ingestion.service.s3.StoreService;
+import org.alvearie.imaging.ingestion.service.s3.StoredObject;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class InstancePrefetcherTest {
+    @Test
+    public void testOrderedPrefetch() throws IOException {
+        StoreService storeService = Mockito.mock(StoreService.class);
+        Mockito.when(storeService.retrieveAsync(Mockito.anyString())).thenAnswer(i -> CompletableFuture
+                .completedFuture(new StoredObject(i.getArgument(0), 0, new ByteArrayInputStream(new byte[0]))));
+        List<String> objectKeys = Arrays.asList("a", "b", "c", "d");
+
+        InstancePrefetcher prefetcher = new InstancePrefetcher(storeService, objectKeys, 2, new Semaphore(8));
+        Assertions.assertEquals("a", prefetcher.take(0).getObjectKey());
+        Mockito.verify(storeService).retrieveAsync("b");
+        Mockito.verify(storeService, Mockito.never()).retrieveAsync("c");
+
+        Assertions.assertEquals("b", prefetcher.take(1).getObjectKey());
+        Mockito.verify(storeService).retrieveAsync("c");
+        Mockito.verify(storeService, Mockito.never()).retrieveAsync("d");
+
+        prefetcher.close();
+        Mockito.verify(storeService, Mockito.never()).retrieveAsync("d");
+    }
+
+    @Test
+    public void testFailedFetch() throws IOException {
+        StoreService storeService = Mockito.mock(StoreService.class);
+        Mockito.when(storeService.retrieveAsync(Mockito.anyString()))
+                .thenReturn(CompletableFuture.failedFuture(new IOException("missing")));
+
+        InstancePrefetcher prefetcher = new InstancePrefetcher(storeService, Arrays.asList("a"), 2, new Semaphore(8));
+        IOException e = Assertions.assertThrows(IOException.class, () -> prefetcher.take(0));
+        Assertions.assertEquals("missing", e.getMessage());
+    }
+
+    @Test
+    public void testOpenObjectsBoundedAcrossRetrieves() throws Exception {
+        AtomicInteger open = new AtomicInteger();
+        AtomicInteger maxOpen = new AtomicInteger();
+        StoreService storeService = Mockito.mock(StoreService.class);
+        Mockito.when(storeService.retrieveAsync(Mockito.anyString())).thenAnswer(i -> {
+            maxOpen.accumulateAndGet(open.incrementAndGet(), Math::max);
+            return CompletableFuture.completedFuture(new StoredObject(i.getArgument(0), 0,
+                    new ByteArrayInputStream(new byte[0]) {
+                        @Override
+                        public void close() {
+                            open.decrementAndGet();
+                        }
+                    }));
+        });
+        Semaphore openObjects = new Semaphore(3);
+
+        // A slow client holds the object it is written and the ones opened ahead
+        InstancePrefetcher slow = new InstancePrefetcher(storeService, Arrays.asList("a", "b", "c", "d"), 8,
+                openObjects);
+        StoredObject first = slow.take(0);
+        Assertions.assertEquals(3, open.get());
+
+        // Other retrieves open nothing ahead and wait for a permit
+        InstancePrefetcher other = new InstancePrefetcher(storeService, Arrays.asList("e", "f"), 8, openObjects);
+        CompletableFuture<StoredObject> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return other.take(0);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Assertions.assertThrows(TimeoutException.class, () -> waiting.get(200, TimeUnit.MILLISECONDS));
+        Mockito.verify(storeService, Mockito.never()).retrieveAsync("e");
+
+        first.close();
+        Assertions.assertEquals("e", waiting.get(5, TimeUnit.SECONDS).getObjectKey());
+        Mockito.verify(storeService, Mockito.never()).retrieveAsync("f");
+        Assertions.assertEquals(3, maxOpen.get());
+
+        slow.close();
+        other.close();
+        waiting.get().close();
+        Assertions.assertEquals(0, open.get());
+        Assertions.assertEquals(3, openObjects.availablePermits());
+    }
+}
@@ -6,7 +6,14 @@
 package org.alvearie.imaging.ingestion.service.wado;
 
 import static io.restassured.RestAssured.given;
-
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -19,6 +26,8 @@ import org.eclipse.microprofile.rest.client.inject.RestClient;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import io.quarkus.test.junit.QuarkusTest;
 import io.quarkus.test.junit.mockito.InjectMock;
 
@@ -67,6 +76,39 @@ public class QidoResourceTest {
                 .statusCode(200).and().header("Content-Encoding", "gzip");
     }
 
+    @Test
+    public void testSearchStudiesNextPage() {
+        Mockito.when(queryClient.getResults(Mockito.any(DicomQueryModel.class), Mockito.anyString()))
+                .thenReturn(generateTestData());
+        Mockito.when(queryClient.count(Mockito.any(DicomQueryModel.class), Mockito.anyString())).thenReturn(5L);
+        given().log().all(true).get("/wado-rs/studies?limit=1&offset=2&count=true").then().log().all()
+                .statusCode(200).header("Link", containsString("after=42"))
+                .header("Link", not(containsString("offset"))).header(QidoResource.TOTAL_COUNT_HEADER, "5");
+
+        given().log().all(true).get("/wado-rs/studies?limit=2").then().log().all().statusCode(200)
+                .header("Link", nullValue()).header(QidoResource.TOTAL_COUNT_HEADER, nullValue());
+    }
+
+    @Test
+    public void testSearchStudiesStreamed() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < 2; i++) {
+            for (DicomEntityResult result : generateTestData()) {
+                ndjson.append(mapper.writeValueAsString(result)).append('\n');
+            }
+        }
+        Mockito.when(queryClient.getResultStream(Mockito.any(DicomQueryModel.class), Mockito.anyString()))
+                .thenReturn(new ByteArrayInputStream(ndjson.toString().getBytes(StandardCharsets.UTF_8)));
+        Mockito.when(queryClient.count(Mockito.any(DicomQueryModel.class), Mockito.anyString())).thenReturn(2L);
+        given().log().all(true).get("/wado-rs/studies?limit=5000&count=true").then().log().all().statusCode(200)
+                .contentType(QidoResource.APPLICATION_DICOM_JSON).body("size()", is(2))
+                .body("[1].'00100020'.Value[0]", is("abc.123")).body("[1].cursor", nullValue())
+                .header("Link", nullValue()).header(QidoResource.TOTAL_COUNT_HEADER, "2");
+        Mockito.verify(queryClient, Mockito.never()).getResults(Mockito.any(DicomQueryModel.class),
+                Mockito.anyString());
+    }
+
     private List<DicomEntityResult> generateTestData() {
         List<DicomEntityResult> searchResult = new ArrayList<DicomEntityResult>();
 
@@ -89,6 +131,7 @@ public class QidoResourceTest {
         DicomResource resource = new DicomResource();
         resource.setObjectName("/path_to_resource");
         dicom.setResource(resource);
+        dicom.setCursor("42");
 
         searchResult.add(dicom);
 
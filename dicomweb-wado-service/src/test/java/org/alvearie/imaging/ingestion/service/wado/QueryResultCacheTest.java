@@ -0,0 +1,88 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.alvearie.imaging.ingestion.model.result.DicomEntityResult;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class QueryResultCacheTest {
+    QueryResultCache cache;
+
+    @BeforeEach
+    public void setup() {
+        cache = new QueryResultCache();
+        cache.enabled = true;
+        cache.maxEntries = 100;
+        cache.ttl = Duration.ofMinutes(1);
+        cache.init();
+    }
+
+    @Test
+    public void testInvalidateStudy() {
+        AtomicInteger queries = new AtomicInteger();
+        Supplier<List<DicomEntityResult>> loader = () -> {
+            queries.incrementAndGet();
+            return List.of(new DicomEntityResult());
+        };
+
+        cache.get("1.2.3", "study", loader);
+        cache.get("4.5.6", "other", loader);
+        cache.get(null, "search", loader);
+        cache.get("1.2.3", "study", loader);
+        cache.get(null, "search", loader);
+        Assertions.assertEquals(3, queries.get());
+
+        // Searches across studies are dropped along with the changed study
+        cache.invalidateStudy("1.2.3");
+        cache.get("1.2.3", "study", loader);
+        cache.get("4.5.6", "other", loader);
+        cache.get(null, "search", loader);
+        Assertions.assertEquals(5, queries.get());
+    }
+
+    @Test
+    public void testStaleResultsNotCached() {
+        AtomicInteger queries = new AtomicInteger();
+        CompletableFuture<List<DicomEntityResult>> inFlight = new CompletableFuture<>();
+        cache.getAsync("1.2.3", "study", () -> {
+            queries.incrementAndGet();
+            return inFlight;
+        });
+
+        // The study changes while the query is in flight
+        cache.invalidateStudy("1.2.3");
+        inFlight.complete(List.of(new DicomEntityResult()));
+
+        cache.getAsync("1.2.3", "study", () -> {
+            queries.incrementAndGet();
+            return CompletableFuture.completedFuture(List.of(new DicomEntityResult()));
+        });
+        Assertions.assertEquals(2, queries.get());
+    }
+
+    @Test
+    public void testEmptyResultsNotCached() {
+        AtomicInteger queries = new AtomicInteger();
+        Supplier<List<DicomEntityResult>> loader = () -> {
+            queries.incrementAndGet();
+            return new ArrayList<>();
+        };
+
+        // A study not stored yet is looked up again
+        cache.get("1.2.3", "study", loader);
+        cache.get("1.2.3", "study", loader);
+        Assertions.assertEquals(2, queries.get());
+    }
+}
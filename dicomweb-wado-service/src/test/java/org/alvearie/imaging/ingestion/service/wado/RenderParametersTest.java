@@ -0,0 +1,56 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.awt.image.BufferedImage;
+
+import org.dcm4che3.ws.rs.MediaTypes;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class RenderParametersTest {
+    @Test
+    public void testParse() {
+        RenderParameters params = RenderParameters.parse(null, 80, "200,100,,10,-50", "40,400,linear");
+        Assertions.assertEquals(MediaTypes.IMAGE_JPEG_TYPE, params.getMediaType());
+        Assertions.assertEquals(80, params.getQuality());
+        Assertions.assertEquals(200, params.getViewportWidth());
+        Assertions.assertEquals(100, params.getViewportHeight());
+        Assertions.assertNull(params.getSourceX());
+        Assertions.assertEquals(10, params.getSourceY());
+        Assertions.assertEquals(-50, params.getSourceWidth());
+        Assertions.assertNull(params.getSourceHeight());
+        Assertions.assertEquals(40f, params.getWindowCenter());
+        Assertions.assertEquals(400f, params.getWindowWidth());
+
+        Assertions.assertEquals(MediaTypes.IMAGE_PNG_TYPE,
+                RenderParameters.parse("application/dicom, image/png", 0, null, null).getMediaType());
+        Assertions.assertEquals(MediaTypes.IMAGE_PNG_TYPE,
+                RenderParameters.parse("multipart/related; type=\"image/png\"", 0, null, null).getMediaType());
+        Assertions.assertNull(RenderParameters.parse("application/dicom", 0, null, null));
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> RenderParameters.parse(null, 101, null, null));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> RenderParameters.parse(null, 0, "100", null));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> RenderParameters.parse(null, 0, null, "40,400,sigmoid"));
+    }
+
+    @Test
+    public void testScale() {
+        BufferedImage image = new BufferedImage(400, 200, BufferedImage.TYPE_BYTE_GRAY);
+        image.getRaster().setSample(0, 0, 0, 255);
+
+        BufferedImage scaled = RenderService.scale(image, RenderParameters.thumbnail(null, null, 100));
+        Assertions.assertEquals(100, scaled.getWidth());
+        Assertions.assertEquals(50, scaled.getHeight());
+
+        // The right half flipped horizontally
+        RenderParameters params = RenderParameters.parse(null, 0, "200,200,200,,-200", null);
+        scaled = RenderService.scale(image, params);
+        Assertions.assertEquals(200, scaled.getWidth());
+        Assertions.assertEquals(200, scaled.getHeight());
+    }
+}
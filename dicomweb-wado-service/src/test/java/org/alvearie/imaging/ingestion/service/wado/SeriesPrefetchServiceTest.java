@@ -0,0 +1,70 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+import org.alvearie.imaging.ingestion.service.s3.StoreService;
+import org.alvearie.imaging.ingestion.service.s3.StoredObject;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class SeriesPrefetchServiceTest {
+    @Test
+    public void testPrefetchWithinBudget() throws IOException {
+        StoreService storeService = Mockito.mock(StoreService.class);
+        Mockito.when(storeService.retrieveLength(Mockito.anyString())).thenReturn(10L);
+        Mockito.when(storeService.retrieve(Mockito.anyString()))
+                .thenAnswer(i -> new StoredObject(i.getArgument(0), 10, new ByteArrayInputStream(new byte[10])));
+        SeriesPrefetchService prefetchService = newPrefetchService(storeService, 20);
+
+        prefetchService.prefetch(Arrays.asList("a", "b", "c"));
+        Mockito.verify(storeService).retrieve("a");
+        Mockito.verify(storeService).retrieve("b");
+        Mockito.verify(storeService, Mockito.never()).retrieve("c");
+
+        // Prefetched objects are not fetched again
+        prefetchService.prefetch(Arrays.asList("a", "b"));
+        Mockito.verify(storeService, Mockito.times(1)).retrieve("a");
+
+        // Retrieving prefetched objects releases the budget
+        prefetchService.retrieved(List.of("a"));
+        prefetchService.prefetch(List.of("c"));
+        Mockito.verify(storeService).retrieve("c");
+    }
+
+    @Test
+    public void testBudgetReservedBeforeFetch() throws IOException {
+        StoreService storeService = Mockito.mock(StoreService.class);
+        Mockito.when(storeService.retrieveLength("a")).thenReturn(30L);
+        Mockito.when(storeService.retrieveLength("b")).thenReturn(15L);
+        Mockito.when(storeService.retrieve("b")).thenThrow(new IOException("reset"));
+        SeriesPrefetchService prefetchService = newPrefetchService(storeService, 20);
+
+        // Objects larger than the remaining budget are not fetched at all
+        prefetchService.prefetch(List.of("a"));
+        Mockito.verify(storeService, Mockito.never()).retrieve("a");
+
+        // The budget of a failed fetch is released
+        prefetchService.prefetch(List.of("b"));
+        prefetchService.prefetch(List.of("b"));
+        Mockito.verify(storeService, Mockito.times(2)).retrieve("b");
+    }
+
+    private SeriesPrefetchService newPrefetchService(StoreService storeService, long maxBytes) {
+        SeriesPrefetchService prefetchService = new SeriesPrefetchService();
+        prefetchService.enabled = true;
+        prefetchService.maxBytes = maxBytes;
+        prefetchService.expireAfter = Duration.ofMinutes(5);
+        prefetchService.storeService = storeService;
+        prefetchService.init(Runnable::run);
+        return prefetchService;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.alvearie.imaging.ingestion.model.result.DicomEntityResult;
+import org.alvearie.imaging.ingestion.model.result.DicomResource;
+import org.alvearie.imaging.ingestion.service.s3.StoreService;
+import org.alvearie.imaging.ingestion.service.s3.StoredObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+public class ThumbnailServiceTest {
+    ThumbnailService thumbnailService;
+
+    @BeforeEach
+    public void setup() {
+        thumbnailService = new ThumbnailService();
+        thumbnailService.enabled = true;
+        thumbnailService.source = "test";
+        thumbnailService.delay = Duration.ofMinutes(1);
+        thumbnailService.previewSize = 512;
+        thumbnailService.representativesSize = 100;
+        thumbnailService.storeService = Mockito.mock(StoreService.class);
+        thumbnailService.renderService = Mockito.mock(RenderService.class);
+        thumbnailService.queryService = Mockito.mock(DicomQueryService.class);
+        Mockito.when(thumbnailService.renderService.getThumbnailSize()).thenReturn(128);
+        thumbnailService.init();
+    }
+
+    @AfterEach
+    public void shutdown() {
+        thumbnailService.shutdown();
+    }
+
+    @Test
+    public void testGenerate() throws IOException {
+        List<DicomEntityResult> results = new ArrayList<>();
+        for (String objectName : List.of("first", "middle", "last")) {
+            DicomResource resource = new DicomResource();
+            resource.setObjectName(objectName);
+            DicomEntityResult result = new DicomEntityResult();
+            result.setResource(resource);
+            results.add(result);
+        }
+        Mockito.when(thumbnailService.queryService.getResultsAsync("1.2", "1.2.3", "test"))
+                .thenReturn(CompletableFuture.completedFuture(results));
+        byte[] image = new byte[] { 1, 2, 3 };
+        Mockito.when(thumbnailService.renderService.render(Mockito.eq("middle"), Mockito.eq(1), Mockito.any()))
+                .thenReturn(image);
+
+        thumbnailService.generate("1.2", "1.2.3");
+        Mockito.verify(thumbnailService.storeService).store("middle" + ThumbnailService.THUMBNAIL_SUFFIX, image);
+        Mockito.verify(thumbnailService.storeService).store("middle" + ThumbnailService.PREVIEW_SUFFIX, image);
+
+        // Other instances of the series have nothing stored to look up
+        Assertions.assertNull(thumbnailService.load("first", 1, RenderParameters.thumbnail(null, null, 128)));
+        Mockito.verify(thumbnailService.storeService, Mockito.never()).retrieve(Mockito.anyString());
+    }
+
+    @Test
+    public void testLoad() throws IOException {
+        StoreService storeService = thumbnailService.storeService;
+        Mockito.when(storeService.retrieve("middle" + ThumbnailService.THUMBNAIL_SUFFIX))
+                .thenReturn(new StoredObject("middle", 3, new ByteArrayInputStream(new byte[] { 1, 2, 3 })));
+        Mockito.when(storeService.retrieve("middle" + ThumbnailService.PREVIEW_SUFFIX))
+                .thenThrow(new FileNotFoundException());
+
+        Assertions.assertArrayEquals(new byte[] { 1, 2, 3 },
+                thumbnailService.load("middle", 1, RenderParameters.thumbnail("image/*", null, 128)));
+        Assertions.assertNull(thumbnailService.load("middle", 1, RenderParameters.thumbnail(null, null, 512)));
+
+        // Other renderings are not stored
+        Assertions.assertNull(thumbnailService.load("middle", 2, RenderParameters.thumbnail(null, null, 128)));
+        Assertions.assertNull(thumbnailService.load("middle", 1, RenderParameters.thumbnail(null, "64,64", 128)));
+        Assertions.assertNull(thumbnailService.load("middle", 1, RenderParameters.thumbnail("image/png", null, 128)));
+        Mockito.verify(storeService, Mockito.times(2)).retrieve(Mockito.anyString());
+    }
+
+    @Test
+    public void testMissingLookedUpOnce() throws IOException {
+        StoreService storeService = thumbnailService.storeService;
+        Mockito.when(storeService.retrieve(Mockito.anyString())).thenThrow(new FileNotFoundException());
+
+        Assertions.assertNull(thumbnailService.load("first", 1, RenderParameters.thumbnail(null, null, 128)));
+        Assertions.assertNull(thumbnailService.load("first", 1, RenderParameters.thumbnail(null, null, 512)));
+        Mockito.verify(storeService).retrieve(Mockito.anyString());
+    }
+}
@@ -6,27 +6,42 @@
 package org.alvearie.imaging.ingestion.service.wado;
 
 import static io.restassured.RestAssured.given;
+import static org.hamcrest.core.IsNot.not;
 import static org.hamcrest.core.StringContains.containsString;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
-import java.io.ByteArrayOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.time.OffsetDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import javax.imageio.ImageIO;
 
 import org.alvearie.imaging.ingestion.model.result.DicomAttribute;
 import org.alvearie.imaging.ingestion.model.result.DicomEntityResult;
 import org.alvearie.imaging.ingestion.model.result.DicomResource;
+import org.alvearie.imaging.ingestion.service.s3.FrameIndex;
+import org.alvearie.imaging.ingestion.service.s3.FrameIndexBuilder;
+import org.alvearie.imaging.ingestion.service.s3.MetadataSidecar;
 import org.alvearie.imaging.ingestion.service.s3.StoreService;
+import org.alvearie.imaging.ingestion.service.s3.StoredObject;
+import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
 import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.ws.rs.MediaTypes;
 import org.eclipse.microprofile.rest.client.inject.RestClient;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import io.quarkus.test.junit.QuarkusTest;
@@ -44,73 +59,165 @@ public class WadoResourceTest {
     @RestClient
     DicomQueryClient queryClient;
 
+    @BeforeEach
+    public void setUp() {
+        // Retrieves open whole objects asynchronously, here through the stubbed synchronous read
+        Mockito.when(storeService.retrieveAsync(Mockito.anyString())).thenAnswer(i -> {
+            try {
+                return CompletableFuture.completedFuture(storeService.retrieve(i.getArgument(0)));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        });
+    }
+
     @Test
     public void testRetrieveStudy() {
-        Mockito.when(queryClient.getResults(Mockito.anyString(), Mockito.anyString())).thenReturn(new ArrayList<>());
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString()))
+                .thenReturn(CompletableFuture.completedFuture(new ArrayList<>()));
         given().log().all(true).get("/wado-rs/studies/123").then().statusCode(404);
     }
 
+    @Test
+    public void testRetrieveStudyZip() throws IOException {
+        Mockito.when(storeService.retrieve(Mockito.anyString())).thenAnswer(i -> getObject(TEST_FILENAME));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString()))
+                .thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
+        given().log().all(true).header("Accept", MediaTypes.APPLICATION_ZIP).get("/wado-rs/studies/123").then().log()
+                .headers().statusCode(200).contentType(MediaTypes.APPLICATION_ZIP);
+    }
+
+    @Test
+    public void testTranscodedRetrieve() throws IOException {
+        Mockito.when(storeService.retrieve(Mockito.anyString())).thenAnswer(i -> getObject(TEST_FILENAME));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
+        String accept = MediaTypes.MULTIPART_RELATED_APPLICATION_DICOM + ";transfer-syntax="
+                + UID.ImplicitVRLittleEndian;
+        given().log().all(true).header("Accept", accept).get("/wado-rs/studies/123/series/1234/instances/12345").then()
+                .log().headers().statusCode(200).body(containsString(UID.ImplicitVRLittleEndian));
+
+        // Served from the transcoded variant
+        Mockito.reset(storeService);
+        given().log().all(true).header("Accept", accept).get("/wado-rs/studies/123/series/1234/instances/12345").then()
+                .log().headers().statusCode(200);
+        Mockito.verify(storeService, Mockito.never()).retrieve(Mockito.anyString());
+
+        given().log().all(true)
+                .header("Accept", MediaTypes.MULTIPART_RELATED_APPLICATION_DICOM + ";transfer-syntax=1.2.3")
+                .get("/wado-rs/studies/123/series/1234/instances/12345").then().log().headers().statusCode(406);
+    }
+
     @Test
     public void testBasicRender() throws IOException {
-        Mockito.when(storeService.retrieve(Mockito.anyString())).thenReturn(getObject(TEST_FILENAME));
-        Mockito.when(queryClient.getResults(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
-                Mockito.anyString())).thenReturn(getResults(TEST_FILENAME));
+        Mockito.when(storeService.retrieve(Mockito.anyString())).thenAnswer(i -> getObject(TEST_FILENAME));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
         given().log().all(true).get("/wado-rs/studies/123/series/1234/instances/12345/rendered").then().log().headers()
-                .statusCode(501);
+                .statusCode(200).contentType(MediaTypes.IMAGE_JPEG);
+        given().log().all(true).header("Accept", MediaTypes.IMAGE_PNG)
+                .get("/wado-rs/studies/123/series/1234/instances/12345/rendered?window=40,400,linear").then().log()
+                .headers().statusCode(200).contentType(MediaTypes.IMAGE_PNG);
+        given().log().all(true).get("/wado-rs/studies/123/series/1234/instances/12345/rendered?window=40").then()
+                .log().headers().statusCode(400);
+        given().log().all(true).header("Accept", MediaTypes.APPLICATION_DICOM)
+                .get("/wado-rs/studies/123/series/1234/instances/12345/rendered").then().log().headers()
+                .statusCode(406);
+    }
+
+    @Test
+    public void testRenderedFrames() throws IOException {
+        Mockito.when(storeService.retrieve(Mockito.anyString())).thenAnswer(i -> getObject(TEST_FILENAME));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
+        given().log().all(true).get("/wado-rs/studies/123/series/1234/instances/12345/frames/2/rendered").then()
+                .log().headers().statusCode(200).contentType(MediaTypes.IMAGE_JPEG);
+        given().log().all(true).get("/wado-rs/studies/123/series/1234/instances/12345/frames/1,2/rendered").then()
+                .log().headers().statusCode(200).contentType(containsString(MediaTypes.MULTIPART_RELATED));
+        given().log().all(true).get("/wado-rs/studies/123/series/1234/instances/12345/frames/3/rendered").then()
+                .log().headers().statusCode(400);
+    }
+
+    @Test
+    public void testRenderedIndexedFrame() throws IOException {
+        FrameIndex frameIndex = new FrameIndexBuilder().build(new File(TEST_FILENAME));
+        Mockito.when(storeService.retrieveFrameIndex(Mockito.anyString())).thenReturn(frameIndex);
+        Mockito.when(storeService.retrieve(Mockito.anyString(), Mockito.anyLong(), Mockito.anyLong()))
+                .thenAnswer(i -> getObject(TEST_FILENAME, i.getArgument(1), i.getArgument(2)));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
+        byte[] rendered = given().log().all(true)
+                .get("/wado-rs/studies/123/series/1234/instances/12345/frames/2/rendered?viewport=64,64").then()
+                .log().headers().statusCode(200).contentType(MediaTypes.IMAGE_JPEG).extract().asByteArray();
+        assertImageSize(rendered, 64, 64);
+        // Only the header and the frame are read
+        Mockito.verify(storeService).retrieve(Mockito.anyString(), Mockito.eq(frameIndex.getFragmentOffsets(2)[0]),
+                Mockito.eq((long) frameIndex.getFragmentLengths(2)[0]));
+        Mockito.verify(storeService, Mockito.never()).retrieve(TEST_FILENAME);
     }
 
     @Test
     public void testThumbnail() throws IOException {
-        Mockito.when(storeService.retrieve(Mockito.anyString())).thenReturn(getObject(TEST_FILENAME));
-        Mockito.when(queryClient.getResults(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
-                Mockito.anyString())).thenReturn(getResults(TEST_FILENAME));
+        Mockito.when(storeService.retrieve(Mockito.anyString())).thenAnswer(i -> getObject(TEST_FILENAME));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
+        given().log().all(true).get("/wado-rs/studies/123/series/1234/instances/12345/thumbnail").then().log().headers()
+                .statusCode(200).contentType(MediaTypes.IMAGE_JPEG);
+
+        // Served from the render cache
+        Mockito.reset(storeService);
         given().log().all(true).get("/wado-rs/studies/123/series/1234/instances/12345/thumbnail").then().log().headers()
-                .statusCode(501);
+                .statusCode(200);
+        Mockito.verify(storeService, Mockito.never()).retrieve(Mockito.anyString());
     }
 
     @Test
     public void testScaledThumbnail() throws IOException {
-        Mockito.when(storeService.retrieve(Mockito.anyString())).thenReturn(getObject(TEST_FILENAME));
-        Mockito.when(queryClient.getResults(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
-                Mockito.anyString())).thenReturn(getResults(TEST_FILENAME));
-        given().log().all(true).get("/wado-rs/studies/123/series/1234/instances/12345/thumbnail?viewport=75,100").then()
-                .log().headers().statusCode(501);
+        Mockito.when(storeService.retrieve(Mockito.anyString())).thenAnswer(i -> getObject(TEST_FILENAME));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
+        byte[] thumbnail = given().log().all(true)
+                .get("/wado-rs/studies/123/series/1234/instances/12345/thumbnail?viewport=75,100").then().log()
+                .headers().statusCode(200).extract().asByteArray();
+        assertImageSize(thumbnail, 75, 75);
     }
 
     @Test
     public void testBasicViewport() throws IOException {
-        Mockito.when(storeService.retrieve(Mockito.anyString())).thenReturn(getObject(TEST_FILENAME));
-        Mockito.when(queryClient.getResults(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
-                Mockito.anyString())).thenReturn(getResults(TEST_FILENAME));
-        given().log().all(true).get("/wado-rs/studies/123/series/1234/instances/12345/rendered?viewport=200,200").then()
-                .log().headers().statusCode(501);
+        Mockito.when(storeService.retrieve(Mockito.anyString())).thenAnswer(i -> getObject(TEST_FILENAME));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
+        byte[] rendered = given().log().all(true)
+                .get("/wado-rs/studies/123/series/1234/instances/12345/rendered?viewport=200,200").then().log()
+                .headers().statusCode(200).extract().asByteArray();
+        assertImageSize(rendered, 200, 200);
     }
 
     @Test
     public void testTopLeftViewportRegion() throws IOException {
-        Mockito.when(storeService.retrieve(Mockito.anyString())).thenReturn(getObject(TEST_FILENAME));
-        Mockito.when(queryClient.getResults(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
-                Mockito.anyString())).thenReturn(getResults(TEST_FILENAME));
+        Mockito.when(storeService.retrieve(Mockito.anyString())).thenAnswer(i -> getObject(TEST_FILENAME));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
         given().log().all(true)
                 .get("/wado-rs/studies/123/series/1234/instances/12345/rendered?viewport=200,200,,,200,200").then()
-                .log().headers().statusCode(501);
+                .log().headers().statusCode(200).contentType(MediaTypes.IMAGE_JPEG);
     }
 
     @Test
     public void testBottomRightViewportRegion() throws IOException {
-        Mockito.when(storeService.retrieve(Mockito.anyString())).thenReturn(getObject(TEST_FILENAME));
-        Mockito.when(queryClient.getResults(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
-                Mockito.anyString())).thenReturn(getResults(TEST_FILENAME));
+        Mockito.when(storeService.retrieve(Mockito.anyString())).thenAnswer(i -> getObject(TEST_FILENAME));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
         given().log().all(true)
                 .get("/wado-rs/studies/123/series/1234/instances/12345/rendered?viewport=256,256,256,256").then().log()
-                .headers().statusCode(501);
+                .headers().statusCode(200).contentType(MediaTypes.IMAGE_JPEG);
     }
 
     @Test
     public void testRetrieveContentEncoding() throws IOException {
-        Mockito.when(storeService.retrieve(Mockito.anyString())).thenReturn(getObject(TEST_FILENAME));
-        Mockito.when(queryClient.getResults(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
-                Mockito.anyString())).thenReturn(getResults(TEST_FILENAME));
+        Mockito.when(storeService.retrieve(Mockito.anyString())).thenAnswer(i -> getObject(TEST_FILENAME));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
         given().log().all(true).header("Accept-Encoding", "gzip")
                 .get("/wado-rs/studies/123/series/1234/instances/12345").then().log().headers().statusCode(200).and()
                 .header("Content-Encoding", "gzip");
@@ -118,9 +225,9 @@ public class WadoResourceTest {
 
     @Test
     public void testMetadataContentEncoding() throws IOException {
-        Mockito.when(storeService.retrieve(Mockito.anyString())).thenReturn(getObject(TEST_FILENAME));
-        Mockito.when(queryClient.getResults(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
-                Mockito.anyString())).thenReturn(getResults(TEST_FILENAME));
+        Mockito.when(storeService.retrieve(Mockito.anyString())).thenAnswer(i -> getObject(TEST_FILENAME));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
         given().log().all(true).header("Accept-Encoding", "gzip")
                 .get("/wado-rs/studies/123/series/1234/instances/12345/metadata").then().log().headers().statusCode(200)
                 .and().header("Content-Encoding", "gzip");
@@ -128,9 +235,11 @@ public class WadoResourceTest {
 
     @Test
     public void testBulkFrameCache() throws IOException {
-        Mockito.when(storeService.retrieve(Mockito.anyString())).thenReturn(getObject(TEST_FILENAME));
-        Mockito.when(queryClient.getResults(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
-                Mockito.anyString())).thenReturn(getResults(TEST_FILENAME));
+        Mockito.when(storeService.retrieve(Mockito.anyString())).thenAnswer(i -> getObject(TEST_FILENAME));
+        Mockito.when(storeService.retrieveAsync(Mockito.anyString(), Mockito.anyLong(), Mockito.anyLong()))
+                .thenAnswer(i -> getObjectAsync(TEST_FILENAME, i.getArgument(1), i.getArgument(2)));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
         Response response = given().log().all(true).get("/wado-rs/studies/123/series/1234/instances/12345/frames/1");
 
         given().log().all(true).header("If-Modified-Since", response.getHeader("last-modified"))
@@ -139,11 +248,112 @@ public class WadoResourceTest {
                 .statusCode(304);
     }
 
+    @Test
+    public void testConditionalRetrieve() throws IOException {
+        Mockito.when(storeService.retrieve(Mockito.anyString())).thenAnswer(i -> getObject(TEST_FILENAME));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
+        Response response = given().log().all(true).get("/wado-rs/studies/123/series/1234/instances/12345");
+        response.then().statusCode(200);
+        String entityTag = response.getHeader("ETag");
+        Assertions.assertFalse(entityTag.startsWith("W/"));
+
+        Mockito.reset(storeService);
+        given().log().all(true).header("If-None-Match", entityTag)
+                .get("/wado-rs/studies/123/series/1234/instances/12345").then().log().headers().statusCode(304);
+        Mockito.verify(storeService, Mockito.never()).retrieve(Mockito.anyString());
+    }
+
+    @Test
+    public void testRangedRetrieve() throws IOException {
+        long length = new File(TEST_FILENAME).length();
+        Mockito.when(storeService.retrieveLength(Mockito.anyString())).thenReturn(length);
+        Mockito.when(storeService.retrieve(Mockito.anyString(), Mockito.anyLong(), Mockito.anyLong()))
+                .thenAnswer(i -> getObject(TEST_FILENAME, i.getArgument(1), i.getArgument(2)));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
+
+        byte[] body = given().log().all(true).header("Accept", "application/octet-stream")
+                .header("Range", "bytes=128-131").get("/wado-rs/studies/123/series/1234/instances/12345").then()
+                .log().headers().statusCode(206).header("Accept-Ranges", "bytes")
+                .header("Content-Range", "bytes 128-131/" + length).extract().asByteArray();
+        Assertions.assertArrayEquals(new byte[] { 'D', 'I', 'C', 'M' }, body);
+
+        given().log().all(true).header("Accept", "application/octet-stream").header("Range", "bytes=0-3,-4")
+                .get("/wado-rs/studies/123/series/1234/instances/12345").then().log().headers().statusCode(206)
+                .contentType(containsString("multipart/byteranges"))
+                .body(containsString("Content-Range: bytes " + (length - 4) + "-" + (length - 1) + "/" + length));
+
+        given().log().all(true).header("Accept", "application/octet-stream").header("Range", "bytes=" + length + "-")
+                .get("/wado-rs/studies/123/series/1234/instances/12345").then().log().headers().statusCode(416)
+                .header("Content-Range", "bytes */" + length);
+    }
+
+    @Test
+    public void testRangedRetrieveIfRange() throws IOException {
+        long length = new File(TEST_FILENAME).length();
+        Mockito.when(storeService.retrieveLength(Mockito.anyString())).thenReturn(length);
+        Mockito.when(storeService.retrieve(Mockito.anyString())).thenAnswer(i -> getObject(TEST_FILENAME));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
+
+        // A changed representation is sent whole
+        given().log().all(true).header("Accept", "application/octet-stream").header("Range", "bytes=128-131")
+                .header("If-Range", "\"changed\"").get("/wado-rs/studies/123/series/1234/instances/12345").then()
+                .log().headers().statusCode(200).header("Content-Length", String.valueOf(length));
+    }
+
+    @Test
+    public void testIndexedFrames() throws IOException {
+        FrameIndex frameIndex = new FrameIndexBuilder().build(new File(TEST_FILENAME));
+        Mockito.when(storeService.retrieveFrameIndex(Mockito.anyString())).thenReturn(frameIndex);
+        Mockito.when(storeService.retrieveAsync(Mockito.anyString(), Mockito.anyLong(), Mockito.anyLong()))
+                .thenAnswer(i -> getObjectAsync(TEST_FILENAME, i.getArgument(1), i.getArgument(2)));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
+        given().log().all(true).get("/wado-rs/studies/123/series/1234/instances/12345/frames/2,1").then().log()
+                .headers().statusCode(200);
+        Mockito.verify(storeService, Mockito.never()).retrieve(Mockito.anyString());
+
+        given().log().all(true).get("/wado-rs/studies/123/series/1234/instances/12345/frames/3").then().log()
+                .headers().statusCode(400);
+    }
+
+    @Test
+    public void testUnindexedFrames() throws IOException {
+        Mockito.when(storeService.retrieve(Mockito.anyString())).thenAnswer(i -> getObject(TEST_FILENAME));
+        Mockito.when(storeService.retrieveAsync(Mockito.anyString(), Mockito.anyLong(), Mockito.anyLong()))
+                .thenAnswer(i -> getObjectAsync(TEST_FILENAME, i.getArgument(1), i.getArgument(2)));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
+        given().log().all(true).get("/wado-rs/studies/123/series/1234/instances/12345/frames/2").then().log()
+                .headers().statusCode(200);
+        Mockito.verify(storeService).store(Mockito.eq(TEST_FILENAME + FrameIndex.OBJECT_SUFFIX), Mockito.any());
+    }
+
+    @Test
+    public void testBulkdata() throws IOException {
+        FrameIndex frameIndex = new FrameIndexBuilder().build(new File(TEST_FILENAME));
+        Mockito.when(storeService.retrieveFrameIndex(Mockito.anyString())).thenReturn(frameIndex);
+        Mockito.when(storeService.retrieve(Mockito.anyString(), Mockito.anyLong(), Mockito.anyLong()))
+                .thenAnswer(i -> getObject(TEST_FILENAME, i.getArgument(1), i.getArgument(2)));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
+        given().log().all(true).get("/wado-rs/studies/123/series/1234/instances/12345/bulkdata/7FE00010").then()
+                .log().headers().statusCode(200).contentType(containsString("multipart/related"));
+        Mockito.verify(storeService).retrieve(Mockito.anyString(), Mockito.eq(frameIndex.getPixelDataOffset()),
+                Mockito.eq(frameIndex.getFrameLength(1) + frameIndex.getFrameLength(2)));
+        Mockito.verify(storeService, Mockito.never()).retrieve(Mockito.anyString());
+
+        given().log().all(true).get("/wado-rs/studies/123/series/1234/instances/12345/bulkdata/00100010").then()
+                .log().headers().statusCode(404);
+    }
+
     @Test
     public void testMetadataBulkDataURI() throws IOException {
-        Mockito.when(storeService.retrieve(Mockito.anyString())).thenReturn(getObject(TEST_FILENAME));
-        Mockito.when(queryClient.getResults(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
-                Mockito.anyString())).thenReturn(getResults(TEST_FILENAME));
+        Mockito.when(storeService.retrieve(Mockito.anyString())).thenAnswer(i -> getObject(TEST_FILENAME));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
         given().log().all(true).get("/wado-rs/studies/123/series/1234/instances/12345/metadata").then().log().headers()
                 .statusCode(200).body(containsString("7FE00010"), containsString("BulkDataURI"),
                         containsString("studies/123/series/1234/instances/12345"));
@@ -151,9 +361,9 @@ public class WadoResourceTest {
 
     @Test
     public void testMetadataBulkDataURIXML() throws IOException {
-        Mockito.when(storeService.retrieve(Mockito.anyString())).thenReturn(getObject(TEST_FILENAME));
-        Mockito.when(queryClient.getResults(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
-                Mockito.anyString())).thenReturn(getResults(TEST_FILENAME));
+        Mockito.when(storeService.retrieve(Mockito.anyString())).thenAnswer(i -> getObject(TEST_FILENAME));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
         Response response = given().log().all(true).header("Accept", MediaTypes.MULTIPART_RELATED_APPLICATION_DICOM_XML)
                 .get("/wado-rs/studies/123/series/1234/instances/12345/metadata");
         String body = response.asString();
@@ -162,6 +372,78 @@ public class WadoResourceTest {
         assertTrue(body.contains("studies/123/series/1234/instances/12345"));
     }
 
+    @Test
+    public void testMetadataIncludeFields() throws IOException {
+        Mockito.when(storeService.retrieve(Mockito.anyString())).thenAnswer(i -> getObject(TEST_FILENAME));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
+        given().log().all(true).queryParam("includefields", "Rows,00280011")
+                .get("/wado-rs/studies/123/series/1234/instances/12345/metadata").then().log().headers()
+                .statusCode(200).body(containsString("00280010"), containsString("00280011"),
+                        containsString("00080018"), not(containsString("7FE00010")));
+
+        given().log().all(true).queryParam("includefields", "NotAnAttribute")
+                .get("/wado-rs/studies/123/series/1234/instances/12345/metadata").then().log().headers()
+                .statusCode(400);
+    }
+
+    @Test
+    public void testMetadataSidecar() throws IOException {
+        Mockito.when(storeService.retrieveMetadata(Mockito.anyString())).thenReturn(getMetadataSidecar(TEST_FILENAME));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString(), Mockito.anyString(),
+                Mockito.anyString())).thenReturn(CompletableFuture.completedFuture(getResults(TEST_FILENAME)));
+        given().log().all(true).get("/wado-rs/studies/123/series/1234/instances/12345/metadata").then().log().headers()
+                .statusCode(200).body(containsString("7FE00010"), containsString("BulkDataURI"),
+                        containsString("/wado-rs/studies/"), not(containsString(MetadataSidecar.BASE_URI_TEMPLATE)));
+
+        Response response = given().log().all(true).header("Accept", MediaTypes.MULTIPART_RELATED_APPLICATION_DICOM_XML)
+                .get("/wado-rs/studies/123/series/1234/instances/12345/metadata");
+        String body = response.asString();
+        assertTrue(body.contains("7FE00010"));
+        assertTrue(body.contains("/wado-rs/studies/"));
+        Mockito.verify(storeService, Mockito.never()).retrieve(Mockito.anyString());
+    }
+
+    @Test
+    public void testStudyMetadataSnapshot() throws IOException {
+        List<DicomEntityResult> results = getResults(TEST_FILENAME);
+        results.get(0).setRevision(1);
+        Mockito.when(storeService.retrieve(Mockito.anyString())).thenThrow(new FileNotFoundException());
+        Mockito.when(storeService.retrieveMetadata(Mockito.anyString())).thenReturn(getMetadataSidecar(TEST_FILENAME));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString()))
+                .thenReturn(CompletableFuture.completedFuture(results));
+        Response response = given().log().all(true).get("/wado-rs/studies/123/metadata");
+        response.then().log().headers().statusCode(200).body(containsString("7FE00010"),
+                containsString("/wado-rs/studies/"), not(containsString(MetadataSidecar.BASE_URI_TEMPLATE)));
+        // Built in the background while the metadata is served instance by instance
+        String snapshotName = MetadataSnapshotService.getObjectName("123", null, 1);
+        ArgumentCaptor<byte[]> snapshot = ArgumentCaptor.forClass(byte[].class);
+        Mockito.verify(storeService, Mockito.timeout(5000)).store(Mockito.eq(snapshotName), snapshot.capture());
+
+        given().log().all(true).header("If-None-Match", response.getHeader("ETag")).get("/wado-rs/studies/123/metadata")
+                .then().log().headers().statusCode(304);
+
+        // Served from the snapshot with the same entity tag
+        Mockito.doAnswer(i -> new StoredObject(snapshotName, snapshot.getValue().length,
+                new ByteArrayInputStream(snapshot.getValue()))).when(storeService).retrieve(snapshotName);
+        given().log().all(true).get("/wado-rs/studies/123/metadata").then().log().headers().statusCode(200)
+                .header("ETag", response.getHeader("ETag"))
+                .body(not(containsString(MetadataSidecar.BASE_URI_TEMPLATE)));
+    }
+
+    @Test
+    public void testSnapshotBuiltOnStudyRevision() throws IOException {
+        List<DicomEntityResult> results = getResults(TEST_FILENAME);
+        results.get(0).setRevision(2);
+        Mockito.when(storeService.retrieveMetadata(Mockito.anyString())).thenReturn(getMetadataSidecar(TEST_FILENAME));
+        Mockito.when(queryClient.getResultsAsync(Mockito.anyString(), Mockito.anyString()))
+                .thenReturn(CompletableFuture.completedFuture(results));
+        given().header("Ce-Id", "1").header("Ce-Type", "StudyRevisionEvent").contentType("application/json")
+                .body("{\"study\":{\"studyInstanceUID\":\"456\"}}").post("/events").then().statusCode(204);
+        Mockito.verify(storeService, Mockito.timeout(5000))
+                .store(Mockito.eq(MetadataSnapshotService.getObjectName("456", null, 2)), Mockito.any());
+    }
+
     private List<DicomEntityResult> getResults(String objectName) {
         List<DicomEntityResult> results = new ArrayList<>();
         DicomEntityResult result = new DicomEntityResult();
@@ -180,15 +462,32 @@ public class WadoResourceTest {
         return results;
     }
 
-    private ByteArrayOutputStream getObject(String filename) {
-        try {
-            FileInputStream fis = new FileInputStream(new File(filename));
-            ByteArrayOutputStream result = new ByteArrayOutputStream();
-            result.write(fis.readAllBytes());
-            return result;
-        } catch (IOException e) {
-
+    private byte[] getMetadataSidecar(String filename) throws IOException {
+        try (DicomInputStream dis = new DicomInputStream(new File(filename))) {
+            Attributes metadata = dis.readDatasetUntilPixelData();
+            return MetadataSidecar.toBytes(metadata, dis.vr(), dis.bigEndian());
         }
-        return null;
+    }
+
+    private StoredObject getObject(String filename) throws IOException {
+        File file = new File(filename);
+        return new StoredObject(filename, file.length(), new FileInputStream(file));
+    }
+
+    private StoredObject getObject(String filename, long offset, long length) throws IOException {
+        FileInputStream fis = new FileInputStream(new File(filename));
+        fis.getChannel().position(offset);
+        return new StoredObject(filename, length, new ByteArrayInputStream(fis.readNBytes((int) length)));
+    }
+
+    private static void assertImageSize(byte[] image, int width, int height) throws IOException {
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(image));
+        Assertions.assertEquals(width, decoded.getWidth());
+        Assertions.assertEquals(height, decoded.getHeight());
+    }
+
+    private CompletableFuture<StoredObject> getObjectAsync(String filename, long offset, long length)
+            throws IOException {
+        return CompletableFuture.completedFuture(getObject(filename, offset, length));
     }
 }
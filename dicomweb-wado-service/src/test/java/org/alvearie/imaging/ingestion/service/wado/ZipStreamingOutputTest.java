@@ -0,0 +1,100 @@
+/*
+ * (C) Copyright IBM Corp. 2021
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.alvearie.imaging.ingestion.service.wado;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ZipStreamingOutputTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testStoredEntries() throws IOException {
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ZipStreamingOutput output = new ZipStreamingOutput();
+        output.addEntry("1.2.3/1.2.3.4.dcm", out -> out.write(data));
+        output.addEntry("1.2.3/1.2.3.5.dcm", out -> out.write("abc".getBytes(StandardCharsets.US_ASCII)));
+
+        Path path = tempDir.resolve("study.zip");
+        try (OutputStream out = Files.newOutputStream(path)) {
+            output.write(out);
+        }
+
+        try (ZipFile zip = new ZipFile(path.toFile())) {
+            Assertions.assertEquals(2, zip.size());
+            ZipEntry entry = zip.getEntry("1.2.3/1.2.3.4.dcm");
+            Assertions.assertEquals(ZipEntry.STORED, entry.getMethod());
+            Assertions.assertEquals(data.length, entry.getSize());
+            // ZIP64 sizes, as in the local header
+            byte[] extra = entry.getExtra();
+            Assertions.assertEquals(20, extra.length);
+            Assertions.assertArrayEquals(new byte[] { 1, 0, 16, 0 }, Arrays.copyOf(extra, 4));
+            try (InputStream in = zip.getInputStream(entry)) {
+                Assertions.assertArrayEquals(data, in.readAllBytes());
+            }
+            try (InputStream in = zip.getInputStream(zip.getEntry("1.2.3/1.2.3.5.dcm"))) {
+                Assertions.assertEquals("abc", new String(in.readAllBytes(), StandardCharsets.US_ASCII));
+            }
+        }
+    }
+
+    @Test
+    public void testZip64EntryCount() throws IOException {
+        ZipStreamingOutput output = new ZipStreamingOutput();
+        for (int i = 0; i < 70000; i++) {
+            output.addEntry(i + ".dcm", out -> out.write(0));
+        }
+
+        Path path = tempDir.resolve("series.zip");
+        try (OutputStream out = Files.newOutputStream(path)) {
+            output.write(out);
+        }
+
+        try (ZipFile zip = new ZipFile(path.toFile())) {
+            Assertions.assertEquals(70000, zip.size());
+            Assertions.assertNotNull(zip.getEntry("69999.dcm"));
+        }
+    }
+
+    @Test
+    public void testResourcesClosed() throws IOException {
+        List<String> closed = new ArrayList<>();
+        ZipStreamingOutput output = new ZipStreamingOutput();
+        output.addResource(() -> {
+            closed.add("first");
+            throw new IOException("first");
+        });
+        output.addResource(() -> closed.add("second"));
+        output.addEntry("1.dcm", out -> {
+            throw new IOException("disconnected");
+        });
+
+        try (OutputStream out = Files.newOutputStream(tempDir.resolve("failed.zip"))) {
+            IOException e = Assertions.assertThrows(IOException.class, () -> output.write(out));
+            Assertions.assertEquals("disconnected", e.getMessage());
+        }
+        // Each resource is closed once, though closing the first failed
+        output.close();
+        Assertions.assertEquals(List.of("first", "second"), closed);
+    }
+}
@@ -11,6 +11,7 @@ import (
 
 	corev1 "k8s.io/api/core/v1"
 	"k8s.io/apimachinery/pkg/runtime"
+	keventingv1 "knative.dev/eventing/pkg/apis/eventing/v1"
 	ksourcesv1 "knative.dev/eventing/pkg/apis/sources/v1"
 	kservingv1 "knative.dev/serving/pkg/apis/serving/v1"
 	ctrl "sigs.k8s.io/controller-runtime"
@@ -37,6 +38,7 @@ type DicomwebIngestionServiceReconciler struct {
 //+kubebuilder:rbac:groups=core,namespace=system,resources=secrets,verbs=get;list;watch
 //+kubebuilder:rbac:groups=serving.knative.dev,namespace=system,resources=services,verbs=get;list;watch;create;update;patch;delete
 //+kubebuilder:rbac:groups=sources.knative.dev,namespace=system,resources=sinkbindings,verbs=get;list;watch;create;update;patch;delete
+//+kubebuilder:rbac:groups=eventing.knative.dev,namespace=system,resources=triggers,verbs=get;list;watch;create;update;patch;delete
 
 // Reconcile is part of the main kubernetes reconciliation loop which aims to
 // move the current state of the cluster closer to the desired state.
@@ -74,5 +76,6 @@ func (r *DicomwebIngestionServiceReconciler) SetupWithManager(mgr ctrl.Manager)
 		Owns(&corev1.Secret{}).
 		Owns(&kservingv1.Service{}).
 		Owns(&ksourcesv1.SinkBinding{}).
+		Owns(&keventingv1.Trigger{}).
 		Complete(r)
 }
@@ -10,6 +10,7 @@ import (
 	"context"
 
 	imagingingestionv1alpha1 "github.com/Alvearie/imaging-ingestion/imaging-ingestion-operator/api/v1alpha1"
+	"github.com/Alvearie/imaging-ingestion/imaging-ingestion-operator/common"
 	"github.com/Alvearie/imaging-ingestion/imaging-ingestion-operator/model"
 	"github.com/coderanger/controller-utils/randstring"
 	. "github.com/onsi/ginkgo"
@@ -17,6 +18,7 @@ import (
 	corev1 "k8s.io/api/core/v1"
 	metav1 "k8s.io/apimachinery/pkg/apis/meta/v1"
 	"k8s.io/apimachinery/pkg/types"
+	keventingv1 "knative.dev/eventing/pkg/apis/eventing/v1"
 	ksourcesv1 "knative.dev/eventing/pkg/apis/sources/v1"
 	kservingv1 "knative.dev/serving/pkg/apis/serving/v1"
 )
@@ -178,6 +180,30 @@ var _ = Describe("DicomwebIngestionService controller tests", func() {
 				return true
 			}, timeout, interval).Should(BeTrue())
 
+			availableTriggerLookupKey := types.NamespacedName{Name: model.GetWadoTriggerName(webIngestion, common.DicomAvailableEventType), Namespace: objectNamespace}
+			availableTrigger := &keventingv1.Trigger{}
+
+			Eventually(func() bool {
+				err := k8sClient.Get(ctx, availableTriggerLookupKey, availableTrigger)
+				if err != nil {
+					return false
+				}
+				return true
+			}, timeout, interval).Should(BeTrue())
+			Expect(availableTrigger.Spec.Subscriber.URI.Path).Should(Equal("/events"))
+
+			revisionTriggerLookupKey := types.NamespacedName{Name: model.GetWadoTriggerName(webIngestion, common.StudyRevisionEventType), Namespace: objectNamespace}
+			revisionTrigger := &keventingv1.Trigger{}
+
+			Eventually(func() bool {
+				err := k8sClient.Get(ctx, revisionTriggerLookupKey, revisionTrigger)
+				if err != nil {
+					return false
+				}
+				return true
+			}, timeout, interval).Should(BeTrue())
+			Expect(revisionTrigger.Spec.Filter.Attributes["type"]).Should(Equal(string(common.StudyRevisionEventType)))
+
 			Eventually(func() bool {
 				err := k8sClient.Get(ctx, webIngestionLookupKey, webIngestion)
 				if err != nil {
@@ -14,6 +14,7 @@ import (
 	"github.com/Alvearie/imaging-ingestion/imaging-ingestion-operator/common"
 	"github.com/Alvearie/imaging-ingestion/imaging-ingestion-operator/model"
 	"k8s.io/apimachinery/pkg/types"
+	keventingv1 "knative.dev/eventing/pkg/apis/eventing/v1"
 )
 
 func (r *DicomwebIngestionServiceReconciler) GetDesiredState(currentState *DicomwebIngestionServiceState, cr *v1alpha1.DicomwebIngestionService) common.DesiredResourceState {
@@ -23,6 +24,8 @@ func (r *DicomwebIngestionServiceReconciler) GetDesiredState(currentState *Dicom
 	desired = desired.AddAction(r.GetStowServiceDesiredState(currentState, cr))
 	desired = desired.AddAction(r.GetWadoServiceDesiredState(currentState, cr))
 	desired = desired.AddAction(r.GetStowSinkBindingDesiredState(currentState, cr))
+	desired = desired.AddAction(r.GetWadoTriggerDesiredState(currentState.WadoDicomAvailableTrigger, cr, common.DicomAvailableEventType))
+	desired = desired.AddAction(r.GetWadoTriggerDesiredState(currentState.WadoStudyRevisionTrigger, cr, common.StudyRevisionEventType))
 
 	return desired
 }
@@ -107,3 +110,23 @@ func (i *DicomwebIngestionServiceReconciler) GetStowSinkBindingDesiredState(stat
 
 	return nil
 }
+
+func (i *DicomwebIngestionServiceReconciler) GetWadoTriggerDesiredState(current *keventingv1.Trigger, cr *v1alpha1.DicomwebIngestionService, eventType common.EventType) common.ControllerAction {
+	eventDrivenIngestionResource, err := GetEventDrivenIngestionResource(context.Background(), types.NamespacedName{Name: cr.Spec.DicomEventDrivenIngestionName, Namespace: cr.Namespace}, i.Client)
+	if eventDrivenIngestionResource == nil || err != nil {
+		return common.GenericErrorAction{
+			Ref: errors.New("Missing DicomEventDrivenIngestion"),
+			Msg: "Missing DicomEventDrivenIngestion",
+		}
+	}
+
+	trigger := model.WadoTrigger(cr, model.GetEventBrokerName(eventDrivenIngestionResource.Name), eventType)
+	if current == nil {
+		return common.GenericCreateAction{
+			Ref: trigger,
+			Msg: "Create WADO " + string(eventType) + " Trigger",
+		}
+	}
+
+	return nil
+}
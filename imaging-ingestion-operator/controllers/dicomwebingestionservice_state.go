@@ -18,6 +18,7 @@ import (
 	"k8s.io/apimachinery/pkg/api/meta"
 	"k8s.io/apimachinery/pkg/runtime"
 	"k8s.io/apimachinery/pkg/types"
+	keventingv1 "knative.dev/eventing/pkg/apis/eventing/v1"
 	ksourcesv1 "knative.dev/eventing/pkg/apis/sources/v1"
 	kservingv1 "knative.dev/serving/pkg/apis/serving/v1"
 	"sigs.k8s.io/controller-runtime/pkg/client"
@@ -27,11 +28,13 @@ type DicomwebIngestionServiceState struct {
 	client.Client
 	Scheme *runtime.Scheme
 
-	BucketSecret    *corev1.Secret
-	BucketConfig    *corev1.ConfigMap
-	StowService     *kservingv1.Service
-	WadoService     *kservingv1.Service
-	StowSinkBinding *ksourcesv1.SinkBinding
+	BucketSecret              *corev1.Secret
+	BucketConfig              *corev1.ConfigMap
+	StowService               *kservingv1.Service
+	WadoService               *kservingv1.Service
+	StowSinkBinding           *ksourcesv1.SinkBinding
+	WadoDicomAvailableTrigger *keventingv1.Trigger
+	WadoStudyRevisionTrigger  *keventingv1.Trigger
 }
 
 func NewDicomwebIngestionServiceState(client client.Client, scheme *runtime.Scheme) *DicomwebIngestionServiceState {
@@ -57,7 +60,18 @@ func (i *DicomwebIngestionServiceState) IsResourcesReady(resource client.Object)
 		return false, err
 	}
 
-	return stowServiceReady && wadoServiceReady && stowSinkBindingReady, nil
+	wadoDicomAvailableTriggerReady, err := common.IsTriggerReady(i.WadoDicomAvailableTrigger)
+	if err != nil {
+		return false, err
+	}
+
+	wadoStudyRevisionTriggerReady, err := common.IsTriggerReady(i.WadoStudyRevisionTrigger)
+	if err != nil {
+		return false, err
+	}
+
+	return stowServiceReady && wadoServiceReady && stowSinkBindingReady && wadoDicomAvailableTriggerReady &&
+		wadoStudyRevisionTriggerReady, nil
 }
 
 func (i *DicomwebIngestionServiceState) Read(context context.Context, resource client.Object) error {
@@ -88,6 +102,16 @@ func (i *DicomwebIngestionServiceState) Read(context context.Context, resource c
 		return err
 	}
 
+	i.WadoDicomAvailableTrigger, err = i.readWadoTriggerCurrentState(context, cr, common.DicomAvailableEventType)
+	if err != nil {
+		return err
+	}
+
+	i.WadoStudyRevisionTrigger, err = i.readWadoTriggerCurrentState(context, cr, common.StudyRevisionEventType)
+	if err != nil {
+		return err
+	}
+
 	return nil
 }
 
@@ -208,6 +232,29 @@ func (i *DicomwebIngestionServiceState) readStowSinkBindingCurrentState(context
 	return nil
 }
 
+func (i *DicomwebIngestionServiceState) readWadoTriggerCurrentState(context context.Context, cr *v1alpha1.DicomwebIngestionService, eventType common.EventType) (*keventingv1.Trigger, error) {
+	eventDrivenIngestionResource, err := GetEventDrivenIngestionResource(context, types.NamespacedName{Name: cr.Spec.DicomEventDrivenIngestionName, Namespace: cr.Namespace}, i.Client)
+	if eventDrivenIngestionResource == nil || err != nil {
+		return nil, errors.New("Error getting DicomEventDrivenIngestion")
+	}
+
+	trigger := model.WadoTrigger(cr, model.GetEventBrokerName(eventDrivenIngestionResource.Name), eventType)
+	triggerSelector := model.WadoTriggerSelector(cr, eventType)
+
+	err = i.Client.Get(context, triggerSelector, trigger)
+	if err != nil {
+		// If the resource type doesn't exist on the cluster or does exist but is not found
+		if meta.IsNoMatchError(err) || apiErrors.IsNotFound(err) {
+			return nil, nil
+		}
+		logger.Error(err, "readWadoTriggerCurrentState")
+		return nil, err
+	}
+
+	cr.UpdateStatusSecondaryResources(trigger.Kind, trigger.Name)
+	return trigger.DeepCopy(), nil
+}
+
 func GetEventProcessorServiceEndpoint(cr *v1alpha1.DicomEventDrivenIngestion) string {
 	// TODO: Fix this to get advertised Endpoint from Status
 	if se, ok := cr.Status.SecondaryResources["ServiceEndpoint"]; ok {
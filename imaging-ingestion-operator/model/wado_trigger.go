@@ -0,0 +1,59 @@
+/*
+(C) Copyright IBM Corp. 2021
+
+SPDX-License-Identifier: Apache-2.0
+*/
+
+package model
+
+import (
+	"strings"
+
+	"github.com/Alvearie/imaging-ingestion/imaging-ingestion-operator/api/v1alpha1"
+	"github.com/Alvearie/imaging-ingestion/imaging-ingestion-operator/common"
+	metav1 "k8s.io/apimachinery/pkg/apis/meta/v1"
+	keventingv1 "knative.dev/eventing/pkg/apis/eventing/v1"
+	"knative.dev/pkg/apis"
+	v1 "knative.dev/pkg/apis/duck/v1"
+	"sigs.k8s.io/controller-runtime/pkg/client"
+)
+
+// WadoTrigger delivers the events of a type to the events endpoint of the WADO service
+func WadoTrigger(cr *v1alpha1.DicomwebIngestionService, broker string, eventType common.EventType) *keventingv1.Trigger {
+	return &keventingv1.Trigger{
+		ObjectMeta: metav1.ObjectMeta{
+			Name:      GetWadoTriggerName(cr, eventType),
+			Namespace: cr.Namespace,
+		},
+
+		Spec: keventingv1.TriggerSpec{
+			Broker: broker,
+			Subscriber: v1.Destination{
+				Ref: &v1.KReference{
+					APIVersion: "serving.knative.dev/v1",
+					Kind:       "Service",
+					Name:       GetWadoServiceName(cr),
+				},
+				URI: &apis.URL{
+					Path: "/events",
+				},
+			},
+			Filter: &keventingv1.TriggerFilter{
+				Attributes: keventingv1.TriggerFilterAttributes{
+					"type": string(eventType),
+				},
+			},
+		},
+	}
+}
+
+func WadoTriggerSelector(cr *v1alpha1.DicomwebIngestionService, eventType common.EventType) client.ObjectKey {
+	return client.ObjectKey{
+		Name:      GetWadoTriggerName(cr, eventType),
+		Namespace: cr.Namespace,
+	}
+}
+
+func GetWadoTriggerName(cr *v1alpha1.DicomwebIngestionService, eventType common.EventType) string {
+	return cr.Name + "-wado-" + strings.ToLower(strings.TrimSuffix(string(eventType), "Event"))
+}